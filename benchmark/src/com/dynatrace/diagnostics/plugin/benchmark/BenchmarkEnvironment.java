@@ -0,0 +1,207 @@
+package com.dynatrace.diagnostics.plugin.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dynatrace.diagnostics.pdk.MonitorEnvironment;
+import com.dynatrace.diagnostics.pdk.MonitorMeasure;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.SimulatedPerformanceBackend;
+
+/**
+ * The counter catalog, simulated backend and plugin environment used by the
+ * benchmarks. The first 18 counters are the ones of the plugin.xml, larger
+ * counter sets are filled up with per-database counters.
+ * <p>
+ * The <tt>MonitorEnvironment</tt> and <tt>MonitorMeasure</tt> objects are
+ * dynamic proxies, so the benchmarks do not depend on the exact interfaces of
+ * the SDK version on the classpath. The reflective call and the boxing of the
+ * booked value are part of every measured <tt>setValue</tt>.
+ */
+public class BenchmarkEnvironment {
+
+	static final String INSTANCE_PREFIX = SimulatedPerformanceBackend.DEFAULT_INSTANCE_PREFIX;
+	static final String HOSTNAME = "localhost";
+
+	private static final String[][] PLUGIN_COUNTERS = {
+			{ "Access Methods", "Page Splits/sec", null },
+			{ "Access Methods", "Full Scans/sec", null },
+			{ "SQL Statistics", "Batch Requests/sec", null },
+			{ "SQL Statistics", "SQL Compilations/sec", null },
+			{ "Databases", "Log Flushes/sec", "_Total" },
+			{ "Databases", "Log Cache Hit Ratio", "_Total" },
+			{ "General Statistics", "User Connections", null },
+			{ "General Statistics", "Transactions", null },
+			{ "Locks", "Number of Deadlocks/sec", "_Total" },
+			{ "Locks", "Lock Requests/sec", "_Total" },
+			{ "Locks", "Average Wait Time (ms)", "_Total" },
+			{ "SQL Errors", "Errors/sec", "_Total" },
+			{ "Buffer Manager", "Buffer cache hit ratio", null },
+			{ "Buffer Manager", "Checkpoint pages/sec", null },
+			{ "Buffer Manager", "Lazy writes/sec", null },
+			{ "Buffer Manager", "Page life expectancy", null },
+			{ "Buffer Manager", "Page reads/sec", null },
+			{ "Buffer Manager", "Page writes/sec", null } };
+
+	private static final String DATABASES = "Databases";
+	private static final String[] DATABASE_COUNTERS = { "Log Flushes/sec", "Log Cache Hit Ratio",
+			"Transactions/sec", "Log Bytes Flushed/sec", "Active Transactions" };
+
+	private final List<String[]> counters = new ArrayList<String[]>();
+	private final SimulatedPerformanceBackend backend;
+	private final Map<String, Object> config = new HashMap<String, Object>();
+	private final List<MonitorMeasure> measures = new ArrayList<MonitorMeasure>();
+	private final MonitorEnvironment environment;
+	private double lastValue;
+
+	/**
+	 * @param counterCount
+	 *            the number of counters the measures subscribe to
+	 * @param failureRatio
+	 *            the ratio of value retrievals that fail
+	 */
+	public BenchmarkEnvironment(int counterCount, double failureRatio) {
+		backend = new SimulatedPerformanceBackend();
+		backend.setFailureRatio(failureRatio);
+
+		for (int i = 0; i < counterCount && i < PLUGIN_COUNTERS.length; i++) {
+			counters.add(PLUGIN_COUNTERS[i]);
+		}
+		int databaseCount = (counterCount - counters.size() + DATABASE_COUNTERS.length - 1) / DATABASE_COUNTERS.length;
+		if (databaseCount > 0) {
+			String[] databases = new String[databaseCount];
+			for (int i = 0; i < databaseCount; i++) {
+				databases[i] = String.format("db%05d", Integer.valueOf(i));
+			}
+			backend.addObject(INSTANCE_PREFIX + DATABASES, DATABASE_COUNTERS, databases);
+			for (int i = 0; counters.size() < counterCount; i++) {
+				counters.add(new String[] { DATABASES, DATABASE_COUNTERS[i % DATABASE_COUNTERS.length],
+						databases[i / DATABASE_COUNTERS.length] });
+			}
+		}
+
+		config.put("translation", Boolean.TRUE);
+		config.put("instance", "");
+		for (String[] counter : counters) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put("objectName", counter[0]);
+			parameters.put("counterName", counter[1]);
+			if (counter[2] != null) {
+				parameters.put("instanceName", counter[2]);
+			}
+			measures.add(createMeasure(counter[1] + (counter[2] == null ? "" : " (" + counter[2] + ")"), parameters));
+		}
+		environment = createEnvironment();
+	}
+
+	/**
+	 * @return the backend which simulates the counters
+	 */
+	public SimulatedPerformanceBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * @return the plugin environment with one subscribed measure per counter
+	 */
+	public MonitorEnvironment getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * @return the last value booked to any measure
+	 */
+	public double getLastValue() {
+		return lastValue;
+	}
+
+	/**
+	 * @return one performance object per counter, as registered by the plugin
+	 */
+	public List<PerformanceObject> createPerformanceObjects() {
+		List<PerformanceObject> objects = new ArrayList<PerformanceObject>(counters.size());
+		for (String[] counter : counters) {
+			objects.add(new PerformanceObject(INSTANCE_PREFIX + counter[0], counter[1], PerformanceCounter.NO_SCALE,
+					counter[2]));
+		}
+		return objects;
+	}
+
+	private MonitorMeasure createMeasure(final String name, final Map<String, String> parameters) {
+		return (MonitorMeasure) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { MonitorMeasure.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String methodName = method.getName();
+						if (methodName.equals("getParameter")) {
+							return parameters.get(args[0]);
+						} else if (methodName.equals("setValue")) {
+							lastValue = ((Number) args[0]).doubleValue();
+							return null;
+						} else if (methodName.equals("toString")) {
+							return name;
+						} else if (methodName.equals("hashCode")) {
+							return Integer.valueOf(System.identityHashCode(proxy));
+						} else if (methodName.equals("equals")) {
+							return Boolean.valueOf(proxy == args[0]);
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	private MonitorEnvironment createEnvironment() {
+		final Collection<MonitorMeasure> subscribed = Collections.unmodifiableList(measures);
+		return (MonitorEnvironment) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { MonitorEnvironment.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String methodName = method.getName();
+						if (methodName.startsWith("getConfig")) {
+							return config.get(args[0]);
+						} else if (methodName.equals("getMonitorMeasures") && args == null) {
+							return subscribed;
+						} else if (methodName.equals("getHost")) {
+							return createHost(method.getReturnType());
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	private Object createHost(Class<?> type) {
+		return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getReturnType() == String.class) {
+					return HOSTNAME;
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return Integer.valueOf(0);
+		} else if (type == long.class) {
+			return Long.valueOf(0);
+		} else if (type == double.class) {
+			return Double.valueOf(0);
+		} else if (Collection.class.isAssignableFrom(type)) {
+			return Collections.emptyList();
+		}
+		return null;
+	}
+}
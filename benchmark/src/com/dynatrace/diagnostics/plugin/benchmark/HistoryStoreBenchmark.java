@@ -0,0 +1,95 @@
+package com.dynatrace.diagnostics.plugin.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dynatrace.diagnostics.plugin.perflib.HistoryStore;
+import com.dynatrace.diagnostics.plugin.perflib.PerformanceFactory;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+
+/**
+ * Measures appending a sample to the {@link HistoryStore}, run with
+ * <tt>-prof gc</tt> to check that appending does not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryStoreBenchmark {
+
+	// ten seconds between two samples
+	private static final long CYCLE = 10000;
+
+	@Param({ "500", "50000" })
+	public int counters;
+
+	private File directory;
+	private PerformanceMonitor monitor;
+	private HistoryStore store;
+	private HistoryStore.Recorder recorder;
+	private final QuerySnapshot snapshot = new QuerySnapshot();
+	private long time;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkEnvironment environment = new BenchmarkEnvironment(counters, 0);
+		monitor = PerformanceFactory.createPerformanceMonitor(environment.getBackend());
+		monitor.init(BenchmarkEnvironment.HOSTNAME, true);
+		for (PerformanceObject object : environment.createPerformanceObjects()) {
+			monitor.addQuery(object);
+		}
+		monitor.query(snapshot);
+		monitor.query(snapshot);
+		directory = new File(System.getProperty("java.io.tmpdir"), "perflib-history-benchmark-" + System.nanoTime());
+		store = new HistoryStore(directory, 24 * 3600 * 1000L);
+		recorder = store.createRecorder(monitor);
+		time = snapshot.getTimestamp();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		store.close();
+		monitor.clearQuery();
+		monitor.disconnect();
+		delete(directory);
+	}
+
+	/**
+	 * One sample of all counters appended to the history.
+	 */
+	@Benchmark
+	public QuerySnapshot append() {
+		time += CYCLE;
+		snapshot.setTimestamp(time);
+		recorder.sampled(snapshot);
+		return snapshot;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,112 @@
+package com.dynatrace.diagnostics.plugin.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dynatrace.diagnostics.plugin.perflib.PerformanceFactory;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMeasureKey;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+
+/**
+ * Measures the {@link PerformanceMonitor} operations used by the plugin
+ * against the simulated backend.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PerformanceMonitorBenchmark {
+
+	private static final int WARMUP_CYCLES = 3;
+
+	@Param({ "18", "500", "20000" })
+	public int counters;
+
+	@Param({ "0", "0.01", "0.1" })
+	public double failureRatio;
+
+	private BenchmarkEnvironment environment;
+	private List<PerformanceObject> objects;
+	private PerformanceMonitor monitor;
+	private final QuerySnapshot snapshot = new QuerySnapshot();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		environment = new BenchmarkEnvironment(counters, failureRatio);
+		objects = environment.createPerformanceObjects();
+		monitor = PerformanceFactory.createPerformanceMonitor(environment.getBackend());
+		monitor.init(BenchmarkEnvironment.HOSTNAME, true);
+		for (PerformanceObject object : objects) {
+			monitor.addQuery(object);
+		}
+		for (int i = 0; i < WARMUP_CYCLES; i++) {
+			monitor.query();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		monitor.clearQuery();
+		monitor.disconnect();
+	}
+
+	/**
+	 * Registration of all counters in a new session.
+	 */
+	@Benchmark
+	public PerformanceMonitor addQuery() throws Exception {
+		PerformanceMonitor newMonitor = PerformanceFactory.createPerformanceMonitor(environment.getBackend());
+		newMonitor.init(BenchmarkEnvironment.HOSTNAME, true);
+		for (PerformanceObject object : objects) {
+			newMonitor.addQuery(object);
+		}
+		newMonitor.clearQuery();
+		newMonitor.disconnect();
+		return newMonitor;
+	}
+
+	/**
+	 * One requery and retrieval of all registered counters.
+	 */
+	@Benchmark
+	public Map<PerformanceMeasureKey, Long> query() throws Exception {
+		return monitor.query();
+	}
+
+	/**
+	 * One requery and retrieval of all registered counters into a reused
+	 * snapshot.
+	 */
+	@Benchmark
+	public QuerySnapshot querySnapshot() throws Exception {
+		monitor.query(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * The error report of the last query.
+	 */
+	@Benchmark
+	public String getDetailedErrors() {
+		return monitor.getDetailedErrors();
+	}
+}
@@ -0,0 +1,104 @@
+package com.dynatrace.diagnostics.plugin.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dynatrace.diagnostics.pdk.Status;
+import com.dynatrace.diagnostics.plugin.WindowsPerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.PerformanceFactory;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.CaptureRecorder;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.ReplayPerformanceBackend;
+
+/**
+ * Replays a recorded day of a server through
+ * {@link WindowsPerformanceMonitor#execute}, one sample per execution. The
+ * capture is recorded from the simulated backend in the setup, its size is
+ * printed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+	// a day of samples taken every ten seconds
+	private static final int SAMPLES = 8640;
+	private static final int COUNTERS_PER_DATABASE = 5;
+	private static final int SERVER_COUNTERS = 18;
+
+	@Param({ "500" })
+	public int databases;
+
+	private File directory;
+	private BenchmarkEnvironment environment;
+	private WindowsPerformanceMonitor monitor;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		environment = new BenchmarkEnvironment(SERVER_COUNTERS + databases * COUNTERS_PER_DATABASE, 0);
+		directory = new File(System.getProperty("java.io.tmpdir"), "perflib-replay-benchmark-" + System.nanoTime());
+		System.setProperty(CaptureRecorder.DIRECTORY_PROPERTY, directory.getPath());
+		try {
+			PerformanceMonitor recording = PerformanceFactory.createPerformanceMonitor(environment.getBackend());
+			recording.init(BenchmarkEnvironment.HOSTNAME, true);
+			for (PerformanceObject object : environment.createPerformanceObjects()) {
+				recording.addQuery(object);
+			}
+			QuerySnapshot snapshot = new QuerySnapshot();
+			for (int i = 0; i < SAMPLES; i++) {
+				recording.query(snapshot);
+			}
+			recording.clearQuery();
+			recording.disconnect();
+		} finally {
+			System.clearProperty(CaptureRecorder.DIRECTORY_PROPERTY);
+		}
+		File capture = directory.listFiles()[0];
+		System.out.println();
+		System.out.println("capture of " + SAMPLES + " samples: " + capture.length() + " bytes");
+
+		PerformanceFactory.setBackend(new ReplayPerformanceBackend(capture, 0));
+		monitor = new WindowsPerformanceMonitor();
+		monitor.setup(environment.getEnvironment());
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		monitor.teardown(environment.getEnvironment());
+		PerformanceFactory.setBackend(null);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * One collection cycle with the next recorded sample.
+	 */
+	@Benchmark
+	public Status execute() throws Exception {
+		return monitor.execute(environment.getEnvironment());
+	}
+}
@@ -0,0 +1,84 @@
+package com.dynatrace.diagnostics.plugin.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dynatrace.diagnostics.pdk.Status;
+import com.dynatrace.diagnostics.plugin.WindowsPerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.PerformanceFactory;
+
+/**
+ * Measures the plugin entry points {@link WindowsPerformanceMonitor#setup}
+ * and {@link WindowsPerformanceMonitor#execute} against the simulated
+ * backend.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WindowsPerformanceMonitorBenchmark {
+
+	private static final int WARMUP_CYCLES = 3;
+
+	@Param({ "18", "500", "20000" })
+	public int counters;
+
+	@Param({ "0", "0.01", "0.1" })
+	public double failureRatio;
+
+	private BenchmarkEnvironment environment;
+	private WindowsPerformanceMonitor monitor;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		environment = new BenchmarkEnvironment(counters, failureRatio);
+		PerformanceFactory.setBackend(environment.getBackend());
+		monitor = new WindowsPerformanceMonitor();
+		monitor.setup(environment.getEnvironment());
+		// rate counters need two samples before they deliver values
+		for (int i = 0; i < WARMUP_CYCLES; i++) {
+			monitor.execute(environment.getEnvironment());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		monitor.teardown(environment.getEnvironment());
+		PerformanceFactory.setBackend(null);
+	}
+
+	/**
+	 * One collection cycle of a monitor that is already set up.
+	 */
+	@Benchmark
+	public Status execute() throws Exception {
+		return monitor.execute(environment.getEnvironment());
+	}
+
+	/**
+	 * Setup of a new monitor, including the teardown which has to follow
+	 * before the same measures can be registered again.
+	 */
+	@Benchmark
+	public Status setupAndTeardown() throws Exception {
+		WindowsPerformanceMonitor newMonitor = new WindowsPerformanceMonitor();
+		Status status = newMonitor.setup(environment.getEnvironment());
+		newMonitor.teardown(environment.getEnvironment());
+		return status;
+	}
+}
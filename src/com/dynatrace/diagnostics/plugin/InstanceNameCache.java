@@ -0,0 +1,140 @@
+package com.dynatrace.diagnostics.plugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.InvalidOperationException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+
+/**
+ * Caches the instance names of performance objects, so the instances of an
+ * object are enumerated once per refresh interval and not for every
+ * execution. Every change of the instances of an object increments its
+ * version, which allows users of the names to skip the matching of unchanged
+ * lists.
+ */
+final class InstanceNameCache {
+
+	private static final class Entry {
+		private String[] instanceNames = new String[0];
+		private int version = 0;
+		private long refreshTime = Long.MIN_VALUE;
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final long refreshInterval;
+
+	/**
+	 * @param refreshInterval
+	 *            the time in milliseconds after which the instances of an
+	 *            object are enumerated again
+	 */
+	InstanceNameCache(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * Enumerates the instances of the object again if the refresh interval
+	 * has elapsed since the last attempt. If the enumeration fails, the
+	 * previous names are kept and it is retried after the refresh interval,
+	 * so an unreachable host is not asked again by every execution.
+	 *
+	 * @param perfmon
+	 *            the connected performance monitor
+	 * @param objectName
+	 *            the name of the object
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the version of the instance names of the object
+	 * @throws PerformanceCounterException
+	 *             if the instances cannot be retrieved
+	 */
+	int refresh(PerformanceMonitor perfmon, String objectName, long now) throws PerformanceCounterException,
+			InvalidOperationException {
+		Entry entry = entries.get(objectName);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(objectName, entry);
+		} else if (now - entry.refreshTime < refreshInterval) {
+			return entry.version;
+		}
+		// a failed attempt counts as well
+		entry.refreshTime = now;
+		String[] instanceNames = perfmon.getInstanceNames(objectName);
+		if (!Arrays.equals(entry.instanceNames, instanceNames)) {
+			entry.instanceNames = instanceNames;
+			entry.version++;
+		}
+		return entry.version;
+	}
+
+	/**
+	 * @param objectName
+	 *            the name of the object
+	 * @return the names of the last enumeration, an empty array if the
+	 *         instances of the object were not enumerated so far
+	 */
+	String[] getInstanceNames(String objectName) {
+		Entry entry = entries.get(objectName);
+		return entry == null ? new String[0] : entry.instanceNames;
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @param instanceName
+	 *            the instance name of a measure
+	 * @return if the name contains a wildcard and has to be expanded
+	 */
+	static boolean isPattern(String instanceName) {
+		return instanceName != null && (instanceName.indexOf('*') >= 0 || instanceName.indexOf('?') >= 0);
+	}
+
+	/**
+	 * Matches an instance name against a simple glob pattern, where
+	 * <tt>*</tt> matches any sequence of characters and <tt>?</tt> any single
+	 * character. The comparison is case insensitive like the names of SQL
+	 * Server databases.
+	 *
+	 * @param pattern
+	 *            the pattern
+	 * @param instanceName
+	 *            the name of an instance
+	 * @return if the name matches the pattern
+	 */
+	static boolean matches(String pattern, String instanceName) {
+		int p = 0;
+		int n = 0;
+		int starPattern = -1;
+		int starName = 0;
+		while (n < instanceName.length()) {
+			if (p < pattern.length() && pattern.charAt(p) == '*') {
+				starPattern = p++;
+				starName = n;
+			} else if (p < pattern.length()
+					&& (pattern.charAt(p) == '?' || equalsIgnoreCase(pattern.charAt(p), instanceName.charAt(n)))) {
+				p++;
+				n++;
+			} else if (starPattern >= 0) {
+				// let the last star match one more character
+				p = starPattern + 1;
+				n = ++starName;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+
+	private static boolean equalsIgnoreCase(char a, char b) {
+		return a == b || Character.toUpperCase(a) == Character.toUpperCase(b)
+				|| Character.toLowerCase(a) == Character.toLowerCase(b);
+	}
+}
@@ -0,0 +1,147 @@
+package com.dynatrace.diagnostics.plugin;
+
+import com.dynatrace.diagnostics.pdk.MonitorMeasure;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMeasureKey;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter.PerformanceInstance;
+
+/**
+ * A subscribed measure compiled to the performance counter it is booked
+ * from. Bindings are created when the measure is registered, so an execution
+ * only has to read the value from the slot of the instance and scale it.
+ * <p>
+ * A measure which is booked from several counters, e.g. for an instance name
+ * pattern or several SQL Server instances, is expanded to a binding per
+ * counter, each of them booked to a dynamic measure.
+ * <p>
+ * Bindings are immutable, a binding whose expansion changes is replaced by
+ * the binding returned by {@link #withExpansion(MeasureBinding[], int)}.
+ */
+final class MeasureBinding {
+
+	private final MonitorMeasure measure;
+	private final PerformanceMeasureKey key;
+	private final PerformanceInstance instance;
+	private final boolean scaled;
+	private final boolean pattern;
+	// the dynamic measure the value is booked to, null for the measure itself
+	private final String dynamicMeasureName;
+	private final String dynamicMeasureValue;
+	// the bindings of the expanded counters
+	private final MeasureBinding[] expansion;
+	private final int expansionVersion;
+
+	/**
+	 * @param measure
+	 *            the subscribed measure
+	 * @param key
+	 *            the object, counter and instance name of the counter
+	 * @param instance
+	 *            the registered instance of the counter, <tt>null</tt> if the
+	 *            counter could not be added to the query
+	 * @param scaled
+	 *            if values have to be divided by 1000
+	 * @param dynamicMeasureName
+	 *            the name of the dynamic measure the value is booked to,
+	 *            <tt>null</tt> to book to the measure itself
+	 * @param dynamicMeasureValue
+	 *            the value of the dynamic measure
+	 */
+	MeasureBinding(MonitorMeasure measure, PerformanceMeasureKey key, PerformanceInstance instance, boolean scaled,
+			String dynamicMeasureName, String dynamicMeasureValue) {
+		this.measure = measure;
+		this.key = key;
+		this.instance = instance;
+		this.scaled = scaled;
+		this.pattern = InstanceNameCache.isPattern(key.getInstanceName());
+		this.dynamicMeasureName = dynamicMeasureName;
+		this.dynamicMeasureValue = dynamicMeasureValue;
+		this.expansion = null;
+		this.expansionVersion = -1;
+	}
+
+	private MeasureBinding(MeasureBinding binding, MeasureBinding[] expansion, int expansionVersion) {
+		this.measure = binding.measure;
+		this.key = binding.key;
+		this.instance = binding.instance;
+		this.scaled = binding.scaled;
+		this.pattern = binding.pattern;
+		this.dynamicMeasureName = binding.dynamicMeasureName;
+		this.dynamicMeasureValue = binding.dynamicMeasureValue;
+		this.expansion = expansion;
+		this.expansionVersion = expansionVersion;
+	}
+
+	MonitorMeasure getMeasure() {
+		return measure;
+	}
+
+	PerformanceMeasureKey getKey() {
+		return key;
+	}
+
+	PerformanceInstance getInstance() {
+		return instance;
+	}
+
+	boolean isScaled() {
+		return scaled;
+	}
+
+	/**
+	 * @return the name of the dynamic measure the value is booked to,
+	 *         <tt>null</tt> if it is booked to the subscribed measure
+	 */
+	String getDynamicMeasureName() {
+		return dynamicMeasureName;
+	}
+
+	String getDynamicMeasureValue() {
+		return dynamicMeasureValue;
+	}
+
+	/**
+	 * @return if the measure is expanded to the bindings of several counters
+	 */
+	boolean isExpanded() {
+		return expansion != null;
+	}
+
+	/**
+	 * @return if the instance name of the measure is a pattern, which is
+	 *         expanded to the bindings of the matching instances
+	 */
+	boolean isPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return the bindings of the expanded counters
+	 */
+	MeasureBinding[] getExpansion() {
+		return expansion;
+	}
+
+	/**
+	 * @return the version of the instance names a pattern was expanded with
+	 */
+	int getExpansionVersion() {
+		return expansionVersion;
+	}
+
+	/**
+	 * @param expansion
+	 *            the bindings of the expanded counters
+	 * @param expansionVersion
+	 *            the version of the instance names a pattern was expanded
+	 *            with
+	 * @return a binding of the same measure with the given expansion
+	 */
+	MeasureBinding withExpansion(MeasureBinding[] expansion, int expansionVersion) {
+		return new MeasureBinding(this, expansion, expansionVersion);
+	}
+
+	@Override
+	public String toString() {
+		return key.getObjectName() + "/" + key.getCounterName() + "(" + key.getInstanceName() + ")";
+	}
+}
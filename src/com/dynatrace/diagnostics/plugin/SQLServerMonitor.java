@@ -41,8 +41,7 @@ public class SQLServerMonitor extends WindowsPerformanceMonitor implements Monit
 	 */
 	@Override
 	public Status setup(MonitorEnvironment env) throws Exception {
-		super.setup(env);
-		return new Status(Status.StatusCode.Success);
+		return super.setup(env);
 	}
 
 	/**
@@ -89,8 +88,7 @@ public class SQLServerMonitor extends WindowsPerformanceMonitor implements Monit
 
 		}
 		*/
-		super.execute(env);
-		return new Status(Status.StatusCode.Success);
+		return super.execute(env);
 	}
 
 	/**
@@ -1,8 +1,15 @@
 package com.dynatrace.diagnostics.plugin;
 
+import java.io.IOException;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,13 +17,21 @@ import com.dynatrace.diagnostics.pdk.Monitor;
 import com.dynatrace.diagnostics.pdk.MonitorEnvironment;
 import com.dynatrace.diagnostics.pdk.MonitorMeasure;
 import com.dynatrace.diagnostics.pdk.Status;
+import com.dynatrace.diagnostics.plugin.perflib.HistoryStore;
 import com.dynatrace.diagnostics.plugin.perflib.PerformanceFactory;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.InvalidOperationException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.LatencyHistogram;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMeasureKey;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryBudget;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryStatistics;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.SampleAggregator;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.SampleListener;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter.PerformanceInstance;
 
 /**
  * Class for the Windows Performance Monitor Plugin which queries performance
@@ -27,36 +42,655 @@ public class WindowsPerformanceMonitor implements Monitor {
 
 	private static final String TRANSLATION = "translation";
 	private static final String INSTANCE_NAME = "instance";
+	private static final String INSTANCE_REFRESH_INTERVAL = "instanceRefreshInterval";
+	private static final long DEFAULT_INSTANCE_REFRESH_INTERVAL = 300;
+	private static final String DISCOVERY_INTERVAL = "discoveryInterval";
+	private static final String SHARED_SESSION = "sharedSession";
+	private static final String SAMPLING_INTERVAL = "samplingInterval";
+	private static final String QUERY_TIMEOUT = "queryTimeout";
+	private static final String RAW_COUNTERS = "rawCounters";
+	private static final String AGGREGATED_SAMPLES = "aggregatedSamples";
+	private static final String HISTORY_RETENTION = "historyRetention";
+	// a background sample is outdated after this number of sampling intervals
+	private static final long STALE_SAMPLE_INTERVALS = 2;
+	private static final long DEFAULT_DISCOVERY_INTERVAL = 600;
+	private static final String DYNAMIC_MEASURE_INSTANCE = "Instance";
+	private static final String DYNAMIC_MEASURE_SQL_INSTANCE = "SQL Instance";
+	private static final String DYNAMIC_MEASURE_STATISTIC = "Statistic";
+	private static final String STATISTIC_MINIMUM = "min";
+	private static final String STATISTIC_MAXIMUM = "max";
+	private static final String STATISTIC_AVERAGE = "avg";
+	private static final String STATISTIC_PERCENTILE = "p";
+	private static final int STATISTIC_COUNT = 4;
+	// the aggregator keeps two ring buffers of this size per counter
+	private static final long MAX_AGGREGATED_SAMPLES = 600;
+
+	private static final String ALL_INSTANCES = "all";
+	private static final String DEFAULT_INSTANCE = "MSSQLSERVER";
+	private static final String DEFAULT_INSTANCE_PREFIX = "SQLServer:";
+	private static final String NAMED_INSTANCE_PREFIX = "MSSQL$";
 	
 	private static final String MEASURE_CONFIG_STRING_OBJECT_NAME = "objectName";
 	private static final String MEASURE_CONFIG_STRING_COUNTER_NAME = "counterName";
 	private static final String MEASURE_CONFIG_STRING_INSTANCE_NAME = "instanceName";
 	private static final String MEASURE_CONFIG_STRING_SCALE = "scale";
 
+	// the measures of the plugin itself, they are not bound to counters
+	private static final String HEALTH_METRIC_GROUP = "Monitor Health";
+	private static final String HEALTH_SETUP_TIME = "Setup Time";
+	private static final String HEALTH_EXECUTION_TIME = "Execution Time";
+	private static final String HEALTH_REQUERY_TIME = "Requery Time";
+	private static final String HEALTH_REQUERY_TIME_P99 = "Requery Time p99";
+	private static final String HEALTH_RETRIEVAL_TIME = "Retrieval Time";
+	private static final String HEALTH_RETRIEVAL_TIME_P99 = "Retrieval Time p99";
+	private static final String HEALTH_NATIVE_CALLS = "Native Calls";
+	private static final String HEALTH_FAILED_COUNTERS = "Failed Counters";
+	private static final String HEALTH_SKIPPED_COUNTERS = "Skipped Counters";
+	private static final String HEALTH_RESULT_BYTES = "Result Bytes";
+	private static final double HEALTH_PERCENTILE = 99;
+
 	private static final Logger log = Logger.getLogger(WindowsPerformanceMonitor.class.getName());
 	
 	private PerformanceMonitor perfmon;
-	private String instancePrefix;
+	// the object name prefixes of the monitored SQL Server instances
+	private String[] instancePrefixes;
+	// the names of the instances for the dynamic measures, null if a single
+	// instance is monitored and values are booked to the measures directly
+	private String[] instanceLabels;
+	// if the SQL Server instances are discovered, instead of configured
+	private boolean discovery;
+	private long discoveryInterval;
+	private long discoveryTime;
+	// the interval in milliseconds of the background sampling, 0 if the
+	// counters are queried by execute
+	private long samplingInterval;
+	private MeasureBinding[] bindings = new MeasureBinding[0];
+	private final QuerySnapshot snapshot = new QuerySnapshot();
+	private final ExecutionBudget budget = new ExecutionBudget();
+	// aggregates the background samples between two executions, null if
+	// only the latest sample is booked
+	private SampleAggregator aggregator;
+	// appends the samples to the local history, null if not recorded
+	private HistoryStore.Recorder recorder;
+	// the values of the dynamic measure Statistic, created with the aggregator
+	private String[] statisticNames;
+	private final SampleAggregator.Statistics statistics = new SampleAggregator.Statistics();
+	private InstanceNameCache instanceNames = new InstanceNameCache(DEFAULT_INSTANCE_REFRESH_INTERVAL * 1000);
+	// the cost of the collection for the health measures, the latencies of
+	// the previous execution are subtracted from the cumulative histograms
+	private final QueryStatistics queryStatistics = new QueryStatistics();
+	private final LatencyHistogram requeryLatencies = new LatencyHistogram();
+	private final LatencyHistogram retrievalLatencies = new LatencyHistogram();
+	private final LatencyHistogram intervalLatencies = new LatencyHistogram();
+	private long setupNanos;
+	private long executionNanos;
+	// the subscribed health measures, booked at the end of an execution
+	private final List<MonitorMeasure> healthMeasures = new ArrayList<MonitorMeasure>();
+	private double requeryPercentile;
+	private double retrievalPercentile;
 
-	private PerformanceObject addMetric(MonitorMeasure measure) throws InvalidOperationException,
-			PerformanceCounterException {
-		
-		String objectName = instancePrefix + measure.getParameter(MEASURE_CONFIG_STRING_OBJECT_NAME);
-		String counterName = measure.getParameter(MEASURE_CONFIG_STRING_COUNTER_NAME);
-		String instanceName = measure.getParameter(MEASURE_CONFIG_STRING_INSTANCE_NAME);
-		String scale = measure.getParameter(MEASURE_CONFIG_STRING_SCALE);
-		
+	/**
+	 * The budget of an execution, which is exhausted when the schedule
+	 * timeout stops the execution or the configured query timeout elapsed.
+	 */
+	private static final class ExecutionBudget implements QueryBudget {
+		private MonitorEnvironment env;
+		// the query timeout in milliseconds, 0 for none
+		private long timeout;
+		private long start;
+
+		void start(MonitorEnvironment env) {
+			this.env = env;
+			this.start = System.nanoTime();
+		}
+
+		@Override
+		public boolean isExhausted() {
+			return env.isStopped() || (timeout > 0 && System.nanoTime() - start > timeout * 1000000L);
+		}
+	}
+
+	private PerformanceObject addMetric(String objectName, String counterName, String instanceName, boolean scaled)
+			throws InvalidOperationException, PerformanceCounterException {
 		PerformanceObject object = new PerformanceObject(objectName, counterName,
-				scale != null && scale.equals("1000")
+				scaled
 						? PerformanceCounter.SCALE_1000
 						: PerformanceCounter.NO_SCALE,
-				instanceName != null && !instanceName.isEmpty()
-						? instanceName
-						: null);
+				instanceName);
 		
 		perfmon.addQuery(object);				
 		return object;
 	}
+
+	/**
+	 * Compiles the measure to a binding. The counter of the measure is added
+	 * to the query if it is not part of it yet. If the instance name is a
+	 * pattern, the binding is expanded to the matching instances. If several
+	 * SQL Server instances are monitored, the binding is expanded to one
+	 * binding per SQL Server instance, which is booked to a dynamic measure.
+	 * 
+	 * @param measure
+	 *            the subscribed measure
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the binding of the measure
+	 * @throws PerformanceCounterException
+	 *             if the counter could not be added to the query
+	 */
+	private MeasureBinding bind(MonitorMeasure measure, long now) throws InvalidOperationException, PerformanceCounterException {
+		if (instanceLabels == null) {
+			return bind(measure, instancePrefixes[0], null, now);
+		}
+		MeasureBinding binding = new MeasureBinding(measure, new PerformanceMeasureKey(
+				measure.getParameter(MEASURE_CONFIG_STRING_OBJECT_NAME),
+				measure.getParameter(MEASURE_CONFIG_STRING_COUNTER_NAME), null), null, false, null, null);
+		MeasureBinding[] expansion = new MeasureBinding[instancePrefixes.length];
+		for (int i = 0; i < instancePrefixes.length; i++) {
+			expansion[i] = bind(measure, instancePrefixes[i], instanceLabels[i], now);
+		}
+		return binding.withExpansion(expansion, 0);
+	}
+
+	/**
+	 * Compiles the measure to the binding of one SQL Server instance.
+	 * 
+	 * @param instancePrefix
+	 *            the object name prefix of the SQL Server instance
+	 * @param instanceLabel
+	 *            the value of the dynamic measure of the SQL Server instance,
+	 *            <tt>null</tt> to book to the measure itself
+	 */
+	private MeasureBinding bind(MonitorMeasure measure, String instancePrefix, String instanceLabel, long now)
+			throws InvalidOperationException, PerformanceCounterException {
+		String objectName = instancePrefix + measure.getParameter(MEASURE_CONFIG_STRING_OBJECT_NAME);
+		String counterName = measure.getParameter(MEASURE_CONFIG_STRING_COUNTER_NAME);
+		String instanceName = measure.getParameter(MEASURE_CONFIG_STRING_INSTANCE_NAME);
+		String scale = measure.getParameter(MEASURE_CONFIG_STRING_SCALE);
+		if (instanceName != null && instanceName.isEmpty()) {
+			instanceName = null;
+		}
+		// workaround for windows bug in e.g. "LogicalDisc Free Percentage" measure: 
+		// we get scale factor "NO_SCALE", but the value is multiplied by 1000.
+		// the scale indicator of the measure subscription is used for both.
+		boolean scaled = scale != null && scale.equals("1000");
+
+		String dynamicMeasureName = instanceLabel == null ? null : DYNAMIC_MEASURE_SQL_INSTANCE;
+		MeasureBinding binding;
+		if (InstanceNameCache.isPattern(instanceName)) {
+			binding = new MeasureBinding(measure, new PerformanceMeasureKey(objectName, counterName, instanceName),
+					null, scaled, dynamicMeasureName, instanceLabel);
+			binding = expand(binding, now);
+		} else {
+			binding = bind(measure, objectName, counterName, instanceName, scaled, dynamicMeasureName, instanceLabel);
+		}
+		return binding;
+	}
+
+	private MeasureBinding bind(MonitorMeasure measure, String objectName, String counterName, String instanceName,
+			boolean scaled, String dynamicMeasureName, String dynamicMeasureValue) throws InvalidOperationException,
+			PerformanceCounterException {
+		int counterId = perfmon.getCounterId(objectName, counterName, instanceName);
+		if (counterId < 0) {
+			addMetric(objectName, counterName, instanceName, scaled);
+			counterId = perfmon.getCounterId(objectName, counterName, instanceName);
+		}
+		PerformanceInstance instance = counterId < 0 ? null : perfmon.getInstance(counterId);
+		return new MeasureBinding(measure, new PerformanceMeasureKey(objectName, counterName, instanceName, counterId),
+				instance, scaled, dynamicMeasureName, dynamicMeasureValue);
+	}
+
+	/**
+	 * Binds the instances which match the pattern of the binding, if the
+	 * instances of the object changed since the last expansion. Bindings of
+	 * instances which still exist are kept, counters of new instances are
+	 * added to the query. The instance names are enumerated at most once per
+	 * refresh interval. If the pattern belongs to one of several SQL Server
+	 * instances, the value of the dynamic measure is prefixed with its name.
+	 * 
+	 * @param binding
+	 *            the binding of a measure with an instance name pattern
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the binding with the current expansion, the given binding if
+	 *         the instances did not change
+	 * @throws PerformanceCounterException
+	 *             if the instances could not be retrieved
+	 */
+	private MeasureBinding expand(MeasureBinding binding, long now) throws InvalidOperationException,
+			PerformanceCounterException {
+		PerformanceMeasureKey key = binding.getKey();
+		int version = instanceNames.refresh(perfmon, key.getObjectName(), now);
+		if (binding.getExpansionVersion() == version) {
+			return binding;
+		}
+		Map<String, MeasureBinding> previous = new HashMap<String, MeasureBinding>();
+		if (binding.isExpanded()) {
+			for (MeasureBinding instanceBinding : binding.getExpansion()) {
+				previous.put(instanceBinding.getKey().getInstanceName(), instanceBinding);
+			}
+		}
+		String pattern = key.getInstanceName();
+		String instanceLabel = binding.getDynamicMeasureValue();
+		String[] names = instanceNames.getInstanceNames(key.getObjectName());
+		MeasureBinding[] expansion = new MeasureBinding[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (!InstanceNameCache.matches(pattern, name)) {
+				continue;
+			}
+			MeasureBinding instanceBinding = previous.get(name);
+			if (instanceBinding == null || instanceBinding.getInstance() == null) {
+				instanceBinding = bind(binding.getMeasure(), key.getObjectName(), key.getCounterName(), name,
+						binding.isScaled(), DYNAMIC_MEASURE_INSTANCE, instanceLabel == null
+								? name
+								: instanceLabel + "/" + name);
+			}
+			expansion[count++] = instanceBinding;
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Expanded measure " + binding + " to " + count + " instances");
+		}
+		return binding.withExpansion(Arrays.copyOf(expansion, count), version);
+	}
+
+	/**
+	 * Checks the value of a binding in the current snapshot and logs the
+	 * first failure of a counter.
+	 * 
+	 * @return if the snapshot contains a valid value for the binding
+	 */
+	private boolean isValid(MeasureBinding binding) {
+		PerformanceInstance instance = binding.getInstance();
+		int slot = instance == null ? -1 : instance.getHandle();
+		if (snapshot.isValid(slot)) {
+			return true;
+		}
+		if (slot >= 0 && slot < snapshot.size() && snapshot.getErrorCode(slot) == QuerySnapshot.ERROR_SKIPPED) {
+			// no failure, the counter is retrieved first by the next execution
+			return false;
+		}
+		if (instance == null || instance.isDoLog()) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.warning("Failed to retrieve measurement for measure " + binding);
+			}
+		}
+		if (instance != null) {
+			instance.setDoLog(false);
+		}
+		return false;
+	}
+
+	/**
+	 * Books the value of a binding from the current snapshot, the values of
+	 * an expanded binding are booked to dynamic measures.
+	 * 
+	 * @return <tt>false</tt> if a value could not be retrieved
+	 */
+	private boolean book(MonitorEnvironment env, MeasureBinding binding) {
+		if (binding.isExpanded()) {
+			boolean booked = true;
+			for (MeasureBinding expandedBinding : binding.getExpansion()) {
+				booked &= book(env, expandedBinding);
+			}
+			return booked;
+		}
+		MonitorMeasure measure = binding.getMeasure();
+		if (binding.getDynamicMeasureName() != null) {
+			measure = env.createDynamicMeasure(measure, binding.getDynamicMeasureName(),
+					binding.getDynamicMeasureValue());
+		}
+		if (aggregator != null) {
+			bookStatistics(env, binding, measure);
+		}
+		if (!isValid(binding)) {
+			return false;
+		}
+		double value = getValue(binding);
+
+		if (log.isLoggable(Level.FINE))
+			log.fine("Measurement: " + measure + " = " + value);
+
+		measure.setValue(value);
+		return true;
+	}
+
+	/**
+	 * The aggregator only records the slots of the counters of the monitor,
+	 * the samples of a shared session contain the counters of all its
+	 * subscribers.
+	 * 
+	 * @return a listener which passes each sample to the aggregator and the
+	 *         recorder, <tt>null</tt> if there is neither of them
+	 */
+	private static SampleListener createSampleListener(final PerformanceMonitor monitor,
+			final SampleAggregator aggregator, final SampleListener recorder) {
+		if (aggregator == null) {
+			return recorder;
+		}
+		return new SampleListener() {
+			private int[] counterIds;
+
+			@Override
+			public void sampled(QuerySnapshot snapshot) {
+				counterIds = monitor.getSlotCounterIds(counterIds);
+				aggregator.sampled(snapshot, counterIds);
+				if (recorder != null) {
+					recorder.sampled(snapshot);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Books the minimum, maximum, average and percentile of the samples taken
+	 * since the last execution to the dynamic measure Statistic of the
+	 * measure the binding is booked to. If that is a dynamic measure of an
+	 * instance, Statistic is a second dimension next to the instance.
+	 */
+	private void bookStatistics(MonitorEnvironment env, MeasureBinding binding, MonitorMeasure measure) {
+		PerformanceInstance instance = binding.getInstance();
+		if (instance == null || !aggregator.aggregate(instance.getHandle(), statistics)) {
+			return;
+		}
+		double scale = binding.isScaled() ? 0.001 : 1;
+		bookStatistic(env, measure, statisticNames[0], statistics.getMinimum() * scale);
+		bookStatistic(env, measure, statisticNames[1], statistics.getMaximum() * scale);
+		bookStatistic(env, measure, statisticNames[2], statistics.getAverage() * scale);
+		bookStatistic(env, measure, statisticNames[3], statistics.getPercentile() * scale);
+	}
+
+	private void bookStatistic(MonitorEnvironment env, MonitorMeasure measure, String statisticName,
+			double statistic) {
+		env.createDynamicMeasure(measure, DYNAMIC_MEASURE_STATISTIC, statisticName).setValue(statistic);
+	}
+
+	/**
+	 * Expands the instance name patterns of a binding again, if the
+	 * instances of their objects changed. A binding whose expansion changed
+	 * is replaced in the array, the binding of several SQL Server instances
+	 * is replaced if the expansion of one of its instances changed.
+	 * 
+	 * @param bindings
+	 *            the bindings of the measures
+	 * @param index
+	 *            the index of the binding
+	 * @return <tt>false</tt> if the instances of a pattern could not be
+	 *         retrieved
+	 */
+	private boolean refreshPatterns(MeasureBinding[] bindings, int index, long now) throws InvalidOperationException {
+		MeasureBinding binding = bindings[index];
+		if (binding.isPattern()) {
+			MeasureBinding refreshedBinding = refreshPattern(binding, now);
+			if (refreshedBinding == null) {
+				return false;
+			}
+			bindings[index] = refreshedBinding;
+			return true;
+		}
+		if (!binding.isExpanded()) {
+			return true;
+		}
+		boolean refreshed = true;
+		MeasureBinding[] expansion = binding.getExpansion();
+		MeasureBinding[] refreshedExpansion = expansion;
+		for (int i = 0; i < expansion.length; i++) {
+			if (!expansion[i].isPattern()) {
+				continue;
+			}
+			MeasureBinding refreshedBinding = refreshPattern(expansion[i], now);
+			if (refreshedBinding == null) {
+				refreshed = false;
+			} else if (refreshedBinding != expansion[i]) {
+				if (refreshedExpansion == expansion) {
+					refreshedExpansion = expansion.clone();
+				}
+				refreshedExpansion[i] = refreshedBinding;
+			}
+		}
+		if (refreshedExpansion != expansion) {
+			bindings[index] = binding.withExpansion(refreshedExpansion, binding.getExpansionVersion());
+		}
+		return refreshed;
+	}
+
+	/**
+	 * @return the binding of the pattern with the current expansion,
+	 *         <tt>null</tt> if the instances could not be retrieved
+	 */
+	private MeasureBinding refreshPattern(MeasureBinding binding, long now) throws InvalidOperationException {
+		try {
+			return expand(binding, now);
+		} catch (PerformanceCounterException ex) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "enumerating the instances of measure " + binding + " caused an exception", ex);
+			}
+			return null;
+		}
+	}
+
+	private double getValue(MeasureBinding binding) {
+		double value = snapshot.getValue(binding.getInstance().getHandle());
+		if (binding.isScaled()) {
+			value *= 0.001;
+		}
+		return value;
+	}
+
+	/**
+	 * @param instance
+	 *            the name of a SQL Server instance
+	 * @return the prefix of the performance objects of the instance
+	 */
+	private static String getInstancePrefix(String instance) {
+		if (instance.equalsIgnoreCase(DEFAULT_INSTANCE)) {
+			return DEFAULT_INSTANCE_PREFIX;
+		}
+		return NAMED_INSTANCE_PREFIX + instance + ":";
+	}
+
+	/**
+	 * Finds the SQL Server instances of the host by the prefixes of its
+	 * performance objects, <tt>SQLServer:</tt> for the default instance and
+	 * <tt>MSSQL$&lt;name&gt;:</tt> for named instances.
+	 * 
+	 * @return the names of the instances, sorted
+	 */
+	private String[] discoverInstances() throws InvalidOperationException, PerformanceCounterException {
+		Set<String> instances = new TreeSet<String>();
+		for (String objectName : perfmon.getObjectNames()) {
+			if (objectName.startsWith(DEFAULT_INSTANCE_PREFIX)) {
+				instances.add(DEFAULT_INSTANCE);
+			} else if (objectName.startsWith(NAMED_INSTANCE_PREFIX)) {
+				int end = objectName.indexOf(':');
+				if (end > NAMED_INSTANCE_PREFIX.length()) {
+					instances.add(objectName.substring(NAMED_INSTANCE_PREFIX.length(), end));
+				}
+			}
+		}
+		return instances.toArray(new String[instances.size()]);
+	}
+
+	/**
+	 * Discovers the SQL Server instances of the host again. If they changed,
+	 * the bindings are expanded to the current instances: the bindings of
+	 * instances which still exist are kept, the counters of new instances are
+	 * added to the query. If an instance was removed, the query is cleared
+	 * and all measures are bound again, since the counters of the removed
+	 * instance would fail with every query. A shared session removes the
+	 * counters which are not bound again by any of its subscribers.
+	 */
+	private void rediscover(long now) throws InvalidOperationException, PerformanceCounterException {
+		String[] instances = discoverInstances();
+		if (Arrays.equals(instances, instanceLabels)) {
+			return;
+		}
+		if (log.isLoggable(Level.INFO)) {
+			log.info("SQL Server instances changed from " + Arrays.toString(instanceLabels) + " to "
+					+ Arrays.toString(instances));
+		}
+		boolean removed = false;
+		for (String label : instanceLabels) {
+			if (Arrays.binarySearch(instances, label) < 0) {
+				removed = true;
+				break;
+			}
+		}
+		if (removed) {
+			// the instances stay unchanged if the query cannot be cleared
+			perfmon.clearQuery();
+		}
+		String[] prefixes = new String[instances.length];
+		for (int i = 0; i < instances.length; i++) {
+			prefixes[i] = getInstancePrefix(instances[i]);
+		}
+		instancePrefixes = prefixes;
+		instanceLabels = instances;
+
+		if (removed) {
+			rebind(now);
+			return;
+		}
+		for (int i = 0; i < bindings.length; i++) {
+			MeasureBinding binding = bindings[i];
+			if (binding == null) {
+				continue;
+			}
+			Map<String, MeasureBinding> previous = new HashMap<String, MeasureBinding>();
+			for (MeasureBinding instanceBinding : binding.getExpansion()) {
+				previous.put(instanceBinding.getDynamicMeasureValue(), instanceBinding);
+			}
+			MeasureBinding[] expansion = new MeasureBinding[instances.length];
+			try {
+				for (int j = 0; j < instances.length; j++) {
+					expansion[j] = previous.get(instances[j]);
+					if (expansion[j] == null) {
+						expansion[j] = bind(binding.getMeasure(), prefixes[j], instances[j], now);
+					}
+				}
+				bindings[i] = binding.withExpansion(expansion, 0);
+			} catch (PerformanceCounterException ex) {
+				// bound again by the execution
+				bindings[i] = null;
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "registering of perfmon measure " + binding + " caused an exception", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binds the measures of all bindings again after the query was cleared.
+	 * Measures which cannot be bound are bound again by the execution.
+	 */
+	private void rebind(long now) throws InvalidOperationException {
+		for (int i = 0; i < bindings.length; i++) {
+			MeasureBinding binding = bindings[i];
+			if (binding == null) {
+				continue;
+			}
+			try {
+				bindings[i] = bind(binding.getMeasure(), now);
+			} catch (PerformanceCounterException ex) {
+				bindings[i] = null;
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "registering of perfmon measure " + binding + " caused an exception", ex);
+				}
+			}
+		}
+	}
+
+	private static boolean isHealthMeasure(MonitorMeasure measure) {
+		return HEALTH_METRIC_GROUP.equals(measure.getMetricGroupName());
+	}
+
+	/**
+	 * Books the health measures among the measures, the cost of the query is
+	 * booked even if its values failed or are outdated.
+	 * 
+	 * @param executionStart
+	 *            the nano time the execution started
+	 * @return if a health measure was booked
+	 */
+	private boolean bookHealthMeasures(Collection<MonitorMeasure> measures, long executionStart) {
+		boolean booked = false;
+		boolean collected = false;
+		for (MonitorMeasure measure : measures) {
+			if (!isHealthMeasure(measure)) {
+				continue;
+			}
+			if (!collected) {
+				executionNanos = System.nanoTime() - executionStart;
+				collectHealth();
+				collected = true;
+			}
+			if (bookHealth(measure)) {
+				booked = true;
+			}
+		}
+		return booked;
+	}
+
+	/**
+	 * Fetches the statistics of the query for the health measures, the
+	 * percentiles cover the queries since the previous execution.
+	 */
+	private void collectHealth() {
+		perfmon.getStatistics(queryStatistics);
+		requeryPercentile = getIntervalPercentile(queryStatistics.getRequeryLatencies(), requeryLatencies);
+		retrievalPercentile = getIntervalPercentile(queryStatistics.getRetrievalLatencies(), retrievalLatencies);
+	}
+
+	private double getIntervalPercentile(LatencyHistogram current, LatencyHistogram previous) {
+		intervalLatencies.set(current);
+		intervalLatencies.subtract(previous);
+		previous.set(current);
+		return toMillis(intervalLatencies.getPercentile(HEALTH_PERCENTILE));
+	}
+
+	/**
+	 * Books a measure of the metric group {@link #HEALTH_METRIC_GROUP}.
+	 * 
+	 * @return <tt>false</tt> if the metric is unknown
+	 */
+	private boolean bookHealth(MonitorMeasure measure) {
+		String metric = measure.getMetricName();
+		double value;
+		if (HEALTH_SETUP_TIME.equals(metric)) {
+			value = toMillis(setupNanos);
+		} else if (HEALTH_EXECUTION_TIME.equals(metric)) {
+			value = toMillis(executionNanos);
+		} else if (HEALTH_REQUERY_TIME.equals(metric)) {
+			value = toMillis(queryStatistics.getRequeryNanos());
+		} else if (HEALTH_REQUERY_TIME_P99.equals(metric)) {
+			value = requeryPercentile;
+		} else if (HEALTH_RETRIEVAL_TIME.equals(metric)) {
+			value = toMillis(queryStatistics.getRetrievalNanos());
+		} else if (HEALTH_RETRIEVAL_TIME_P99.equals(metric)) {
+			value = retrievalPercentile;
+		} else if (HEALTH_NATIVE_CALLS.equals(metric)) {
+			value = queryStatistics.getNativeCalls();
+		} else if (HEALTH_FAILED_COUNTERS.equals(metric)) {
+			value = queryStatistics.getFailedCounters();
+		} else if (HEALTH_SKIPPED_COUNTERS.equals(metric)) {
+			value = queryStatistics.getSkippedCounters();
+		} else if (HEALTH_RESULT_BYTES.equals(metric)) {
+			value = queryStatistics.getResultBytes();
+		} else {
+			return false;
+		}
+		measure.setValue(value);
+		return true;
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private String getMeasureName(MonitorMeasure measure) {
+		return (instanceLabels == null ? instancePrefixes[0] : "") + measure.getParameter(MEASURE_CONFIG_STRING_OBJECT_NAME) + "/"
+				+ measure.getParameter(MEASURE_CONFIG_STRING_COUNTER_NAME) + "("
+				+ measure.getParameter(MEASURE_CONFIG_STRING_INSTANCE_NAME) + ")";
+	}
 	
 
 	/**
@@ -71,140 +705,277 @@ public class WindowsPerformanceMonitor implements Monitor {
 	 */
 	@Override
     public Status setup(MonitorEnvironment env) throws Exception {
-		try {
-			this.perfmon = PerformanceFactory.createPerformanceMonitor();
-		} catch (UnsupportedOperationException ex) {
-			return new Status(Status.StatusCode.ErrorInfrastructure, "This collector does not support windows monitors", "This collector does not support windows monitors", ex);
-		}
-
+		long setupStart = System.nanoTime();
 		boolean translation;
 		String hostname;
+		String instanceConfig;
+		long refreshInterval;
+		Long configuredDiscoveryInterval;
+		boolean sharedSession;
+		boolean rawCounters;
+		long aggregatedSamples;
+		long historyRetention;
 
 		try {
 			translation = env.getConfigBoolean(TRANSLATION);
 			hostname = env.getHost().getAddress();
-			instancePrefix = env.getConfigString(INSTANCE_NAME).toUpperCase();
+			instanceConfig = env.getConfigString(INSTANCE_NAME).trim().toUpperCase();
+			Long interval = env.getConfigLong(INSTANCE_REFRESH_INTERVAL);
+			refreshInterval = interval == null || interval.longValue() < 0
+					? DEFAULT_INSTANCE_REFRESH_INTERVAL
+					: interval.longValue();
+			configuredDiscoveryInterval = env.getConfigLong(DISCOVERY_INTERVAL);
+			Boolean shared = env.getConfigBoolean(SHARED_SESSION);
+			sharedSession = shared == null || shared.booleanValue();
+			Long sampling = env.getConfigLong(SAMPLING_INTERVAL);
+			samplingInterval = sampling == null || sampling.longValue() < 0 ? 0 : sampling.longValue() * 1000;
+			Long timeout = env.getConfigLong(QUERY_TIMEOUT);
+			budget.timeout = timeout == null || timeout.longValue() < 0 ? 0 : timeout.longValue() * 1000;
+			Boolean raw = env.getConfigBoolean(RAW_COUNTERS);
+			rawCounters = raw != null && raw.booleanValue();
+			Long aggregated = env.getConfigLong(AGGREGATED_SAMPLES);
+			aggregatedSamples = aggregated == null || aggregated.longValue() < 0 ? 0 : aggregated.longValue();
+			Long retention = env.getConfigLong(HISTORY_RETENTION);
+			historyRetention = retention == null || retention.longValue() < 0 ? 0 : retention.longValue() * 3600 * 1000;
 		} catch (NullPointerException ex) {
 			return new Status(Status.StatusCode.ErrorInternal, "Missing configuration property", "Missing configuration property", ex);
 		} catch (InvalidParameterException ipe) {
 			return new Status(Status.StatusCode.ErrorInternal, "Invalid configuration property", "Invalid configuration property", ipe);
 		}
-		if (instancePrefix.equals(null) || instancePrefix.equals("")) {
-			instancePrefix = "SQLServer:";
-		}
-		else {
-			instancePrefix = "MSSQL$" + instancePrefix + ":";
-		}
+		instanceNames = new InstanceNameCache(refreshInterval * 1000);
 		try {
-			perfmon.init(hostname, translation);
+			if (samplingInterval > 0) {
+				// the sampler thread belongs to the shared connection of the host
+				this.perfmon = PerformanceFactory.acquirePerformanceMonitor(hostname, translation,
+						PerformanceFactory.DEFAULT_MAX_SAMPLE_AGE, samplingInterval);
+			} else if (sharedSession) {
+				// monitors of the same host share the connection and the requery
+				this.perfmon = PerformanceFactory.acquirePerformanceMonitor(hostname, translation);
+			} else {
+				this.perfmon = PerformanceFactory.createPerformanceMonitor();
+				perfmon.init(hostname, translation);
+			}
+		} catch (UnsupportedOperationException ex) {
+			return new Status(Status.StatusCode.ErrorInfrastructure, "This collector does not support windows monitors", "This collector does not support windows monitors", ex);
 		} catch (Exception ex) {
 			return new Status(Status.StatusCode.ErrorInfrastructure, "Connection problem", "Connecting to the host '" + hostname + "' caused exception: " + ex.getMessage(), ex);
 		}
+		if (rawCounters) {
+			perfmon.setRawMode(true);
+		}
+		if (aggregatedSamples > 0) {
+			if (samplingInterval > 0) {
+				if (aggregatedSamples > MAX_AGGREGATED_SAMPLES) {
+					aggregatedSamples = MAX_AGGREGATED_SAMPLES;
+					if (log.isLoggable(Level.INFO)) {
+						log.info("The percentile covers the latest " + MAX_AGGREGATED_SAMPLES + " samples");
+					}
+				}
+				aggregator = new SampleAggregator((int) aggregatedSamples);
+				statisticNames = new String[STATISTIC_COUNT];
+				statisticNames[0] = STATISTIC_MINIMUM;
+				statisticNames[1] = STATISTIC_MAXIMUM;
+				statisticNames[2] = STATISTIC_AVERAGE;
+				statisticNames[3] = STATISTIC_PERCENTILE + aggregator.getPercentile();
+			} else if (log.isLoggable(Level.INFO)) {
+				log.info("The samples are only aggregated with background sampling");
+			}
+		}
+		recorder = null;
+		if (historyRetention > 0) {
+			try {
+				recorder = HistoryStore.getDefault(historyRetention).createRecorder(perfmon);
+			} catch (IOException ex) {
+				// the values are still booked
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "opening the history of host " + hostname + " caused an exception", ex);
+				}
+			}
+		}
+		perfmon.setSampleListener(createSampleListener(perfmon, aggregator, recorder));
+
+		String[] instances;
+		discovery = instanceConfig.equalsIgnoreCase(ALL_INSTANCES);
+		if (discovery) {
+			discoveryInterval = (configuredDiscoveryInterval == null || configuredDiscoveryInterval.longValue() < 0
+					? DEFAULT_DISCOVERY_INTERVAL
+					: configuredDiscoveryInterval.longValue()) * 1000;
+			// the object names are enumerated again for each discovery
+			perfmon.setCatalogTimeToLive(discoveryInterval);
+			discoveryTime = System.currentTimeMillis();
+			try {
+				instances = discoverInstances();
+			} catch (PerformanceCounterException ex) {
+				return new Status(Status.StatusCode.ErrorInfrastructure, "Enumerating the SQL Server instances failed", "Enumerating the SQL Server instances of the host '" + hostname + "' caused exception: " + ex.getMessage(), ex);
+			}
+		} else {
+			instances = instanceConfig.split(",");
+		}
+		instancePrefixes = new String[instances.length];
+		for (int i = 0; i < instances.length; i++) {
+			instances[i] = instances[i].trim();
+			if (instances[i].length() == 0) {
+				instances[i] = DEFAULT_INSTANCE;
+			}
+			instancePrefixes[i] = getInstancePrefix(instances[i]);
+		}
+		// the values of a single instance are booked to the measures directly
+		instanceLabels = discovery || instances.length > 1 ? instances : null;
 
 		Collection<MonitorMeasure> measures = env.getMonitorMeasures();
 		boolean partial = false;
+		bindings = new MeasureBinding[measures.size()];
+		long now = System.currentTimeMillis();
+		int i = 0;
 		for (MonitorMeasure measure : measures) {			
+			if (isHealthMeasure(measure)) {
+				i++;
+				continue;
+			}
 			try {
-				addMetric(measure);					
+				bindings[i] = bind(measure, now);
 			} catch (PerformanceCounterException ex) {
 				partial = true;
 				if (log.isLoggable(Level.WARNING)) {					
-					String objectName = instancePrefix + measure.getParameter(MEASURE_CONFIG_STRING_OBJECT_NAME);
-					String counterName = measure.getParameter(MEASURE_CONFIG_STRING_COUNTER_NAME);
-					String instanceName = measure.getParameter(MEASURE_CONFIG_STRING_INSTANCE_NAME);
-					log.log(Level.WARNING, "registering of perfmon measure " + objectName +"/"+counterName +"("+instanceName+")" +"caused an exception", ex);				
+					log.log(Level.WARNING, "registering of perfmon measure " + getMeasureName(measure) + " caused an exception", ex);				
 				}				
 			}
+			i++;
 		}		
+		setupNanos = System.nanoTime() - setupStart;
 		if (partial) {
 			return new Status(Status.StatusCode.PartialSuccess, "Initializing performance queries caused errors", perfmon.getDetailedErrors());			
 		}
+		if (instancePrefixes.length == 0) {
+			// instances which are added later are found by the next discovery
+			return new Status(Status.StatusCode.PartialSuccess, "No SQL Server instance found", "No SQL Server instance found on the host '" + hostname + "'");
+		}
 		return new Status(Status.StatusCode.Success);
 	}
 
 	/**
 	 * Executes the performance query and sets the measurements for each
-	 * MonitorMeasure.
+	 * MonitorMeasure. Measures with an instance name pattern are booked to
+	 * one dynamic measure per matching instance. With background sampling
+	 * the latest sample of the sampler thread is booked, an outdated sample
+	 * is not booked and reported as partial success. The health measures are
+	 * booked in any case. If the background
+	 * samples are aggregated, the minimum, maximum, average and percentile of
+	 * the samples since the last execution are booked to dynamic measures as
+	 * well.
+	 * <p>
+	 * The steps which can block on the host are skipped once the schedule
+	 * timeout stops the execution or the query timeout elapsed, the values
+	 * collected so far are booked and the execution is reported as partial
+	 * success.
 	 *
 	 */
 	@Override
     public Status execute(MonitorEnvironment env) throws Exception {
-		Map<PerformanceMeasureKey, Long> queryResult;
+		boolean partial = false;
+		long executionStart = System.nanoTime();
+		long now = System.currentTimeMillis();
+		budget.start(env);
+		if (discovery && now - discoveryTime >= discoveryInterval && !budget.isExhausted()) {
+			discoveryTime = now;
+			try {
+				rediscover(now);
+			} catch (PerformanceCounterException ex) {
+				partial = true;
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "discovering the SQL Server instances caused an exception", ex);
+				}
+			}
+		}
+		// expand the patterns before the query, so counters of new instances
+		// are part of the sample
+		for (int i = 0; i < bindings.length; i++) {
+			if (budget.isExhausted()) {
+				break;
+			}
+			if (bindings[i] != null && !refreshPatterns(bindings, i, now)) {
+				partial = true;
+			}
+		}
+		int skipped;
 		try {
 			// execute the query
-			queryResult = perfmon.query();
+			skipped = perfmon.query(snapshot, budget);
 		} catch (PerformanceCounterException ex) {
+			// the health of a failing host is booked as well
+			bookHealthMeasures(env.getMonitorMeasures(), executionStart);
 			return new Status(Status.StatusCode.ErrorInternal, "Executing performance query failed with exception", "Executing performance query failed with exception: " + ex.getMessage(), ex);
 		}
+		if (aggregator != null) {
+			// the samples since the last execution are booked
+			aggregator.closeInterval();
+		}
+		if (samplingInterval > 0 && now - snapshot.getTimestamp() > STALE_SAMPLE_INTERVALS * samplingInterval) {
+			String age = snapshot.getTimestamp() == 0 ? "No sample was taken yet" : "The latest sample is " + (now - snapshot.getTimestamp()) / 1000 + " s old";
+			bookHealthMeasures(env.getMonitorMeasures(), executionStart);
+			return new Status(Status.StatusCode.PartialSuccess, "Background sampling is outdated", age + "\n" + perfmon.getDetailedErrors());
+		}
 		
 		boolean failed = true;
-		boolean partial = false;
 		Collection<MonitorMeasure> measures = env.getMonitorMeasures();
 		if (measures.size() == 0) failed = false;
-		PerformanceMeasureKey queryPerformanceMeasureKey = new PerformanceMeasureKey("", "", "");
+		if (bindings.length < measures.size()) {
+			bindings = Arrays.copyOf(bindings, measures.size());
+		}
 		
+		healthMeasures.clear();
+		int i = 0;
 		for (MonitorMeasure measure : measures) {
-			String objectName = instancePrefix + measure.getParameter(MEASURE_CONFIG_STRING_OBJECT_NAME);
-			String counterName = measure.getParameter(MEASURE_CONFIG_STRING_COUNTER_NAME);
-			String instanceName = measure.getParameter(MEASURE_CONFIG_STRING_INSTANCE_NAME);
-			PerformanceObject perfObject = perfmon.getPerformanceObject(objectName);
-			
-			if ((perfObject == null) || 
-				(perfObject.getCounter(counterName) == null) ||
-				(perfObject.getCounter(counterName).getInstance(instanceName) == null) ||
-				(!perfObject.getCounter(counterName).getInstance(instanceName).isInitialized()))
-				{
+			if (isHealthMeasure(measure)) {
+				// booked after the other measures, so the execution time
+				// includes their booking
+				healthMeasures.add(measure);
+				i++;
+				continue;
+			}
+			MeasureBinding binding = bindings[i];
+			// the bindings of the setup are reused as long as the environment
+			// passes the same measures, counters which could not be added to
+			// the query are added again.
+			if (binding == null || binding.getMeasure() != measure
+					|| (binding.getInstance() == null && !binding.isExpanded())) {
+				if (budget.isExhausted()) {
+					// registered by the next execution
+					skipped++;
+					i++;
+					continue;
+				}
 				try {
-					if ((perfObject != null) && (perfObject.getCounter(counterName) != null) && 
-						(perfObject.getCounter(counterName).getInstance(instanceName) != null) && 
-						(!perfObject.getCounter(counterName).getInstance(instanceName).isInitialized())) {
-						perfmon.addQuery(perfObject);
-					} else { 					
-						perfObject =  addMetric(measure);
-					}
-
+					binding = bind(measure, now);
+					bindings[i] = binding;
 				} catch (PerformanceCounterException ex) {
-					partial = true;					
-					if (PerformanceObject.doLog(perfObject, counterName, instanceName)) {
-						if (log.isLoggable(Level.WARNING)) {												
-							log.log(Level.WARNING, "query of perfmon measure " + objectName +"/"+counterName +"("+instanceName+")" +"caused an exception", ex);
-						}			
-					}
-					PerformanceObject.updateDoLogState(perfObject, counterName, instanceName, false);
-				}							
-			}
-
-			queryPerformanceMeasureKey.setObjectName(objectName);
-			queryPerformanceMeasureKey.setCounterName(counterName);
-			queryPerformanceMeasureKey.setInstanceName(instanceName);			
-			Long longValue = queryResult.get(queryPerformanceMeasureKey);
-			if (longValue == null) {
-				if (PerformanceObject.doLog(perfObject, counterName, instanceName)) {
-					if (log.isLoggable(Level.WARNING)) {						
-						log.warning("Failed to retrieve measurement for measure " + objectName +"/"+counterName +"("+instanceName+")");
+					partial = true;
+					i++;
+					if (log.isLoggable(Level.WARNING)) {												
+						log.log(Level.WARNING, "query of perfmon measure " + getMeasureName(measure) + " caused an exception", ex);
 					}
-				}				
-				PerformanceObject.updateDoLogState(perfObject, counterName, instanceName,false);
+					continue;
+				}
+			}
+			i++;
+
+			if (binding.isExpanded()) {
+				// an empty expansion is no error, there is just no matching instance
+				failed = false;
+			}
+			if (!book(env, binding)) {
 				partial = true;
 				continue;							
 			} 						
-			
-			double value = longValue.doubleValue();
-			if ((perfObject != null && perfObject.getCounters()[0].getScaleFactor() == PerformanceCounter.SCALE_1000) || 
-				// workaround for windows bug in e.g. "LogicalDisc Free Percentage" measure: 
-				// we get scale factor "NO_SCALE", but the value is multiplied by 1000.
-				// using scale indicator of measure subscription as fallback...
-				(measure.getParameter(MEASURE_CONFIG_STRING_SCALE) != null &&
-				measure.getParameter(MEASURE_CONFIG_STRING_SCALE).equals("1000"))) {
-				value *= 0.001;
-			}
-
-			if (log.isLoggable(Level.FINE))
-				log.fine("Measurement: " + measure + " = " + value);
-
-			measure.setValue(value);
 			failed = false;
 		}
+		if (bookHealthMeasures(healthMeasures, executionStart)) {
+			failed = false;
+		}
+		healthMeasures.clear();
+		if (skipped > 0 || budget.isExhausted()) {
+			return new Status(Status.StatusCode.PartialSuccess, "Execution stopped by timeout", skipped + " counters were skipped, they are retrieved first by the next execution\n" + perfmon.getDetailedErrors());
+		}
 		if (failed) {
 			return new Status(Status.StatusCode.ErrorInternal, "Executing all performance queries caused errors", perfmon.getDetailedErrors());
 		}
@@ -230,9 +1001,18 @@ public class WindowsPerformanceMonitor implements Monitor {
 				log.log(Level.WARNING, "Failed to clear performance query", ex);
 		}
 		try {
+			perfmon.setSampleListener(null);
 			perfmon.disconnect();
 		} finally {
 			perfmon = null;
+			aggregator = null;
+			if (recorder != null) {
+				// releases the history of the host if it was its last recorder
+				recorder.close();
+				recorder = null;
+			}
+			bindings = new MeasureBinding[0];
+			instanceNames.clear();
 		}
 	}
 }
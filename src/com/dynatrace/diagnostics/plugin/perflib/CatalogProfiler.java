@@ -0,0 +1,387 @@
+package com.dynatrace.diagnostics.plugin.perflib;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.LatencyHistogram;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryStatistics;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.PerformanceBackend;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.SimulatedPerformanceBackend;
+
+/**
+ * Command line tool which measures how expensive the counters of a host are,
+ * to size collectors before the plugin monitors new hosts.
+ * <p>
+ * The tool enumerates the full catalog of the host, the objects, and the
+ * counters and instances of each object, and prints the time of each
+ * enumeration, the size of the names and the number of instances. Then it
+ * registers a set of counters and queries them repeatedly like the plugin
+ * does, and prints the percentiles of the requery and retrieval latencies.
+ * <p>
+ * Run it on the collector host with the plugin classes and the perfmon
+ * library:
+ *
+ * <pre>
+ * java -cp &lt;classpath&gt; com.dynatrace.diagnostics.plugin.perflib.CatalogProfiler [options] &lt;host&gt;
+ * </pre>
+ *
+ * The counters are given as <tt>-counter "Object(Instance)\Counter"</tt>,
+ * <tt>*</tt> stands for all instances or all counters of the object. The
+ * backend can be selected as for the plugin, <tt>-simulated</tt> is a short
+ * form for the simulated backend.
+ */
+public final class CatalogProfiler {
+
+	private static final String USAGE = "usage: CatalogProfiler [options] <host>\n"
+			+ "  -counter <Object(Instance)\\Counter>  counter to query, * for all instances or counters, repeatable\n"
+			+ "  -iterations <n>                     number of queries, default 100\n"
+			+ "  -interval <ms>                      pause between the queries, default 0\n"
+			+ "  -top <n>                            number of the slowest objects listed, 0 for all, default 20\n"
+			+ "  -translation                        translate the counter names\n"
+			+ "  -simulated                          use the simulated backend instead of the perfmon library";
+
+	private static final String ALL = "*";
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+	private final PerformanceBackend backend;
+	private final String hostname;
+	private final boolean translation;
+	private final PrintStream out;
+
+	/**
+	 * The enumeration of one object of the catalog.
+	 */
+	private static final class ObjectProfile {
+		private final String name;
+		private int counterCount;
+		private int counterChars;
+		private long counterNanos;
+		private int instanceCount;
+		private int instanceChars;
+		private long instanceNanos;
+		private String error;
+
+		ObjectProfile(String name) {
+			this.name = name;
+		}
+
+		long getNanos() {
+			return counterNanos + instanceNanos;
+		}
+	}
+
+	/**
+	 * @param backend
+	 *            the counter library
+	 * @param hostname
+	 *            the profiled host
+	 * @param translation
+	 *            if the counter names are translated
+	 * @param out
+	 *            receives the report
+	 */
+	public CatalogProfiler(PerformanceBackend backend, String hostname, boolean translation, PrintStream out) {
+		this.backend = backend;
+		this.hostname = hostname;
+		this.translation = translation;
+		this.out = out;
+	}
+
+	/**
+	 * Enumerates the catalog of the host and prints the cost of each object.
+	 *
+	 * @param top
+	 *            the number of the slowest objects listed, 0 for all
+	 * @throws PerformanceCounterException
+	 *             if the session cannot be initialized or the objects cannot
+	 *             be enumerated
+	 */
+	public void profileCatalog(int top) throws PerformanceCounterException {
+		long reference = backend.initialize(translation);
+		try {
+			long start = System.nanoTime();
+			String[] objectNames = backend.getObjects(reference, hostname);
+			long objectNanos = System.nanoTime() - start;
+			if (objectNames == null) {
+				throw new PerformanceCounterException("enumerating the objects of host " + hostname + " failed");
+			}
+			List<ObjectProfile> profiles = new ArrayList<ObjectProfile>(objectNames.length);
+			LatencyHistogram latencies = new LatencyHistogram();
+			for (String objectName : objectNames) {
+				ObjectProfile profile = profileObject(reference, objectName);
+				latencies.record(profile.getNanos());
+				profiles.add(profile);
+			}
+			printCatalog(objectNames, objectNanos, profiles, latencies, top);
+		} finally {
+			backend.uninitialize(reference);
+		}
+	}
+
+	private ObjectProfile profileObject(long reference, String objectName) {
+		ObjectProfile profile = new ObjectProfile(objectName);
+		long start = System.nanoTime();
+		try {
+			String[] counters = backend.getCounters(reference, objectName, hostname);
+			profile.counterNanos = System.nanoTime() - start;
+			if (counters != null) {
+				profile.counterCount = counters.length;
+				profile.counterChars = getChars(counters);
+			}
+		} catch (PerformanceCounterException ex) {
+			profile.counterNanos = System.nanoTime() - start;
+			profile.error = ex.getMessage();
+		}
+		start = System.nanoTime();
+		try {
+			String[] instances = backend.getInstances(reference, objectName, hostname);
+			profile.instanceNanos = System.nanoTime() - start;
+			if (instances != null) {
+				profile.instanceCount = instances.length;
+				profile.instanceChars = getChars(instances);
+			}
+		} catch (PerformanceCounterException ex) {
+			// thrown for objects without instances
+			profile.instanceNanos = System.nanoTime() - start;
+		}
+		return profile;
+	}
+
+	private void printCatalog(String[] objectNames, long objectNanos, List<ObjectProfile> profiles,
+			LatencyHistogram latencies, int top) {
+		int counterCount = 0;
+		int counterChars = 0;
+		int instanceCount = 0;
+		int instanceChars = 0;
+		long nanos = objectNanos;
+		for (ObjectProfile profile : profiles) {
+			counterCount += profile.counterCount;
+			counterChars += profile.counterChars;
+			instanceCount += profile.instanceCount;
+			instanceChars += profile.instanceChars;
+			nanos += profile.getNanos();
+		}
+		int objectChars = getChars(objectNames);
+		out.println("Catalog of host " + hostname + (translation ? " with translation" : ""));
+		out.printf("%-10s %10s %12s %12s%n", "", "count", "chars", "ms");
+		out.printf("%-10s %10d %12d %12.1f%n", "objects", objectNames.length, objectChars, toMillis(objectNanos));
+		out.printf("%-10s %10d %12d%n", "counters", counterCount, counterChars);
+		out.printf("%-10s %10d %12d%n", "instances", instanceCount, instanceChars);
+		out.printf("total %.1f ms, %d KB of names%n", toMillis(nanos),
+				(objectChars + counterChars + instanceChars) * 2 / 1024);
+		printPercentileHeader();
+		out.printf("%-10s", "object");
+		printPercentiles(latencies);
+		out.println();
+
+		Collections.sort(profiles, new Comparator<ObjectProfile>() {
+			@Override
+			public int compare(ObjectProfile o1, ObjectProfile o2) {
+				long n1 = o1.getNanos();
+				long n2 = o2.getNanos();
+				return n1 > n2 ? -1 : n1 == n2 ? 0 : 1;
+			}
+		});
+		int count = top <= 0 ? profiles.size() : Math.min(top, profiles.size());
+		out.println(count == profiles.size() ? "Objects" : "The " + count + " slowest objects");
+		out.printf("%-48s %8s %8s %10s %9s %10s %11s%n", "object", "counters", "chars", "instances", "chars",
+				"counter ms", "instance ms");
+		for (ObjectProfile profile : profiles.subList(0, count)) {
+			out.printf("%-48s %8d %8d %10d %9d %10.2f %11.2f%s%n", profile.name, profile.counterCount,
+					profile.counterChars, profile.instanceCount, profile.instanceChars,
+					toMillis(profile.counterNanos), toMillis(profile.instanceNanos),
+					profile.error == null ? "" : "  " + profile.error);
+		}
+		out.println();
+	}
+
+	/**
+	 * Registers the counters and queries them repeatedly, then prints the
+	 * percentiles of the requery and retrieval latencies.
+	 *
+	 * @param counterPaths
+	 *            the counters as <tt>Object(Instance)\Counter</tt>
+	 * @param iterations
+	 *            the number of queries
+	 * @param interval
+	 *            the pause between the queries in milliseconds
+	 */
+	public void profileQuery(List<String> counterPaths, int iterations, long interval) throws Exception {
+		PerformanceMonitor monitor = PerformanceFactory.createPerformanceMonitor(backend);
+		monitor.init(hostname, translation);
+		try {
+			long start = System.nanoTime();
+			int registered = 0;
+			for (String counterPath : counterPaths) {
+				registered += register(monitor, counterPath);
+			}
+			long registrationNanos = System.nanoTime() - start;
+			out.printf("Query of %d counters, registered in %.1f ms%n", registered, toMillis(registrationNanos));
+
+			QuerySnapshot snapshot = new QuerySnapshot();
+			QueryStatistics statistics = new QueryStatistics();
+			LatencyHistogram queryLatencies = new LatencyHistogram();
+			long nativeCalls = 0;
+			long resultBytes = 0;
+			int failed = 0;
+			for (int i = 0; i < iterations; i++) {
+				if (interval > 0 && i > 0) {
+					Thread.sleep(interval);
+				}
+				long queryStart = System.nanoTime();
+				monitor.query(snapshot);
+				queryLatencies.record(System.nanoTime() - queryStart);
+				monitor.getStatistics(statistics);
+				nativeCalls += statistics.getNativeCalls();
+				resultBytes += statistics.getResultBytes();
+				failed = statistics.getFailedCounters();
+			}
+			printPercentileHeader();
+			out.printf("%-10s", "query");
+			printPercentiles(queryLatencies);
+			out.printf("%-10s", "requery");
+			printPercentiles(statistics.getRequeryLatencies());
+			out.printf("%-10s", "retrieval");
+			printPercentiles(statistics.getRetrievalLatencies());
+			if (iterations > 0) {
+				out.printf("%d queries, %.1f native calls and %d bytes of result per query, %d counters failed"
+						+ " in the last query%n", iterations, nativeCalls / (double) iterations,
+						resultBytes / iterations, failed);
+			}
+			if (failed > 0) {
+				out.println(monitor.getDetailedErrors());
+			}
+		} finally {
+			monitor.clearQuery();
+			monitor.disconnect();
+		}
+	}
+
+	/**
+	 * Adds a counter to the query, patterns are expanded with the catalog of
+	 * the host.
+	 *
+	 * @return the number of added counter instances
+	 */
+	private int register(PerformanceMonitor monitor, String counterPath) throws Exception {
+		int separator = counterPath.lastIndexOf('\\');
+		if (separator <= 0 || separator == counterPath.length() - 1) {
+			throw new IllegalArgumentException("invalid counter " + counterPath + ", expected Object(Instance)\\Counter");
+		}
+		String objectName = counterPath.substring(0, separator);
+		String counterName = counterPath.substring(separator + 1);
+		String instanceName = null;
+		int bracket = objectName.lastIndexOf('(');
+		if (objectName.endsWith(")") && bracket > 0) {
+			instanceName = objectName.substring(bracket + 1, objectName.length() - 1);
+			objectName = objectName.substring(0, bracket);
+		}
+		String[] counterNames = { counterName };
+		String[] instanceNames = { instanceName };
+		if (ALL.equals(counterName) || ALL.equals(instanceName)) {
+			long reference = backend.initialize(translation);
+			try {
+				if (ALL.equals(counterName)) {
+					counterNames = backend.getCounters(reference, objectName, hostname);
+				}
+				if (ALL.equals(instanceName)) {
+					instanceNames = backend.getInstances(reference, objectName, hostname);
+				}
+			} finally {
+				backend.uninitialize(reference);
+			}
+		}
+		int count = 0;
+		for (String name : counterNames) {
+			for (String instance : instanceNames) {
+				monitor.addQuery(new PerformanceObject(objectName, name, instance));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void printPercentileHeader() {
+		out.printf("%-10s %10s %10s %10s %10s %10s%n", "ms", "p50", "p90", "p99", "p99.9", "max");
+	}
+
+	private void printPercentiles(LatencyHistogram latencies) {
+		for (double percentile : PERCENTILES) {
+			out.printf(" %10.3f", toMillis(latencies.getPercentile(percentile)));
+		}
+		out.println();
+	}
+
+	private static int getChars(String[] names) {
+		int chars = 0;
+		for (String name : names) {
+			chars += name.length();
+		}
+		return chars;
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	public static void main(String[] args) {
+		List<String> counterPaths = new ArrayList<String>();
+		int iterations = 100;
+		long interval = 0;
+		int top = 20;
+		boolean translation = false;
+		boolean simulated = false;
+		String hostname = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if ("-counter".equals(arg) && i + 1 < args.length) {
+					counterPaths.add(args[++i]);
+				} else if ("-iterations".equals(arg) && i + 1 < args.length) {
+					iterations = Integer.parseInt(args[++i]);
+				} else if ("-interval".equals(arg) && i + 1 < args.length) {
+					interval = Long.parseLong(args[++i]);
+				} else if ("-top".equals(arg) && i + 1 < args.length) {
+					top = Integer.parseInt(args[++i]);
+				} else if ("-translation".equals(arg)) {
+					translation = true;
+				} else if ("-simulated".equals(arg)) {
+					simulated = true;
+				} else if (!arg.startsWith("-") && hostname == null) {
+					hostname = arg;
+				} else {
+					throw new IllegalArgumentException(arg);
+				}
+			}
+		} catch (IllegalArgumentException ex) {
+			hostname = null;
+		}
+		if (hostname == null) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		try {
+			PerformanceBackend backend = simulated ? new SimulatedPerformanceBackend()
+					: PerformanceFactory.resolveBackend();
+			CatalogProfiler profiler = new CatalogProfiler(backend, hostname, translation, System.out);
+			profiler.profileCatalog(top);
+			if (!counterPaths.isEmpty()) {
+				profiler.profileQuery(counterPaths, iterations, interval);
+			}
+		} catch (Exception ex) {
+			System.err.println("Profiling host " + hostname + " failed: " + ex);
+			System.exit(1);
+		} catch (UnsatisfiedLinkError ex) {
+			System.err.println("The perfmon library cannot be loaded: " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package com.dynatrace.diagnostics.plugin.perflib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.InvalidOperationException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+
+/**
+ * Queries the performance monitors of many hosts in parallel. Each call of
+ * {@link #collect()} submits the queries of all registered hosts to a bounded
+ * executor and waits for each host until its deadline, measured from the
+ * start of the cycle. A host which misses its deadline keeps the snapshot of
+ * its last query and is marked as stale, its query continues in the
+ * background and is not submitted again before it finished, so a slow host
+ * never occupies more than one thread and never holds up the other hosts.
+ * <p>
+ * Each monitor must be registered once and must not be queried by anybody
+ * else while it is registered, monitors acquired with
+ * {@link PerformanceFactory#acquirePerformanceMonitor(String, boolean)} may
+ * share their connection with other monitors.
+ */
+public class CollectionEngine {
+
+	private static final Logger log = Logger.getLogger(CollectionEngine.class.getName());
+
+	/**
+	 * The default deadline of a host in milliseconds.
+	 */
+	public static final long DEFAULT_DEADLINE = 10000;
+
+	/** the snapshot of the host was taken in the last cycle */
+	public static final int STATE_COMPLETE = 0;
+	/** the host missed its deadline, the snapshot is the one of its last query */
+	public static final int STATE_STALE = 1;
+	/** the query of the host failed, the snapshot is the one of its last query */
+	public static final int STATE_FAILED = 2;
+
+	private static final String ERR_NOT_CONNECTED = "the performance monitor is not connected";
+	private static final String ERR_SHUT_DOWN = "collection engine is shut down";
+	private static final String ERR_DEADLINE = "the query did not finish within ";
+	private static final String ERR_REJECTED = "the query was rejected by the executor";
+	private static final String THREAD_NAME = "perflib collector ";
+
+	/**
+	 * A registered host and the result of its last cycle. The result must
+	 * only be read by the thread which calls {@link CollectionEngine#collect()}.
+	 */
+	public final class Host implements Callable<Void> {
+
+		private final PerformanceMonitor monitor;
+		private final String hostname;
+		private final long deadline;
+		// written by the query task, read after the task finished
+		private final QuerySnapshot pending = new QuerySnapshot();
+		private final QuerySnapshot snapshot = new QuerySnapshot();
+		private Future<Void> query;
+		// nano times the last query was submitted and finished
+		private long submitTime;
+		private long finishTime;
+		private int state = STATE_STALE;
+		private String errorMessage;
+		private long duration;
+
+		Host(PerformanceMonitor monitor, long deadline) {
+			this.monitor = monitor;
+			this.hostname = monitor.getHostname();
+			this.deadline = deadline;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			try {
+				monitor.query(pending);
+			} finally {
+				finishTime = System.nanoTime();
+			}
+			return null;
+		}
+
+		/**
+		 * @return the queried monitor
+		 */
+		public PerformanceMonitor getMonitor() {
+			return monitor;
+		}
+
+		/**
+		 * @return the name of the host at the time it was registered
+		 */
+		public String getHostname() {
+			return hostname;
+		}
+
+		/**
+		 * @return the deadline of the host in milliseconds
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * @return the snapshot of the last finished query, its timestamp tells
+		 *         how old it is
+		 */
+		public QuerySnapshot getSnapshot() {
+			return snapshot;
+		}
+
+		/**
+		 * @return one of the <tt>STATE</tt> constants
+		 */
+		public int getState() {
+			return state;
+		}
+
+		/**
+		 * @return why the host is stale or failed, <tt>null</tt> if the last
+		 *         cycle was complete
+		 */
+		public String getErrorMessage() {
+			return errorMessage;
+		}
+
+		/**
+		 * @return the time in milliseconds from the submission of the last
+		 *         finished query until it finished, or the time the running
+		 *         query is taking so far if the host is stale
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		/**
+		 * @return if a query of the host is still running
+		 */
+		public boolean isBusy() {
+			return query != null && !query.isDone();
+		}
+	}
+
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final List<Host> hosts = new ArrayList<Host>();
+	private final Object collectLock = new Object();
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates an engine with its own pool of daemon threads.
+	 *
+	 * @param parallelism
+	 *            the maximum number of hosts queried at the same time
+	 */
+	public CollectionEngine(int parallelism) {
+		this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.ownsExecutor = true;
+	}
+
+	/**
+	 * Creates an engine which submits the queries to the given executor. The
+	 * executor is not shut down by {@link #shutdown()}.
+	 *
+	 * @param executor
+	 *            the executor of the queries
+	 */
+	public CollectionEngine(ExecutorService executor) {
+		if (executor == null) {
+			throw new NullPointerException();
+		}
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	/**
+	 * Registers a connected monitor with the {@link #DEFAULT_DEADLINE}.
+	 *
+	 * @see #register(PerformanceMonitor, long)
+	 */
+	public Host register(PerformanceMonitor monitor) {
+		return register(monitor, DEFAULT_DEADLINE);
+	}
+
+	/**
+	 * Registers a connected monitor, which is queried by the following
+	 * cycles.
+	 *
+	 * @param monitor
+	 *            the connected monitor of a host
+	 * @param deadline
+	 *            the time in milliseconds from the start of a cycle after
+	 *            which the host is reported as stale
+	 * @return the host, which holds the results of the cycles
+	 * @throws InvalidOperationException
+	 *             if the monitor is not connected or the engine is shut down
+	 */
+	public synchronized Host register(PerformanceMonitor monitor, long deadline) throws InvalidOperationException {
+		if (shutdown) {
+			throw new InvalidOperationException(ERR_SHUT_DOWN);
+		}
+		Host host = new Host(monitor, deadline);
+		if (host.hostname == null) {
+			throw new InvalidOperationException(ERR_NOT_CONNECTED);
+		}
+		hosts.add(host);
+		return host;
+	}
+
+	/**
+	 * Removes a host from the following cycles. A running query of the host
+	 * is not cancelled, the monitor must not be disconnected before
+	 * {@link Host#isBusy()} returns <tt>false</tt>.
+	 *
+	 * @return <tt>false</tt> if the host was not registered
+	 */
+	public synchronized boolean unregister(Host host) {
+		return hosts.remove(host);
+	}
+
+	/**
+	 * @return the registered hosts
+	 */
+	public synchronized List<Host> getHosts() {
+		return new ArrayList<Host>(hosts);
+	}
+
+	/**
+	 * Queries all registered hosts and waits until each of them finished or
+	 * missed its deadline. Afterwards the result of each host can be read
+	 * from it.
+	 *
+	 * @return the number of hosts which completed the cycle
+	 * @throws InvalidOperationException
+	 *             if the engine is shut down
+	 */
+	public int collect() throws InvalidOperationException {
+		synchronized (collectLock) {
+			if (shutdown) {
+				throw new InvalidOperationException(ERR_SHUT_DOWN);
+			}
+			Host[] cycle;
+			synchronized (this) {
+				cycle = hosts.toArray(new Host[hosts.size()]);
+			}
+			long start = System.nanoTime();
+			for (Host host : cycle) {
+				// a query which missed the deadline of a previous cycle and
+				// finished since then is collected before a fresh one is
+				// submitted, a query which is still running is waited for
+				// again instead of being submitted twice
+				if (host.query != null && host.query.isDone()) {
+					collectLate(host);
+				}
+				if (host.query == null) {
+					try {
+						host.submitTime = start;
+						host.query = executor.submit(host);
+					} catch (RejectedExecutionException ex) {
+						host.state = STATE_FAILED;
+						host.errorMessage = ERR_REJECTED;
+					}
+				}
+			}
+			int complete = 0;
+			boolean interrupted = false;
+			for (Host host : cycle) {
+				if (host.query == null) {
+					continue;
+				}
+				long remaining = interrupted ? 0 : host.deadline * 1000000L - (System.nanoTime() - start);
+				try {
+					host.query.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+					host.query = null;
+					host.snapshot.copyFrom(host.pending);
+					if (host.submitTime == start) {
+						host.state = STATE_COMPLETE;
+						host.errorMessage = null;
+						complete++;
+					} else {
+						// the query was submitted by an earlier cycle
+						host.state = STATE_STALE;
+						host.errorMessage = ERR_DEADLINE + host.deadline + " ms";
+					}
+				} catch (TimeoutException ex) {
+					host.state = STATE_STALE;
+					host.errorMessage = ERR_DEADLINE + host.deadline + " ms";
+				} catch (ExecutionException ex) {
+					host.query = null;
+					Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+					host.state = STATE_FAILED;
+					host.errorMessage = cause.getMessage();
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "query of host " + host.hostname + " failed", cause);
+					}
+				} catch (InterruptedException ex) {
+					// the remaining hosts are only collected if they are done
+					interrupted = true;
+					host.state = STATE_STALE;
+					host.errorMessage = ERR_DEADLINE + host.deadline + " ms";
+				}
+				host.duration = ((host.query == null ? host.finishTime : System.nanoTime()) - host.submitTime) / 1000000L;
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return complete;
+		}
+	}
+
+	/**
+	 * Takes the result of a query which finished after the deadline of its
+	 * cycle, so the snapshot of the host is as recent as possible while its
+	 * next query is running.
+	 */
+	private void collectLate(Host host) {
+		try {
+			host.query.get();
+			host.snapshot.copyFrom(host.pending);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "late query of host " + host.hostname + " failed", cause);
+			}
+		} catch (InterruptedException ex) {
+			// cannot happen for a finished query
+			Thread.currentThread().interrupt();
+		}
+		host.query = null;
+	}
+
+	/**
+	 * Stops the engine. Running queries are not cancelled, since a native
+	 * call cannot be interrupted, they finish in the background.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,990 @@
+package com.dynatrace.diagnostics.plugin.perflib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPath;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPathDictionary;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.SampleListener;
+
+/**
+ * A local history of the collected counter values, which survives restarts
+ * of the collector. Each host has a directory with an index of its series,
+ * one per object, counter and instance, and a sequence of segment files,
+ * which are memory mapped and filled with the samples. A segment is sized
+ * for about a thousand samples of the series of its host, up to the segment
+ * size of the store.
+ * <p>
+ * A segment is a sequence of records in a columnar layout. A layout record
+ * lists the series of the columns of a recorder, a data record holds the
+ * time, a validity bitmap and the values of all columns, 4 bytes wide if all
+ * values of the sample fit into an int, 8 bytes otherwise. A layout is only
+ * written again when the counters of the recorder change or a new segment is
+ * started, so a sample of 50,000 counters takes about 200 KB. The header of a
+ * segment holds the time of its first and last sample and the number of used
+ * bytes, it is updated after each record, so a segment is consistent up to
+ * the last complete record if the collector dies. A segment is closed once
+ * it covers a quarter of the retention of the store, and deleted once the
+ * retention has elapsed since its last sample. The expired segments are
+ * deleted by the appends, at most once a minute.
+ * <p>
+ * Appending a sample writes directly from the snapshot into the mapped
+ * segment and does not allocate memory, unless counters were added. Samples
+ * are appended by a {@link Recorder}, the listener of a performance monitor.
+ * The values of a series are read with
+ * {@link #read(int, long, long, long[], long[])}.
+ * <p>
+ * The directory of a host is locked by the process which opened it, so the
+ * collectors of several processes which share the directory of the store
+ * cannot corrupt the index and the segments of each other. If the directory
+ * of a host is locked, the history of the host is kept in a directory of
+ * this process next to it, named after the host and the process id.
+ * <p>
+ * The history of a host is open while it is used by a recorder or a read.
+ * When the last recorder of a host is closed, the active segment is written
+ * and unmapped, and the directory is unlocked.
+ */
+public class HistoryStore {
+
+	private static final Logger log = Logger.getLogger(HistoryStore.class.getName());
+
+	/**
+	 * System property with the directory of the default store.
+	 */
+	public static final String DIRECTORY_PROPERTY = "com.dynatrace.diagnostics.plugin.perflib.historyDirectory";
+
+	/**
+	 * The default maximum size of a segment file in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The number of samples of all series of a host a segment is sized for.
+	 */
+	static final int SAMPLES_PER_SEGMENT = 1024;
+
+	/**
+	 * The minimum time in milliseconds between two evictions by the appends.
+	 */
+	static final long EVICTION_INTERVAL = 60000;
+
+	// the minimum size of a segment file in bytes
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+	// a segment covers at most this fraction of the retention
+	private static final int SEGMENTS_PER_RETENTION = 4;
+
+	private static final String DEFAULT_DIRECTORY = "dynatrace-perflib" + File.separator + "history";
+	private static final String SEGMENT_EXTENSION = ".seg";
+	private static final String INDEX_FILE = "series.index";
+	private static final String LOCK_FILE = "history.lock";
+
+	// 'PHIS'
+	private static final int SEGMENT_MAGIC = 0x50484953;
+	// 'PSER'
+	private static final int INDEX_MAGIC = 0x50534552;
+	private static final int VERSION = 1;
+
+	// magic, version, first time, last time, used bytes, reserved
+	private static final int HEADER_FIRST = 8;
+	private static final int HEADER_LAST = 16;
+	private static final int HEADER_USED = 24;
+	private static final int HEADER_SIZE = 32;
+
+	// type, layout number, count, series of the columns
+	private static final byte RECORD_LAYOUT = 1;
+	// type, layout number, time, value width, validity bitmap, values
+	private static final byte RECORD_DATA = 2;
+	private static final int LAYOUT_HEADER_SIZE = 9;
+	private static final int DATA_HEADER_SIZE = 14;
+
+	private static final String ERR_CLOSED = "history store is closed";
+	private static final String ERR_APPEND = "failed to append the sample to the history of host ";
+	private static final String ERR_SEGMENT = "invalid history segment ";
+	private static final String ERR_LOCKED = "history directory is locked by another process: ";
+
+	private static HistoryStore defaultStore;
+
+	/**
+	 * The object, counter and instance name of a series.
+	 */
+	private static final class Series {
+		private final String objectName;
+		private final String counterName;
+		private final String instanceName;
+
+		Series(String objectName, String counterName, String instanceName) {
+			this.objectName = objectName;
+			this.counterName = counterName;
+			this.instanceName = instanceName;
+		}
+	}
+
+	/**
+	 * A segment file, the active one is mapped for writing.
+	 */
+	private static final class Segment {
+		private final File file;
+		private long firstTime;
+		private long lastTime;
+		private int used;
+		private final int capacity;
+		private MappedByteBuffer buffer;
+		// the number of the next layout record
+		private int layoutCount = 0;
+
+		Segment(File file, long firstTime, long lastTime, int used, int capacity) {
+			this.file = file;
+			this.firstTime = firstTime;
+			this.lastTime = lastTime;
+			this.used = used;
+			this.capacity = capacity;
+		}
+
+		int remaining() {
+			return capacity - used;
+		}
+
+		/**
+		 * Makes the records written since the last commit visible.
+		 */
+		void commit(int end, long time) {
+			if (used == HEADER_SIZE) {
+				firstTime = time;
+				buffer.putLong(HEADER_FIRST, time);
+			}
+			lastTime = Math.max(lastTime, time);
+			used = end;
+			buffer.putLong(HEADER_LAST, lastTime);
+			buffer.putInt(HEADER_USED, used);
+		}
+	}
+
+	/**
+	 * The series and segments of a host.
+	 */
+	private final class HostHistory {
+		private final String hostName;
+		private final String fileName;
+		private final File directory;
+		// the recorders and reads which use the history, guarded by the
+		// hosts of the store
+		private int references = 0;
+		// the object, counter and instance of each series
+		private final List<Series> series = new ArrayList<Series>();
+		private final Map<String, Integer> seriesByKey = new HashMap<String, Integer>();
+		// series + 1 by counter id, 0 if not resolved yet
+		private int[] seriesByCounterId = new int[0];
+		private DataOutputStream index;
+		// sorted by their first sample, the last one may be active
+		private final List<Segment> segments = new ArrayList<Segment>();
+		private Segment active;
+		// the time of the next eviction by an append
+		private long nextEviction;
+		// held while the history is open
+		private RandomAccessFile lockFile;
+		private FileLock lock;
+
+		HostHistory(String hostName, String fileName, File directory) {
+			this.hostName = hostName;
+			this.fileName = fileName;
+			this.directory = directory;
+		}
+
+		/**
+		 * Locks the directory of the history for this process, it is created
+		 * if it does not exist.
+		 * 
+		 * @return <tt>false</tt> if the directory is locked by another
+		 *         process or another store of this JVM
+		 */
+		boolean lock() throws IOException {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("cannot create directory " + directory);
+			}
+			RandomAccessFile file = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+			FileLock fileLock = null;
+			try {
+				fileLock = file.getChannel().tryLock();
+			} catch (OverlappingFileLockException ex) {
+				// locked by another store of this JVM
+			} finally {
+				if (fileLock == null) {
+					file.close();
+				}
+			}
+			if (fileLock == null) {
+				return false;
+			}
+			lockFile = file;
+			lock = fileLock;
+			return true;
+		}
+
+		void unlock() {
+			if (lockFile == null) {
+				return;
+			}
+			try {
+				lock.release();
+				lockFile.close();
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "failed to release the history lock of host " + hostName, ex);
+				}
+			}
+			lock = null;
+			lockFile = null;
+		}
+
+		/**
+		 * Writes the index and the active segment, releases the mapping of
+		 * the active segment and unlocks the directory.
+		 */
+		synchronized void close() {
+			try {
+				index.close();
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "failed to close the series index of host " + hostName, ex);
+				}
+			}
+			if (active != null) {
+				active.buffer.force();
+				active.buffer = null;
+				active = null;
+			}
+			unlock();
+		}
+
+		/**
+		 * Loads the index and the segments, the directory must be locked.
+		 */
+		void open() throws IOException {
+			loadIndex();
+			File[] files = directory.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				for (File file : files) {
+					if (file.getName().endsWith(SEGMENT_EXTENSION)) {
+						Segment segment = readHeader(file);
+						if (segment != null) {
+							segments.add(segment);
+						}
+					}
+				}
+			}
+			evict(System.currentTimeMillis());
+		}
+
+		private void loadIndex() throws IOException {
+			File file = new File(directory, INDEX_FILE);
+			boolean complete = true;
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+					throw new IOException(ERR_SEGMENT + file);
+				}
+				while (true) {
+					String objectName;
+					try {
+						objectName = in.readUTF();
+					} catch (EOFException ex) {
+						break;
+					}
+					String counterName = in.readUTF();
+					String instanceName = in.readBoolean() ? in.readUTF() : null;
+					addSeries(objectName, counterName, instanceName);
+				}
+			} catch (FileNotFoundException ex) {
+				// a new host
+			} catch (EOFException ex) {
+				// the last entry was not written completely
+				complete = false;
+			} finally {
+				if (in != null) {
+					in.close();
+				}
+			}
+			boolean exists = file.exists();
+			if (exists && complete) {
+				index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+				return;
+			}
+			index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			index.writeInt(INDEX_MAGIC);
+			index.writeInt(VERSION);
+			for (Series entry : series) {
+				writeSeries(entry);
+			}
+			index.flush();
+		}
+
+		private int addSeries(String objectName, String counterName, String instanceName) {
+			int number = series.size();
+			series.add(new Series(objectName, counterName, instanceName));
+			seriesByKey.put(toKey(objectName, counterName, instanceName), Integer.valueOf(number));
+			return number;
+		}
+
+		private void writeSeries(Series entry) throws IOException {
+			index.writeUTF(entry.objectName);
+			index.writeUTF(entry.counterName);
+			index.writeBoolean(entry.instanceName != null);
+			if (entry.instanceName != null) {
+				index.writeUTF(entry.instanceName);
+			}
+		}
+
+		/**
+		 * @return the series of a counter, which is created if the counter
+		 *         has no history yet
+		 */
+		int getSeries(int counterId) throws IOException {
+			if (counterId < seriesByCounterId.length && seriesByCounterId[counterId] > 0) {
+				return seriesByCounterId[counterId] - 1;
+			}
+			CounterPath path = dictionary.getPath(counterId);
+			Integer number = seriesByKey.get(toKey(path.getObjectName(), path.getCounterName(),
+					path.getInstanceName()));
+			int result;
+			if (number == null) {
+				result = addSeries(path.getObjectName(), path.getCounterName(), path.getInstanceName());
+				writeSeries(series.get(result));
+				index.flush();
+			} else {
+				result = number.intValue();
+			}
+			if (counterId >= seriesByCounterId.length) {
+				seriesByCounterId = Arrays.copyOf(seriesByCounterId, Math.max(counterId + 1,
+						seriesByCounterId.length * 2));
+			}
+			seriesByCounterId[counterId] = result + 1;
+			return result;
+		}
+
+		/**
+		 * @return the series of a path, -1 if it has no history
+		 */
+		int findSeries(CounterPath path) {
+			Integer number = seriesByKey.get(toKey(path.getObjectName(), path.getCounterName(),
+					path.getInstanceName()));
+			return number == null ? -1 : number.intValue();
+		}
+
+		/**
+		 * @return if the active segment cannot take a record of the given
+		 *         size or covers too much of the retention
+		 */
+		boolean isFull(Segment segment, int required, long time) {
+			return required > segment.remaining() || time - segment.firstTime > retention / SEGMENTS_PER_RETENTION;
+		}
+
+		/**
+		 * Starts a new segment which can hold at least the given number of
+		 * bytes and deletes the segments beyond the retention. The segment is
+		 * sized for {@value #SAMPLES_PER_SEGMENT} samples of all series of the
+		 * host, between 64 KB and the segment size of the store.
+		 */
+		Segment roll(int required, long time) throws IOException {
+			if (active != null) {
+				active.buffer.force();
+				active.buffer = null;
+				active = null;
+			}
+			int seriesCount = series.size();
+			long sampleSize = DATA_HEADER_SIZE + ((seriesCount + 63) >>> 6) * 8 + seriesCount * 4L;
+			long estimate = HEADER_SIZE + LAYOUT_HEADER_SIZE + seriesCount * 4L + SAMPLES_PER_SEGMENT * sampleSize;
+			int capacity = (int) Math.max(HEADER_SIZE + (long) required,
+					Math.min(segmentSize, Math.max(MIN_SEGMENT_SIZE, estimate)));
+			File file = new File(directory, toSegmentName(time));
+			for (long suffix = time + 1; file.exists(); suffix++) {
+				file = new File(directory, toSegmentName(suffix));
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(capacity);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+				buffer.putInt(0, SEGMENT_MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putLong(HEADER_FIRST, time);
+				buffer.putLong(HEADER_LAST, time);
+				buffer.putInt(HEADER_USED, HEADER_SIZE);
+				active = new Segment(file, time, time, HEADER_SIZE, capacity);
+				active.buffer = buffer;
+			} finally {
+				// the mapping stays valid
+				raf.close();
+			}
+			segments.add(active);
+			evict(time);
+			return active;
+		}
+
+		/**
+		 * Deletes the expired segments if the last eviction is at least
+		 * {@value #EVICTION_INTERVAL} ms ago, called after each append.
+		 */
+		void evictExpired(long now) {
+			if (now >= nextEviction || now < nextEviction - EVICTION_INTERVAL) {
+				evict(now);
+			}
+		}
+
+		/**
+		 * Deletes the segments whose last sample is older than the
+		 * retention. A segment which cannot be deleted yet, e.g. because it
+		 * is still mapped by a reader, is deleted later.
+		 */
+		void evict(long now) {
+			nextEviction = now + EVICTION_INTERVAL;
+			for (Iterator<Segment> it = segments.iterator(); it.hasNext();) {
+				Segment segment = it.next();
+				if (segment != active && now - segment.lastTime > retention) {
+					if (segment.file.delete() || !segment.file.exists()) {
+						it.remove();
+					} else if (log.isLoggable(Level.FINE)) {
+						log.fine("history segment " + segment.file + " is deleted later");
+					}
+				}
+			}
+		}
+
+		/**
+		 * Reads the valid values of a series, see
+		 * {@link HistoryStore#read(int, long, long, long[], long[])}.
+		 */
+		int read(int seriesNumber, long from, long to, long[] times, long[] values) throws IOException {
+			int count = 0;
+			int limit = Math.min(times.length, values.length);
+			// the column of the series and the number of columns of each
+			// layout of a segment, the column is -1 if the series has none
+			int[] columns = new int[16];
+			int[] columnCounts = new int[16];
+			for (Segment segment : segments) {
+				if (count == limit) {
+					break;
+				}
+				if (segment.lastTime < from || segment.firstTime > to) {
+					continue;
+				}
+				ByteBuffer buffer;
+				int used;
+				if (segment == active) {
+					buffer = active.buffer.duplicate();
+					used = active.used;
+				} else {
+					buffer = mapForReading(segment.file);
+					if (buffer == null) {
+						continue;
+					}
+					used = Math.min(buffer.getInt(HEADER_USED), buffer.capacity());
+				}
+				Arrays.fill(columns, -1);
+				Arrays.fill(columnCounts, 0);
+				int position = HEADER_SIZE;
+				while (position < used && count < limit) {
+					byte type = buffer.get(position);
+					int layout = buffer.getInt(position + 1);
+					if (type == RECORD_LAYOUT) {
+						int columnCount = buffer.getInt(position + 5);
+						if (layout >= columns.length) {
+							int length = columns.length;
+							columns = Arrays.copyOf(columns, Math.max(layout + 1, length * 2));
+							columnCounts = Arrays.copyOf(columnCounts, columns.length);
+							Arrays.fill(columns, length, columns.length, -1);
+						}
+						columns[layout] = -1;
+						columnCounts[layout] = columnCount;
+						for (int column = 0; column < columnCount; column++) {
+							if (buffer.getInt(position + LAYOUT_HEADER_SIZE + column * 4) == seriesNumber) {
+								columns[layout] = column;
+								break;
+							}
+						}
+						position += LAYOUT_HEADER_SIZE + columnCount * 4;
+					} else if (type == RECORD_DATA) {
+						if (layout >= columns.length) {
+							throw new IOException(ERR_SEGMENT + segment.file);
+						}
+						int columnCount = columnCounts[layout];
+						long time = buffer.getLong(position + 5);
+						int width = buffer.get(position + 13);
+						int words = (columnCount + 63) >>> 6;
+						int column = columns[layout];
+						if (column >= 0 && time >= from && time <= to
+								&& (buffer.getLong(position + DATA_HEADER_SIZE + (column >>> 6) * 8) & (1L << column)) != 0) {
+							int valuePosition = position + DATA_HEADER_SIZE + words * 8 + column * width;
+							times[count] = time;
+							values[count] = width == 4 ? buffer.getInt(valuePosition) : buffer.getLong(valuePosition);
+							count++;
+						}
+						position += DATA_HEADER_SIZE + words * 8 + columnCount * width;
+					} else {
+						throw new IOException(ERR_SEGMENT + segment.file);
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Appends the samples of a performance monitor to the history of its
+	 * host. The recorder is the {@link SampleListener} of the monitor, a
+	 * monitor which fails to append a sample logs it and continues with the
+	 * next one.
+	 */
+	public final class Recorder implements SampleListener {
+
+		private final PerformanceMonitor monitor;
+		private final HostHistory host;
+		private int[] counterIds;
+		// the slot and series of each column
+		private int[] slots = new int[0];
+		private int[] series = new int[0];
+		private int columnCount = 0;
+		// the segment and number of the last layout written
+		private Segment layoutSegment;
+		private int layoutNumber;
+		private boolean layoutChanged = true;
+		private boolean doLog = true;
+		private volatile boolean released = false;
+
+		Recorder(PerformanceMonitor monitor, HostHistory host) {
+			this.monitor = monitor;
+			this.host = host;
+		}
+
+		/**
+		 * Stops appending the samples. The history of the host is closed if
+		 * this was its last recorder.
+		 */
+		public void close() {
+			synchronized (hosts) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			release(host);
+		}
+
+		@Override
+		public void sampled(QuerySnapshot snapshot) {
+			if (released) {
+				return;
+			}
+			try {
+				counterIds = monitor.getSlotCounterIds(counterIds);
+				synchronized (host) {
+					append(snapshot);
+				}
+				doLog = true;
+			} catch (IOException ex) {
+				if (doLog) {
+					doLog = false;
+					if (log.isLoggable(Level.WARNING)) {
+						log.log(Level.WARNING, ERR_APPEND + host.hostName, ex);
+					}
+				}
+			}
+		}
+
+		private void append(QuerySnapshot snapshot) throws IOException {
+			if (closed || released) {
+				throw new IOException(ERR_CLOSED);
+			}
+			int size = Math.min(snapshot.size(), counterIds.length);
+			if (slots.length < size) {
+				slots = Arrays.copyOf(slots, size);
+				series = Arrays.copyOf(series, size);
+			}
+			int count = 0;
+			for (int slot = 0; slot < size; slot++) {
+				if (counterIds[slot] < 0) {
+					continue;
+				}
+				int number = host.getSeries(counterIds[slot]);
+				if (count >= columnCount || slots[count] != slot || series[count] != number) {
+					layoutChanged = true;
+				}
+				slots[count] = slot;
+				series[count] = number;
+				count++;
+			}
+			if (count != columnCount) {
+				layoutChanged = true;
+				columnCount = count;
+			}
+			if (count == 0) {
+				return;
+			}
+			int width = 4;
+			for (int column = 0; column < count; column++) {
+				int slot = slots[column];
+				if (snapshot.isValid(slot)) {
+					long value = snapshot.getValue(slot);
+					if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+						width = 8;
+						break;
+					}
+				}
+			}
+			int words = (count + 63) >>> 6;
+			int dataSize = DATA_HEADER_SIZE + words * 8 + count * width;
+			int layoutSize = LAYOUT_HEADER_SIZE + count * 4;
+			Segment segment = host.active;
+			boolean writeLayout = layoutChanged || layoutSegment != segment;
+			if (segment == null || host.isFull(segment, (writeLayout ? layoutSize : 0) + dataSize, snapshot.getTimestamp())) {
+				segment = host.roll(layoutSize + dataSize, snapshot.getTimestamp());
+				writeLayout = true;
+			}
+			MappedByteBuffer buffer = segment.buffer;
+			int position = segment.used;
+			if (writeLayout) {
+				layoutNumber = segment.layoutCount++;
+				layoutSegment = segment;
+				layoutChanged = false;
+				buffer.put(position, RECORD_LAYOUT);
+				buffer.putInt(position + 1, layoutNumber);
+				buffer.putInt(position + 5, count);
+				position += LAYOUT_HEADER_SIZE;
+				for (int column = 0; column < count; column++) {
+					buffer.putInt(position, series[column]);
+					position += 4;
+				}
+			}
+			buffer.put(position, RECORD_DATA);
+			buffer.putInt(position + 1, layoutNumber);
+			buffer.putLong(position + 5, snapshot.getTimestamp());
+			buffer.put(position + 13, (byte) width);
+			int bitmap = position + DATA_HEADER_SIZE;
+			int valuePosition = bitmap + words * 8;
+			long word = 0;
+			for (int column = 0; column < count; column++) {
+				int slot = slots[column];
+				boolean valid = snapshot.isValid(slot);
+				long value = valid ? snapshot.getValue(slot) : 0;
+				if (valid) {
+					word |= 1L << column;
+				}
+				if (width == 4) {
+					buffer.putInt(valuePosition, (int) value);
+				} else {
+					buffer.putLong(valuePosition, value);
+				}
+				valuePosition += width;
+				if ((column & 63) == 63 || column == count - 1) {
+					buffer.putLong(bitmap + (column >>> 6) * 8, word);
+					word = 0;
+				}
+			}
+			segment.commit(valuePosition, snapshot.getTimestamp());
+			host.evictExpired(snapshot.getTimestamp());
+		}
+	}
+
+	private final File directory;
+	private final CounterPathDictionary dictionary;
+	private final int segmentSize;
+	private volatile long retention;
+	private final Map<String, HostHistory> hosts = new HashMap<String, HostHistory>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a store with the {@link #DEFAULT_SEGMENT_SIZE} for the counters
+	 * of the default {@link CounterPathDictionary}.
+	 *
+	 * @param directory
+	 *            the directory of the store
+	 * @param retention
+	 *            the time in milliseconds the samples are kept
+	 */
+	public HistoryStore(File directory, long retention) {
+		this(directory, retention, DEFAULT_SEGMENT_SIZE, CounterPathDictionary.getDefault());
+	}
+
+	/**
+	 * @param directory
+	 *            the directory of the store
+	 * @param retention
+	 *            the time in milliseconds the samples are kept
+	 * @param segmentSize
+	 *            the maximum size of a segment file in bytes, a segment is
+	 *            larger if a single sample does not fit
+	 * @param dictionary
+	 *            the dictionary of the counter ids of the recorded monitors
+	 */
+	public HistoryStore(File directory, long retention, int segmentSize, CounterPathDictionary dictionary) {
+		if (directory == null || dictionary == null) {
+			throw new NullPointerException();
+		}
+		if (retention <= 0 || segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException();
+		}
+		this.directory = directory;
+		this.retention = retention;
+		this.segmentSize = segmentSize;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Returns the store shared by all monitors of this JVM. Its directory is
+	 * configured with the system property {@value #DIRECTORY_PROPERTY}, the
+	 * default is the temporary directory of the JVM. The retention of the
+	 * store is the longest one requested.
+	 *
+	 * @param retention
+	 *            the time in milliseconds the samples are kept at least
+	 * @return the default store
+	 */
+	public static synchronized HistoryStore getDefault(long retention) {
+		if (defaultStore == null) {
+			String directory = System.getProperty(DIRECTORY_PROPERTY);
+			if (directory == null || directory.length() == 0) {
+				directory = new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY).getPath();
+			}
+			defaultStore = new HistoryStore(new File(directory), retention);
+		} else if (retention > defaultStore.retention) {
+			defaultStore.retention = retention;
+		}
+		return defaultStore;
+	}
+
+	/**
+	 * @return the time in milliseconds the samples are kept
+	 */
+	public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Creates the recorder of a connected performance monitor, which appends
+	 * the samples of the monitor once it is set as its
+	 * {@link PerformanceMonitor#setSampleListener(SampleListener) listener}.
+	 * The history of the host is opened if this is its first recorder, and
+	 * closed when its last recorder is {@link Recorder#close() closed}.
+	 *
+	 * @param monitor
+	 *            a connected performance monitor
+	 * @return the recorder
+	 * @throws IOException
+	 *             if the history of the host cannot be opened
+	 */
+	public Recorder createRecorder(PerformanceMonitor monitor) throws IOException {
+		String hostName = monitor.getHostname();
+		if (hostName == null) {
+			throw new IOException("the performance monitor is not connected");
+		}
+		return new Recorder(monitor, getHost(hostName, true));
+	}
+
+	/**
+	 * Reads the valid values of a counter in a time range, oldest segment
+	 * first. A counter which was not registered in this JVM yet can be read
+	 * with the id assigned by
+	 * {@link CounterPathDictionary#getId(String, String, String, String)}.
+	 * To read more values than fit into the arrays, read again from the time
+	 * after the last one returned.
+	 *
+	 * @param counterId
+	 *            the id of the counter in the dictionary of the store
+	 * @param from
+	 *            the earliest time in milliseconds since the epoch
+	 * @param to
+	 *            the latest time in milliseconds since the epoch
+	 * @param times
+	 *            receives the times of the values
+	 * @param values
+	 *            receives the values
+	 * @return the number of values read, at most the length of the arrays
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	public int read(int counterId, long from, long to, long[] times, long[] values) throws IOException {
+		CounterPath path = dictionary.getPath(counterId);
+		if (path == null) {
+			return 0;
+		}
+		HostHistory host = getHost(path.getHostName(), false);
+		if (host == null) {
+			return 0;
+		}
+		try {
+			synchronized (host) {
+				int series = host.findSeries(path);
+				return series < 0 ? 0 : host.read(series, from, to, times, values);
+			}
+		} finally {
+			release(host);
+		}
+	}
+
+	/**
+	 * Closes the histories of all hosts, the recorders stop appending.
+	 */
+	public void close() {
+		synchronized (hosts) {
+			closed = true;
+			for (HostHistory host : hosts.values()) {
+				host.close();
+			}
+			hosts.clear();
+		}
+	}
+
+	/**
+	 * Releases a reference to the history of a host, which is closed if it
+	 * was the last one.
+	 */
+	private void release(HostHistory host) {
+		synchronized (hosts) {
+			if (--host.references > 0 || hosts.get(host.fileName) != host) {
+				return;
+			}
+			hosts.remove(host.fileName);
+			host.close();
+		}
+	}
+
+	/**
+	 * Returns the history of a host with a new reference, which is released
+	 * by {@link #release(HostHistory)}. The history is opened if it is not
+	 * open yet.
+	 * 
+	 * @return <tt>null</tt> if the host has no history and is not created
+	 */
+	private HostHistory getHost(String hostName, boolean create) throws IOException {
+		String fileName = toFileName(hostName);
+		synchronized (hosts) {
+			if (closed) {
+				throw new IOException(ERR_CLOSED);
+			}
+			HostHistory host = hosts.get(fileName);
+			if (host == null) {
+				File hostDirectory = new File(directory, fileName);
+				if (!create && !hostDirectory.isDirectory()) {
+					return null;
+				}
+				host = new HostHistory(hostName, fileName, hostDirectory);
+				if (!host.lock()) {
+					File processDirectory = new File(directory, fileName + "." + getProcessId());
+					if (!create && !processDirectory.isDirectory()) {
+						return null;
+					}
+					if (log.isLoggable(Level.WARNING)) {
+						log.warning(ERR_LOCKED + hostDirectory + ", the history of host " + hostName
+								+ " is kept in " + processDirectory);
+					}
+					host = new HostHistory(hostName, fileName, processDirectory);
+					if (!host.lock()) {
+						throw new IOException(ERR_LOCKED + processDirectory);
+					}
+				}
+				try {
+					host.open();
+				} catch (IOException ex) {
+					host.unlock();
+					throw ex;
+				}
+				hosts.put(fileName, host);
+			}
+			host.references++;
+			return host;
+		}
+	}
+
+	/**
+	 * @return the id of this process, or a unique name if it is unknown
+	 */
+	private static String getProcessId() {
+		// "pid@hostname" on the usual JVMs
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int end = name.indexOf('@');
+		return toFileName(end > 0 ? name.substring(0, end) : name);
+	}
+
+	private static Segment readHeader(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_SIZE || raf.readInt() != SEGMENT_MAGIC || raf.readInt() != VERSION) {
+				if (log.isLoggable(Level.WARNING)) {
+					log.warning(ERR_SEGMENT + file);
+				}
+				return null;
+			}
+			long firstTime = raf.readLong();
+			long lastTime = raf.readLong();
+			int used = raf.readInt();
+			return new Segment(file, firstTime, lastTime, used, (int) raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static MappedByteBuffer mapForReading(File file) throws IOException {
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException ex) {
+			// evicted
+			return null;
+		}
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static String toSegmentName(long time) {
+		String hex = Long.toHexString(time);
+		StringBuilder name = new StringBuilder(16 + SEGMENT_EXTENSION.length());
+		for (int i = hex.length(); i < 16; i++) {
+			name.append('0');
+		}
+		return name.append(hex).append(SEGMENT_EXTENSION).toString();
+	}
+
+	private static String toKey(String objectName, String counterName, String instanceName) {
+		// the separators do not occur in names
+		return objectName + '\u0000' + counterName + (instanceName == null ? "\u0001" : '\u0000' + instanceName);
+	}
+
+	private static String toFileName(String hostName) {
+		StringBuilder fileName = new StringBuilder(hostName.length());
+		for (int i = 0; i < hostName.length(); i++) {
+			char c = hostName.charAt(i);
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.'
+					|| c == '-';
+			fileName.append(valid ? Character.toLowerCase(c) : '_');
+		}
+		return fileName.toString();
+	}
+}
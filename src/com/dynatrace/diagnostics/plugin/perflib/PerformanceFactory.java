@@ -1,29 +1,67 @@
 package com.dynatrace.diagnostics.plugin.perflib;
 
+import java.io.File;
+import java.io.IOException;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.InvalidOperationException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.NativePerformanceBackend;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.PerformanceBackend;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.PerformanceMonitorImpl;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.ReplayPerformanceBackend;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.SharedPerformanceSession;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.SimulatedPerformanceBackend;
 
 /**
  * Creates objects that can be used to gather performance information.
- * 
+ * <p>
+ * By default the native perfmon library is used. Setting the system property
+ * <tt>com.dynatrace.diagnostics.plugin.perflib.backend</tt> to
+ * <tt>simulated</tt> selects a {@link SimulatedPerformanceBackend} instead,
+ * which also works on other operating systems, <tt>replay:</tt> followed by
+ * the path of a capture file selects a {@link ReplayPerformanceBackend} which
+ * replays the capture at the speed given by the system property
+ * <tt>com.dynatrace.diagnostics.plugin.perflib.replaySpeed</tt> (1 by
+ * default). A backend can also be set programmatically with
+ * {@link #setBackend(PerformanceBackend)}.
+ *
  */
 public class PerformanceFactory {
-	
+
 	// constants
 	private static final String WINDOWS = "WINDOWS";
 	private static final String OS_NAME = System.getProperty("os.name");
 	private static final String ERR_UNSUPPORTED_OS = "unsupported OS: ";
+	private static final String BACKEND_PROPERTY = "com.dynatrace.diagnostics.plugin.perflib.backend";
+	private static final String BACKEND_SIMULATED = "simulated";
+	private static final String BACKEND_REPLAY = "replay:";
+	private static final String REPLAY_SPEED_PROPERTY = "com.dynatrace.diagnostics.plugin.perflib.replaySpeed";
+	private static final String ERR_REPLAY = "cannot replay capture: ";
 
 	/**
-	 * Creates a new PerformanceMonitor instance. This method only is supported
-	 * on Windows operating systems.
-	 * 
+	 * The default maximum age in milliseconds of a sample taken for another
+	 * monitor of the same host which is reused by a query.
+	 */
+	public static final long DEFAULT_MAX_SAMPLE_AGE = SharedPerformanceSession.DEFAULT_MAX_SAMPLE_AGE;
+
+	private static volatile PerformanceBackend backend;
+
+	/**
+	 * Creates a new PerformanceMonitor instance. Unless another backend is
+	 * configured, this method only is supported on Windows operating systems.
+	 *
 	 * @return a new PerformanceMonitor instance
 	 * @throws UnsupportedOperationException
 	 *             if the operating system is unsupported
 	 */
 	public static PerformanceMonitor createPerformanceMonitor()
 			throws UnsupportedOperationException {
+		PerformanceBackend configuredBackend = getBackend();
+		if (configuredBackend != null) {
+			return new PerformanceMonitorImpl(configuredBackend);
+		}
+
 		// check if we are running under a supported windows platform
 		if (OS_NAME == null || !OS_NAME.toUpperCase().contains(WINDOWS))
 			throw new UnsupportedOperationException(ERR_UNSUPPORTED_OS + OS_NAME);
@@ -31,4 +69,169 @@ public class PerformanceFactory {
 		return new PerformanceMonitorImpl();
 	}
 
+	/**
+	 * Returns a connected PerformanceMonitor which shares its connection with
+	 * all other monitors acquired for the same host and translation mode. The
+	 * counters of all monitors are registered in one query, queries which are
+	 * executed within {@link SharedPerformanceSession#DEFAULT_MAX_SAMPLE_AGE}
+	 * milliseconds of each other use the same sample. The connection is closed
+	 * when the last monitor is disconnected. The monitors must not be
+	 * initialized with {@link PerformanceMonitor#init(String, boolean)}.
+	 *
+	 * @param hostname
+	 *            the name or IP address of the host
+	 * @param translation
+	 *            enable or disable the counter name translation
+	 * @return a connected PerformanceMonitor
+	 * @throws UnsupportedOperationException
+	 *             if the operating system is unsupported
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot be initialized
+	 */
+	public static PerformanceMonitor acquirePerformanceMonitor(String hostname, boolean translation)
+			throws UnsupportedOperationException, PerformanceCounterException, InvalidOperationException,
+			IOException {
+		return acquirePerformanceMonitor(hostname, translation, SharedPerformanceSession.DEFAULT_MAX_SAMPLE_AGE);
+	}
+
+	/**
+	 * Returns a connected PerformanceMonitor which shares its connection with
+	 * all other monitors acquired for the same host and translation mode.
+	 *
+	 * @see #acquirePerformanceMonitor(String, boolean)
+	 * @param hostname
+	 *            the name or IP address of the host
+	 * @param translation
+	 *            enable or disable the counter name translation
+	 * @param maxSampleAge
+	 *            the maximum age in milliseconds of a sample taken for
+	 *            another monitor which is reused by the queries of the
+	 *            returned monitor
+	 * @return a connected PerformanceMonitor
+	 * @throws UnsupportedOperationException
+	 *             if the operating system is unsupported
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot be initialized
+	 */
+	public static PerformanceMonitor acquirePerformanceMonitor(String hostname, boolean translation,
+			long maxSampleAge) throws UnsupportedOperationException, PerformanceCounterException,
+			InvalidOperationException, IOException {
+		return acquirePerformanceMonitor(hostname, translation, maxSampleAge, 0);
+	}
+
+	/**
+	 * Returns a connected PerformanceMonitor which shares its connection with
+	 * all other monitors acquired for the same host and translation mode. If
+	 * a sampling interval is given, a background thread of the shared
+	 * connection requeries the counters at this interval and the queries of
+	 * the monitor return the latest sample without waiting for the host. The
+	 * timestamp of the returned snapshot tells its age.
+	 *
+	 * @see #acquirePerformanceMonitor(String, boolean)
+	 * @param hostname
+	 *            the name or IP address of the host
+	 * @param translation
+	 *            enable or disable the counter name translation
+	 * @param maxSampleAge
+	 *            the maximum age in milliseconds of a sample taken for
+	 *            another monitor which is reused by the queries of the
+	 *            returned monitor
+	 * @param samplingInterval
+	 *            the interval in milliseconds of the background sampling,
+	 *            0 to query when the monitor is queried
+	 * @return a connected PerformanceMonitor
+	 * @throws UnsupportedOperationException
+	 *             if the operating system is unsupported
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot be initialized
+	 */
+	public static PerformanceMonitor acquirePerformanceMonitor(String hostname, boolean translation,
+			long maxSampleAge, long samplingInterval) throws UnsupportedOperationException,
+			PerformanceCounterException, InvalidOperationException, IOException {
+		PerformanceBackend configuredBackend = getBackend();
+		if (configuredBackend == null && (OS_NAME == null || !OS_NAME.toUpperCase().contains(WINDOWS)))
+			throw new UnsupportedOperationException(ERR_UNSUPPORTED_OS + OS_NAME);
+
+		return SharedPerformanceSession.acquire(configuredBackend, hostname, translation, maxSampleAge,
+				samplingInterval);
+	}
+
+	/**
+	 * Creates a new PerformanceMonitor instance which uses the given backend.
+	 *
+	 * @param backend
+	 *            the counter library used by the monitor
+	 * @return a new PerformanceMonitor instance
+	 */
+	public static PerformanceMonitor createPerformanceMonitor(PerformanceBackend backend) {
+		return new PerformanceMonitorImpl(backend);
+	}
+
+	/**
+	 * Sets the backend used by {@link #createPerformanceMonitor()}.
+	 *
+	 * @param backend
+	 *            the backend, or <tt>null</tt> to use the native perfmon
+	 *            library again
+	 */
+	public static void setBackend(PerformanceBackend backend) {
+		PerformanceFactory.backend = backend;
+	}
+
+	/**
+	 * @return the backend used by {@link #createPerformanceMonitor()}, or
+	 *         <tt>null</tt> if the native perfmon library is used
+	 * @throws UnsupportedOperationException
+	 *             if the configured capture cannot be replayed
+	 */
+	public static PerformanceBackend getBackend() {
+		if (backend == null) {
+			String name = System.getProperty(BACKEND_PROPERTY);
+			if (BACKEND_SIMULATED.equalsIgnoreCase(name)) {
+				synchronized (PerformanceFactory.class) {
+					if (backend == null) {
+						backend = new SimulatedPerformanceBackend();
+					}
+				}
+			} else if (name != null && name.startsWith(BACKEND_REPLAY)) {
+				synchronized (PerformanceFactory.class) {
+					if (backend == null) {
+						backend = createReplayBackend(new File(name.substring(BACKEND_REPLAY.length())));
+					}
+				}
+			}
+		}
+		return backend;
+	}
+
+	/**
+	 * @return the backend used by {@link #createPerformanceMonitor()}, the
+	 *         native perfmon library unless another backend is configured
+	 * @throws UnsupportedOperationException
+	 *             if the native library is used and the operating system is
+	 *             unsupported
+	 */
+	static PerformanceBackend resolveBackend() throws UnsupportedOperationException {
+		PerformanceBackend configuredBackend = getBackend();
+		if (configuredBackend != null) {
+			return configuredBackend;
+		}
+		if (OS_NAME == null || !OS_NAME.toUpperCase().contains(WINDOWS))
+			throw new UnsupportedOperationException(ERR_UNSUPPORTED_OS + OS_NAME);
+
+		return NativePerformanceBackend.INSTANCE;
+	}
+
+	private static PerformanceBackend createReplayBackend(File capture) {
+		try {
+			return new ReplayPerformanceBackend(capture, Double.parseDouble(System.getProperty(
+					REPLAY_SPEED_PROPERTY, "1")));
+		} catch (IOException ex) {
+			throw new UnsupportedOperationException(ERR_REPLAY + ex.getMessage(), ex);
+		} catch (IllegalArgumentException ex) {
+			throw new UnsupportedOperationException(ERR_REPLAY + REPLAY_SPEED_PROPERTY + "="
+					+ System.getProperty(REPLAY_SPEED_PROPERTY), ex);
+		}
+	}
+
 }
@@ -0,0 +1,114 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+/**
+ * The full path of a counter instance: host, object, counter and instance
+ * name. Paths are created by a {@link CounterPathDictionary}, which assigns
+ * each path a compact id and shares the name strings between paths.
+ */
+public final class CounterPath {
+
+	private final int id;
+	private final String hostName;
+	private final String objectName;
+	private final String counterName;
+	private final String instanceName;
+	private final int hash;
+
+	CounterPath(int id, String hostName, String objectName, String counterName, String instanceName) {
+		this.id = id;
+		this.hostName = hostName;
+		this.objectName = objectName;
+		this.counterName = counterName;
+		this.instanceName = instanceName;
+		this.hash = hashCode(hostName, objectName, counterName, instanceName);
+	}
+
+	/**
+	 * @return the id of this path in its dictionary
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public String getHostName() {
+		return hostName;
+	}
+
+	public String getObjectName() {
+		return objectName;
+	}
+
+	public String getCounterName() {
+		return counterName;
+	}
+
+	/**
+	 * @return the name of the instance, <tt>null</tt> if the object has no
+	 *         instances
+	 */
+	public String getInstanceName() {
+		return instanceName;
+	}
+
+	/**
+	 * @param hostName
+	 *            the name of the host
+	 * @param objectName
+	 *            the name of the object
+	 * @param counterName
+	 *            the name of the counter
+	 * @param instanceName
+	 *            the name of the instance, may be <tt>null</tt>
+	 * @return if this path consists of the given names
+	 */
+	boolean matches(String hostName, String objectName, String counterName, String instanceName) {
+		return equals(this.counterName, counterName) && equals(this.instanceName, instanceName)
+				&& equals(this.objectName, objectName) && equals(this.hostName, hostName);
+	}
+
+	static int hashCode(String hostName, String objectName, String counterName, String instanceName) {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((hostName == null) ? 0 : hostName.hashCode());
+		result = prime * result + ((objectName == null) ? 0 : objectName.hashCode());
+		result = prime * result + ((counterName == null) ? 0 : counterName.hashCode());
+		result = prime * result + ((instanceName == null) ? 0 : instanceName.hashCode());
+		return result;
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == b || (a != null && a.equals(b));
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		CounterPath other = (CounterPath) obj;
+		return hash == other.hash && matches(other.hostName, other.objectName, other.counterName, other.instanceName);
+	}
+
+	/**
+	 * @return the path in the notation of the windows performance monitor,
+	 *         e.g. <tt>\\host\Processor(_Total)\% Processor Time</tt>
+	 */
+	@Override
+	public String toString() {
+		StringBuilder path = new StringBuilder();
+		if (hostName != null) {
+			path.append("\\\\").append(hostName);
+		}
+		path.append('\\').append(objectName);
+		if (instanceName != null) {
+			path.append('(').append(instanceName).append(')');
+		}
+		return path.append('\\').append(counterName).toString();
+	}
+}
@@ -0,0 +1,145 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns each counter path (host, object, counter, instance) a compact int
+ * id. Ids are assigned consecutively starting with 0 and never change, so
+ * they can be used as keys of arrays and primitive maps instead of the
+ * names. The name strings of all paths are shared, equal names of different
+ * paths are the same String instance.
+ * <p>
+ * Paths are never removed, a dictionary grows with the number of distinct
+ * counters that were registered. All methods are thread safe.
+ */
+public class CounterPathDictionary {
+
+	private static final CounterPathDictionary DEFAULT = new CounterPathDictionary();
+
+	private final Map<String, String> names = new HashMap<String, String>();
+	private CounterPath[] paths = new CounterPath[64];
+	// open addressing hash table of id + 1, 0 marks an empty bucket
+	private int[] buckets = new int[128];
+	private int size;
+
+	/**
+	 * @return the dictionary shared by all performance monitors of this JVM
+	 */
+	public static CounterPathDictionary getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the id of a path, the path is added if it is not part of the
+	 * dictionary yet.
+	 *
+	 * @param hostName
+	 *            the name of the host
+	 * @param objectName
+	 *            the name of the object
+	 * @param counterName
+	 *            the name of the counter
+	 * @param instanceName
+	 *            the name of the instance, may be <tt>null</tt>
+	 * @return the id of the path
+	 */
+	public synchronized int getId(String hostName, String objectName, String counterName, String instanceName) {
+		int id = findId(hostName, objectName, counterName, instanceName);
+		if (id >= 0) {
+			return id;
+		}
+		id = size++;
+		if (id == paths.length) {
+			paths = Arrays.copyOf(paths, paths.length * 2);
+		}
+		paths[id] = new CounterPath(id, canonical(hostName), canonical(objectName), canonical(counterName),
+				canonical(instanceName));
+		if (size * 2 > buckets.length) {
+			rehash(buckets.length * 2);
+		} else {
+			insert(paths[id]);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the id of a path without adding it.
+	 *
+	 * @param hostName
+	 *            the name of the host
+	 * @param objectName
+	 *            the name of the object
+	 * @param counterName
+	 *            the name of the counter
+	 * @param instanceName
+	 *            the name of the instance, may be <tt>null</tt>
+	 * @return the id of the path, -1 if the path is not part of the dictionary
+	 */
+	public synchronized int findId(String hostName, String objectName, String counterName, String instanceName) {
+		int mask = buckets.length - 1;
+		int bucket = spread(CounterPath.hashCode(hostName, objectName, counterName, instanceName)) & mask;
+		while (buckets[bucket] != 0) {
+			CounterPath path = paths[buckets[bucket] - 1];
+			if (path.matches(hostName, objectName, counterName, instanceName)) {
+				return path.getId();
+			}
+			bucket = (bucket + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param id
+	 *            the id of a path
+	 * @return the path with the given id
+	 * @throws IndexOutOfBoundsException
+	 *             if there is no path with the given id
+	 */
+	public synchronized CounterPath getPath(int id) {
+		if (id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException(String.valueOf(id));
+		}
+		return paths[id];
+	}
+
+	/**
+	 * @return the number of paths, which is also the next id
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private String canonical(String name) {
+		if (name == null) {
+			return null;
+		}
+		String canonical = names.get(name);
+		if (canonical == null) {
+			names.put(name, name);
+			canonical = name;
+		}
+		return canonical;
+	}
+
+	private void rehash(int capacity) {
+		buckets = new int[capacity];
+		for (int i = 0; i < size; i++) {
+			insert(paths[i]);
+		}
+	}
+
+	private void insert(CounterPath path) {
+		int mask = buckets.length - 1;
+		int bucket = spread(path.hashCode()) & mask;
+		while (buckets[bucket] != 0) {
+			bucket = (bucket + 1) & mask;
+		}
+		buckets[bucket] = path.getId() + 1;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,124 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies in nanoseconds with logarithmic buckets: each
+ * power of two is split into {@link #SUB_BUCKETS} buckets, so a percentile is
+ * reported with a relative error below 25%. Recording a latency is a few
+ * arithmetic operations and does not allocate memory, the histogram has a
+ * fixed size of about 2 KB.
+ * <p>
+ * The histogram is not thread safe. The counts are cumulative, the latencies
+ * of an interval are obtained by subtracting the histogram at the start of
+ * the interval.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of buckets per power of two.
+	 */
+	public static final int SUB_BUCKETS = 4;
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+
+	/**
+	 * Records a latency, negative latencies are recorded as 0.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		counts[getBucket(Math.max(nanos, 0))]++;
+		count++;
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the latency below or at which the given percentile of the
+	 * recorded latencies lies, by the nearest rank. The latency is the upper
+	 * bound of its bucket.
+	 *
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the latency in nanoseconds, 0 if no latency was recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank) {
+				return getUpperBound(bucket);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Replaces the counts of this histogram with the counts of another one.
+	 */
+	public void set(LatencyHistogram histogram) {
+		System.arraycopy(histogram.counts, 0, counts, 0, BUCKETS);
+		count = histogram.count;
+	}
+
+	/**
+	 * Subtracts the counts of an earlier state of this histogram, the result
+	 * holds the latencies recorded since then.
+	 *
+	 * @param baseline
+	 *            the histogram at the start of the interval
+	 */
+	public void subtract(LatencyHistogram baseline) {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			counts[bucket] = Math.max(0, counts[bucket] - baseline.counts[bucket]);
+		}
+		count = Math.max(0, count - baseline.count);
+	}
+
+	/**
+	 * Removes all recorded latencies.
+	 */
+	public void clear() {
+		Arrays.fill(counts, 0);
+		count = 0;
+	}
+
+	/**
+	 * Latencies below {@link #SUB_BUCKETS} have a bucket each, larger ones
+	 * share a bucket with the latencies of the same power of two and the same
+	 * two bits below the highest one.
+	 */
+	private static int getBucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long lowerBound = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
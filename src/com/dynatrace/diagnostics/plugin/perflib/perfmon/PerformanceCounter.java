@@ -22,6 +22,8 @@ public class PerformanceCounter implements Cloneable {
 		private boolean doLog;		
 		private boolean initialized = false;
 		private String lastErrorMessage = null;
+		private int handle = -1;
+		private int counterId = -1;
 		
 		
 		/* (non-Javadoc)
@@ -82,7 +84,42 @@ public class PerformanceCounter implements Cloneable {
 		}
 		public String getLastErrorMessage() {
 			return lastErrorMessage;
-		}	
+		}
+		/**
+		 * Sets the handle under which the counter library retrieves the value
+		 * of this instance.
+		 * 
+		 * @param handle
+		 *            the handle, -1 if the instance is not registered
+		 */
+		public void setHandle(int handle) {
+			this.handle = handle;
+		}
+		/**
+		 * @return the handle under which the counter library retrieves the
+		 *         value of this instance, -1 if the instance is not registered
+		 */
+		public int getHandle() {
+			return handle;
+		}
+		/**
+		 * Sets the id of the counter path of this instance.
+		 * 
+		 * @param counterId
+		 *            the id in the {@link CounterPathDictionary}, -1 if the
+		 *            instance was not added to a query
+		 */
+		public void setCounterId(int counterId) {
+			this.counterId = counterId;
+		}
+		/**
+		 * @return the id of the counter path of this instance in the
+		 *         {@link CounterPathDictionary}, -1 if the instance was not
+		 *         added to a query
+		 */
+		public int getCounterId() {
+			return counterId;
+		}
 	}
 	
 	private String name;
@@ -1,5 +1,10 @@
 package com.dynatrace.diagnostics.plugin.perflib.perfmon;
 
+/**
+ * Identifies a queried counter instance by its object, counter and instance
+ * name. Keys created by a performance monitor also carry the id of the
+ * counter path, which makes comparing them cheap.
+ */
 public class PerformanceMeasureKey {
 
 	@Override
@@ -23,6 +28,9 @@ public class PerformanceMeasureKey {
 		if (getClass() != obj.getClass())
 			return false;
 		PerformanceMeasureKey other = (PerformanceMeasureKey) obj;
+		if (counterId >= 0 && other.counterId >= 0) {
+			return counterId == other.counterId;
+		}
 		if (counterName == null) {
 			if (other.counterName != null)
 				return false;
@@ -42,31 +50,52 @@ public class PerformanceMeasureKey {
 	}
 	public PerformanceMeasureKey(String objectName, String counterName,
 			String instanceName) {
+		this(objectName, counterName, instanceName, -1);
+	}
+	/**
+	 * @param counterId
+	 *            the id of the counter path in the
+	 *            {@link CounterPathDictionary}, -1 if unknown
+	 */
+	public PerformanceMeasureKey(String objectName, String counterName,
+			String instanceName, int counterId) {
 		super();
 		this.objectName = objectName;
 		this.counterName = counterName;
 		this.instanceName = instanceName;
+		this.counterId = counterId;
 	}
 	private String objectName;
 	private String counterName;
 	private String instanceName;
+	private int counterId;
 	public void setObjectName(String objectName) {
 		this.objectName = objectName;
+		this.counterId = -1;
 	}
 	public String getObjectName() {
 		return objectName;
 	}
 	public void setCounterName(String counterName) {
 		this.counterName = counterName;
+		this.counterId = -1;
 	}
 	public String getCounterName() {
 		return counterName;
 	}
 	public void setInstanceName(String instanceName) {
 		this.instanceName = instanceName;
+		this.counterId = -1;
 	}
 	public String getInstanceName() {
 		return instanceName;
 	}
+	/**
+	 * @return the id of the counter path in the {@link CounterPathDictionary},
+	 *         -1 if unknown
+	 */
+	public int getCounterId() {
+		return counterId;
+	}
 	
 }
@@ -29,6 +29,12 @@ public interface PerformanceMonitor {
 	 */
 	void disconnect();
 
+	/**
+	 * @return the name or IP address of the connected host, <tt>null</tt> if
+	 *         this performance monitor is not connected
+	 */
+	String getHostname();
+
 	/**
 	 * Adds the given performance object to the query. The performance object
 	 * must contain valid counters and the counters must contain valid instance
@@ -54,6 +60,85 @@ public interface PerformanceMonitor {
 	 */
 	PerformanceObject getPerformanceObject(String objectName);
 	
+	/**
+	 * Returns the id of a counter instance that was added to the query. The
+	 * id identifies the counter path in the {@link CounterPathDictionary}
+	 * and can be used for all further lookups.
+	 * 
+	 * @param objectName
+	 *            the name of the object
+	 * @param counterName
+	 *            the name of the counter
+	 * @param instanceName
+	 *            the name of the instance, <tt>null</tt> if the object has no
+	 *            instances
+	 * @return the id of the counter, -1 if the counter is not part of the
+	 *         query
+	 */
+	int getCounterId(String objectName, String counterName, String instanceName);
+
+	/**
+	 * Returns the stored instance of a counter that was added to the query.
+	 * Its handle is the slot of the counter in a {@link QuerySnapshot}, its
+	 * state tells if the last query of the counter failed.
+	 * 
+	 * @param counterId
+	 *            the id of the counter
+	 * @return the instance or <tt>null</tt> if the counter is not part of the
+	 *         query
+	 */
+	PerformanceCounter.PerformanceInstance getInstance(int counterId);
+
+	/**
+	 * @param counterId
+	 *            the id of a counter
+	 * @return the host, object, counter and instance name of the counter
+	 */
+	CounterPath getCounterPath(int counterId);
+
+	/**
+	 * Returns the counter ids of the slots of the snapshots filled by this
+	 * monitor.
+	 * 
+	 * @param counterIds
+	 *            an array which is reused if it is large enough, may be
+	 *            <tt>null</tt>
+	 * @return the id of the counter of each slot, -1 for slots which do not
+	 *         belong to a counter of this monitor; the array can be longer
+	 *         than the snapshots
+	 */
+	int[] getSlotCounterIds(int[] counterIds);
+
+	/**
+	 * Returns the names of the performance objects of the connected host. The
+	 * names are taken from the catalog of the host and are enumerated again
+	 * when the time to live of the catalog has expired.
+	 * 
+	 * @see #setCatalogTimeToLive(long)
+	 * @return the names of the objects
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot retrieve the information
+	 * @throws InvalidOperationException
+	 *             if this performance monitor is not connected
+	 */
+	String[] getObjectNames() throws PerformanceCounterException, InvalidOperationException;
+
+	/**
+	 * Retrieves the names of the current instances of a performance object
+	 * from the connected host. The names are enumerated on every call, callers
+	 * which need them periodically should cache them.
+	 * 
+	 * @param objectName
+	 *            the name of the object
+	 * @return the names of the instances
+	 * @throws PerformanceCounterException
+	 *             if the instances cannot be retrieved or the object has no
+	 *             instances
+	 * @throws InvalidOperationException
+	 *             if this performance monitor is not connected
+	 */
+	String[] getInstanceNames(String objectName) throws PerformanceCounterException, InvalidOperationException;
+
 	/**
 	 * Clears the query. All performance objects, counters and instance names
 	 * will be removed.
@@ -91,14 +176,55 @@ public interface PerformanceMonitor {
 	 */
 	Map<PerformanceMeasureKey, Long> query() throws PerformanceCounterException, InvalidOperationException;
 
-	// TODO: implement
+	/**
+	 * Executes the query and stores all queried values in the given snapshot.
+	 * The value of a counter instance is stored in the slot given by the
+	 * handle of its {@link PerformanceCounter.PerformanceInstance}, the slots
+	 * of values that could not be retrieved are marked as invalid. Unlike
+	 * {@link #query()} this method does not allocate memory per value, the
+	 * snapshot can be reused for every query.
+	 * 
+	 * @param snapshot
+	 *            receives the queried values
+	 * @throws PerformanceCounterException
+	 *             if the query failed
+	 * @throws InvalidOperationException
+	 *             if this performance monitor is not connected
+	 */
+	void query(QuerySnapshot snapshot) throws PerformanceCounterException, InvalidOperationException;
+
+	/**
+	 * Executes the query like {@link #query(QuerySnapshot)}, but stops once
+	 * the budget is exhausted. The budget is checked between the steps which
+	 * can block on the host, the slots of the counters which were not
+	 * retrieved are marked with {@link QuerySnapshot#ERROR_SKIPPED}. The
+	 * skipped counters are retrieved first by the next query. If the budget
+	 * is exhausted before the requery, the snapshot keeps the timestamp of
+	 * the last sample.
+	 * 
+	 * @param snapshot
+	 *            receives the queried values
+	 * @param budget
+	 *            the budget of the query
+	 * @return the number of skipped counters, 0 if the query is complete
+	 * @throws PerformanceCounterException
+	 *             if the query failed
+	 * @throws InvalidOperationException
+	 *             if this performance monitor is not connected
+	 */
+	int query(QuerySnapshot snapshot, QueryBudget budget) throws PerformanceCounterException,
+			InvalidOperationException;
+
 	/**
 	 * Retrieves all available performance counters from the connected host and
-	 * returns it as a collection of <tt>PerformanceObject</tt>s. This
-	 * operation is currently UNSUPPORTED and will throw an
-	 * {@link UnsupportedOperationException}.
+	 * returns it as a collection of <tt>PerformanceObject</tt>s. The objects
+	 * are taken from a catalog of the host, which is built on first use. An
+	 * object is enumerated again when the time to live of the catalog has
+	 * expired since its last enumeration, objects which cannot be enumerated
+	 * are left out. The returned objects are copies and can be modified.
 	 * 
-	 * @return
+	 * @see #setCatalogTimeToLive(long)
+	 * @return the objects with their counters and instances
 	 * @throws PerformanceCounterException
 	 *             if the perfmon library cannot retrieve the information
 	 * @throws InvalidOperationException
@@ -106,4 +232,67 @@ public interface PerformanceMonitor {
 	 */
 	Collection<PerformanceObject> getPerformanceIdentifiers() throws PerformanceCounterException,
 			InvalidOperationException;
+
+	/**
+	 * Retrieves a single performance object with its counters and instances
+	 * from the catalog of the connected host, e.g. to validate counters before
+	 * they are added to the query. Only this object is enumerated if its time
+	 * to live has expired.
+	 * 
+	 * @param objectName
+	 *            the name of the object
+	 * @return a copy of the object, <tt>null</tt> if the host has no object
+	 *         with this name or it cannot be enumerated
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot retrieve the information
+	 * @throws InvalidOperationException
+	 *             if this performance monitor is not connected
+	 */
+	PerformanceObject getPerformanceIdentifiers(String objectName) throws PerformanceCounterException,
+			InvalidOperationException;
+
+	/**
+	 * Sets the time after which the objects of the catalog used by
+	 * {@link #getPerformanceIdentifiers()} are enumerated again. The default
+	 * is 10 minutes.
+	 * 
+	 * @param timeToLive
+	 *            the time to live in milliseconds
+	 */
+	void setCatalogTimeToLive(long timeToLive);
+
+	/**
+	 * Switches between formatted and raw retrieval. In raw mode the raw
+	 * values of the counters are retrieved once per query and rates, ratios
+	 * and averages are computed from them and the raw values of the previous
+	 * query, using the time stamps of the samples. Counters which need two
+	 * samples are invalid in the first query after the switch. If the perfmon
+	 * library does not provide raw values, the values stay formatted. The
+	 * default is formatted retrieval.
+	 * 
+	 * @param rawMode
+	 *            <tt>true</tt> to compute the values from raw values
+	 */
+	void setRawMode(boolean rawMode);
+
+	/**
+	 * Sets the listener which receives each sample taken by
+	 * {@link #query(QuerySnapshot, QueryBudget)} or by the background
+	 * sampling of a shared connection.
+	 * 
+	 * @param listener
+	 *            the listener, <tt>null</tt> to remove it
+	 */
+	void setSampleListener(SampleListener listener);
+
+	/**
+	 * Copies the statistics of the queries of the connection: the cost of
+	 * the last query and the latency histograms of all queries. For a shared
+	 * connection, these are the queries of all its monitors and of its
+	 * background sampling.
+	 * 
+	 * @param statistics
+	 *            receives the statistics
+	 */
+	void getStatistics(QueryStatistics statistics);
 }
@@ -1,6 +1,5 @@
 package com.dynatrace.diagnostics.plugin.perflib.perfmon;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -184,41 +183,20 @@ public class PerformanceObject implements Cloneable {
 	}
 	
 	public static boolean doLog(PerformanceObject object, String counterName, String instanceName) {
-		if (object == null) return true;
-		PerformanceCounter[] counters = object.getCounters();
-		if (counters == null) return true;
-		for (PerformanceCounter performanceCounter : counters) {
-			if (performanceCounter.getName().equals(counterName)) {
-				Collection<PerformanceInstance> instances = performanceCounter.getInstances();
-				if (instances == null) return true;
-				for (PerformanceInstance performanceInstance : instances) {
-					if (((performanceInstance.getInstanceName() == null) && (instanceName == null)) ||
-						((performanceInstance.getInstanceName() != null) && (instanceName != null)	&& performanceInstance.getInstanceName().equals(instanceName))) {
-						return performanceInstance.isDoLog();
-					}					
-				}				
-			}			
-		}				
-		return true;
+		PerformanceInstance instance = getInstance(object, counterName, instanceName);
+		return instance == null || instance.isDoLog();
 	}
 
 	public static void updateDoLogState(PerformanceObject object, String counterName, String instanceName, boolean newLogState) {
-		if (object == null) return;
-		PerformanceCounter[] counters = object.getCounters();
-		if (counters == null) return;
-		for (PerformanceCounter performanceCounter : counters) {
-			if (performanceCounter.getName().equals(counterName)) {
-				Collection<PerformanceInstance> instances = performanceCounter.getInstances();
-				if (instances == null) return;
-				for (PerformanceInstance performanceInstance : instances) {
-					if (((performanceInstance.getInstanceName() == null) && (instanceName == null)) ||
-						((performanceInstance.getInstanceName() != null) && (instanceName != null)	&& performanceInstance.getInstanceName().equals(instanceName))) {
-						performanceInstance.setDoLog(newLogState);
-					}					
-				}				
-			}			
-		}						
+		PerformanceInstance instance = getInstance(object, counterName, instanceName);
+		if (instance != null) {
+			instance.setDoLog(newLogState);
+		}
+	}
+
+	private static PerformanceInstance getInstance(PerformanceObject object, String counterName, String instanceName) {
+		if (object == null) return null;
+		PerformanceCounter counter = object.getCounter(counterName);
+		return counter == null ? null : counter.getInstance(instanceName);
 	}
-	
-	
 }
@@ -0,0 +1,16 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+/**
+ * Limits the time of a query. The performance monitor checks the budget
+ * before each step which can block on the host, e.g. the retrieval of a
+ * single value, and skips the remaining steps once the budget is exhausted.
+ * 
+ * @see PerformanceMonitor#query(QuerySnapshot, QueryBudget)
+ */
+public interface QueryBudget {
+
+	/**
+	 * @return <tt>true</tt> if the query should stop as soon as possible
+	 */
+	boolean isExhausted();
+}
@@ -0,0 +1,151 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+import java.util.Arrays;
+
+/**
+ * A reusable result of a query. Each registered counter instance has a slot,
+ * which is the handle of the {@link PerformanceCounter.PerformanceInstance}.
+ * Slots are stable until the query is cleared, so a snapshot can be filled
+ * again and again by {@link PerformanceMonitor#query(QuerySnapshot)} without
+ * allocating memory once it has grown to the size of the query.
+ */
+public class QuerySnapshot {
+
+	/** the value of the slot is valid */
+	public static final int ERROR_NONE = 0;
+	/** the counter exists but had no valid value yet */
+	public static final int ERROR_INVALID_DATA = 1;
+	/** the value of the counter could not be retrieved */
+	public static final int ERROR_FAILED = 2;
+	/** the value was not retrieved because the budget of the query was exhausted */
+	public static final int ERROR_SKIPPED = 3;
+
+	private long[] values = new long[0];
+	private long[] valid = new long[0];
+	private int[] errorCodes = new int[0];
+	private int size;
+	private long timestamp;
+	private long sequence;
+
+	/**
+	 * @return the number of slots
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param slot
+	 *            the slot of a counter instance
+	 * @return if the slot contains a value
+	 */
+	public boolean isValid(int slot) {
+		return slot >= 0 && slot < size && (valid[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * @param slot
+	 *            the slot of a counter instance
+	 * @return the value of the slot, only meaningful if the slot is valid
+	 */
+	public long getValue(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            the slot of a counter instance
+	 * @return one of the <tt>ERROR</tt> constants
+	 */
+	public int getErrorCode(int slot) {
+		return errorCodes[slot];
+	}
+
+	/**
+	 * @return the time the sample was taken, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the number of the sample, incremented by every query
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Resizes the snapshot to the given number of slots and invalidates all
+	 * slots. Called by the performance monitor before the slots are filled.
+	 *
+	 * @param size
+	 *            the number of slots
+	 */
+	public void reset(int size) {
+		if (values.length < size) {
+			int capacity = Math.max(size, values.length + (values.length >> 1));
+			values = new long[capacity];
+			errorCodes = new int[capacity];
+			valid = new long[(capacity + 63) >>> 6];
+		} else {
+			Arrays.fill(valid, 0L);
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Stores a valid value. Called by the performance monitor.
+	 *
+	 * @param slot
+	 *            the slot of a counter instance
+	 * @param value
+	 *            the value
+	 */
+	public void setValue(int slot, long value) {
+		values[slot] = value;
+		errorCodes[slot] = ERROR_NONE;
+		valid[slot >>> 6] |= 1L << slot;
+	}
+
+	/**
+	 * Marks a slot as invalid. Called by the performance monitor.
+	 *
+	 * @param slot
+	 *            the slot of a counter instance
+	 * @param errorCode
+	 *            one of the <tt>ERROR</tt> constants
+	 */
+	public void setError(int slot, int errorCode) {
+		errorCodes[slot] = errorCode;
+		valid[slot >>> 6] &= ~(1L << slot);
+	}
+
+	/**
+	 * Copies all slots and the time of another snapshot and advances the
+	 * sequence number, e.g. to hand out a sample shared by several monitors.
+	 *
+	 * @param source
+	 *            the snapshot to copy
+	 */
+	public void copyFrom(QuerySnapshot source) {
+		reset(source.size);
+		System.arraycopy(source.values, 0, values, 0, source.size);
+		System.arraycopy(source.errorCodes, 0, errorCodes, 0, source.size);
+		System.arraycopy(source.valid, 0, valid, 0, (source.size + 63) >>> 6);
+		setTimestamp(source.timestamp);
+	}
+
+	/**
+	 * Sets the time of the sample and advances the sequence number. Called by
+	 * the performance monitor.
+	 *
+	 * @param timestamp
+	 *            the time the sample was taken, in milliseconds since the
+	 *            epoch
+	 */
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+		this.sequence++;
+	}
+}
@@ -0,0 +1,143 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+/**
+ * The cost of the queries of a connection, filled by
+ * {@link PerformanceMonitor#getStatistics(QueryStatistics)}. The figures of
+ * the last query tell where the time of a slow execution went, the latency
+ * histograms cover all queries since the connection was established.
+ * <p>
+ * Like a {@link QuerySnapshot}, the statistics are owned by the caller and
+ * can be filled again and again without allocating memory.
+ */
+public class QueryStatistics {
+
+	private long queryCount;
+	private long requeryNanos;
+	private long retrievalNanos;
+	private long nativeCalls;
+	private int failedCounters;
+	private int skippedCounters;
+	private long resultBytes;
+	private final LatencyHistogram requeryLatencies = new LatencyHistogram();
+	private final LatencyHistogram retrievalLatencies = new LatencyHistogram();
+
+	/**
+	 * @return the number of queries which took a sample since the connection
+	 *         was established
+	 */
+	public long getQueryCount() {
+		return queryCount;
+	}
+
+	/**
+	 * @return the time the last requery took, in nanoseconds
+	 */
+	public long getRequeryNanos() {
+		return requeryNanos;
+	}
+
+	/**
+	 * @return the time the retrieval of the values of the last query took, in
+	 *         nanoseconds
+	 */
+	public long getRetrievalNanos() {
+		return retrievalNanos;
+	}
+
+	/**
+	 * @return the number of calls of the perfmon library since the previous
+	 *         query, including the registration of counters
+	 */
+	public long getNativeCalls() {
+		return nativeCalls;
+	}
+
+	/**
+	 * @return the number of counters which could not be registered or had no
+	 *         valid value in the last query
+	 */
+	public int getFailedCounters() {
+		return failedCounters;
+	}
+
+	/**
+	 * @return the number of counters skipped by the last query because its
+	 *         budget was exhausted
+	 */
+	public int getSkippedCounters() {
+		return skippedCounters;
+	}
+
+	/**
+	 * @return the size in bytes of the values, statuses and error messages
+	 *         the last query produced
+	 */
+	public long getResultBytes() {
+		return resultBytes;
+	}
+
+	/**
+	 * @return the latencies of all requeries, must not be modified
+	 */
+	public LatencyHistogram getRequeryLatencies() {
+		return requeryLatencies;
+	}
+
+	/**
+	 * @return the latencies of all value retrievals, must not be modified
+	 */
+	public LatencyHistogram getRetrievalLatencies() {
+		return retrievalLatencies;
+	}
+
+	/**
+	 * Records a query.
+	 *
+	 * @param requeryNanos
+	 *            the time the requery took, -1 if the query did not requery
+	 * @param retrievalNanos
+	 *            the time the retrieval of the values took, -1 if the values
+	 *            were not retrieved
+	 * @param nativeCalls
+	 *            the number of calls of the perfmon library since the
+	 *            previous query
+	 * @param failedCounters
+	 *            the number of counters which could not be registered or
+	 *            had no valid value
+	 * @param skippedCounters
+	 *            the number of counters skipped by the query
+	 * @param resultBytes
+	 *            the size of the result of the query
+	 */
+	public void recordQuery(long requeryNanos, long retrievalNanos, long nativeCalls, int failedCounters,
+			int skippedCounters, long resultBytes) {
+		queryCount++;
+		this.requeryNanos = Math.max(requeryNanos, 0);
+		this.retrievalNanos = Math.max(retrievalNanos, 0);
+		this.nativeCalls = nativeCalls;
+		this.failedCounters = failedCounters;
+		this.skippedCounters = skippedCounters;
+		this.resultBytes = resultBytes;
+		if (requeryNanos >= 0) {
+			requeryLatencies.record(requeryNanos);
+		}
+		if (retrievalNanos >= 0) {
+			retrievalLatencies.record(retrievalNanos);
+		}
+	}
+
+	/**
+	 * Replaces these statistics with a copy of other statistics.
+	 */
+	public void set(QueryStatistics statistics) {
+		queryCount = statistics.queryCount;
+		requeryNanos = statistics.requeryNanos;
+		retrievalNanos = statistics.retrievalNanos;
+		nativeCalls = statistics.nativeCalls;
+		failedCounters = statistics.failedCounters;
+		skippedCounters = statistics.skippedCounters;
+		resultBytes = statistics.resultBytes;
+		requeryLatencies.set(statistics.requeryLatencies);
+		retrievalLatencies.set(statistics.retrievalLatencies);
+	}
+}
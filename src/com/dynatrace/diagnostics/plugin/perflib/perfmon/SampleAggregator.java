@@ -0,0 +1,236 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the samples of each slot over an interval, e.g. the samples a
+ * background sampler takes between two executions of a monitor. The count,
+ * minimum, maximum and average cover all samples of the interval, the
+ * percentile covers the latest samples up to the capacity, which are kept in
+ * a ring buffer per slot.
+ * <p>
+ * The memory of a slot is fixed, two ring buffers of the capacity: one is
+ * filled by {@link #sampled(QuerySnapshot)}, the other one holds the closed
+ * interval read by {@link #aggregate(int, Statistics)}. Recording a sample
+ * and aggregating a slot do not allocate memory, the buffers only grow when
+ * the snapshots grow. Samples are recorded by one thread, the intervals are
+ * closed and aggregated by another one.
+ */
+public class SampleAggregator implements SampleListener {
+
+	/**
+	 * The default percentile.
+	 */
+	public static final int DEFAULT_PERCENTILE = 95;
+
+	/**
+	 * The aggregated samples of a slot, reused for each slot.
+	 */
+	public static final class Statistics {
+		private int count;
+		private long minimum;
+		private long maximum;
+		private double average;
+		private long percentile;
+
+		/**
+		 * @return the number of samples of the interval
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		public long getMinimum() {
+			return minimum;
+		}
+
+		public long getMaximum() {
+			return maximum;
+		}
+
+		public double getAverage() {
+			return average;
+		}
+
+		/**
+		 * @return the sample below or at which the percentile of the latest
+		 *         samples lies, by the nearest rank
+		 */
+		public long getPercentile() {
+			return percentile;
+		}
+	}
+
+	/**
+	 * The samples of all slots in one interval.
+	 */
+	private static final class Interval {
+		private int slots;
+		// the ring buffer of a slot starts at slot * capacity
+		private long[] samples = new long[0];
+		// the number of samples of the slot, which can exceed the capacity
+		private int[] counts = new int[0];
+		private long[] minimums = new long[0];
+		private long[] maximums = new long[0];
+		private double[] sums = new double[0];
+
+		void ensureSlots(int size, int capacity) {
+			if (slots < size) {
+				int grown = Math.max(size, slots + (slots >> 1));
+				samples = Arrays.copyOf(samples, grown * capacity);
+				counts = Arrays.copyOf(counts, grown);
+				minimums = Arrays.copyOf(minimums, grown);
+				maximums = Arrays.copyOf(maximums, grown);
+				sums = Arrays.copyOf(sums, grown);
+				slots = grown;
+			}
+		}
+
+		void add(int slot, long value, int capacity) {
+			int count = counts[slot];
+			if (count == 0) {
+				minimums[slot] = value;
+				maximums[slot] = value;
+				sums[slot] = value;
+			} else {
+				minimums[slot] = Math.min(minimums[slot], value);
+				maximums[slot] = Math.max(maximums[slot], value);
+				sums[slot] += value;
+			}
+			samples[slot * capacity + count % capacity] = value;
+			counts[slot] = count + 1;
+		}
+
+		void clear() {
+			Arrays.fill(counts, 0, slots, 0);
+		}
+	}
+
+	private final int capacity;
+	private final int percentile;
+	// the interval which receives the samples
+	private Interval current = new Interval();
+	// the interval which is aggregated
+	private Interval closed = new Interval();
+	// the retained samples of the aggregated slot, sorted for the percentile
+	private final long[] sorted;
+
+	/**
+	 * Creates an aggregator which computes the {@link #DEFAULT_PERCENTILE}.
+	 *
+	 * @param capacity
+	 *            the number of samples per slot kept for the percentile
+	 */
+	public SampleAggregator(int capacity) {
+		this(capacity, DEFAULT_PERCENTILE);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of samples per slot kept for the percentile
+	 * @param percentile
+	 *            the percentile, between 1 and 100
+	 */
+	public SampleAggregator(int capacity, int percentile) {
+		if (capacity <= 0 || percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		this.percentile = percentile;
+		this.sorted = new long[capacity];
+	}
+
+	/**
+	 * @return the number of samples per slot kept for the percentile
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the percentile computed by {@link #aggregate(int, Statistics)}
+	 */
+	public int getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * Records the valid slots of a sample in the current interval.
+	 */
+	@Override
+	public synchronized void sampled(QuerySnapshot snapshot) {
+		int size = snapshot.size();
+		current.ensureSlots(size, capacity);
+		for (int slot = 0; slot < size; slot++) {
+			if (snapshot.isValid(slot)) {
+				current.add(slot, snapshot.getValue(slot), capacity);
+			}
+		}
+	}
+
+	/**
+	 * Records the valid slots of a sample which belong to counters, e.g. the
+	 * counters of one subscriber of a shared session. The slots of other
+	 * counters are neither recorded nor allocated.
+	 *
+	 * @param counterIds
+	 *            the counter id of each slot as returned by
+	 *            {@link PerformanceMonitor#getSlotCounterIds(int[])}, slots
+	 *            which are -1 or beyond the array are skipped
+	 */
+	public synchronized void sampled(QuerySnapshot snapshot, int[] counterIds) {
+		int size = Math.min(snapshot.size(), counterIds.length);
+		while (size > 0 && counterIds[size - 1] < 0) {
+			size--;
+		}
+		current.ensureSlots(size, capacity);
+		for (int slot = 0; slot < size; slot++) {
+			if (counterIds[slot] >= 0 && snapshot.isValid(slot)) {
+				current.add(slot, snapshot.getValue(slot), capacity);
+			}
+		}
+	}
+
+	/**
+	 * Closes the current interval, which can be aggregated afterwards, and
+	 * starts a new one.
+	 */
+	public synchronized void closeInterval() {
+		Interval interval = closed;
+		closed = current;
+		interval.ensureSlots(closed.slots, capacity);
+		interval.clear();
+		current = interval;
+	}
+
+	/**
+	 * Aggregates the samples of a slot in the closed interval. Must be called
+	 * by the thread which closes the intervals.
+	 *
+	 * @param slot
+	 *            the slot of a counter instance
+	 * @param statistics
+	 *            receives the aggregated samples
+	 * @return <tt>false</tt> if the slot has no samples in the closed
+	 *         interval
+	 */
+	public boolean aggregate(int slot, Statistics statistics) {
+		Interval interval = closed;
+		if (slot < 0 || slot >= interval.slots || interval.counts[slot] == 0) {
+			return false;
+		}
+		int count = interval.counts[slot];
+		int retained = Math.min(count, capacity);
+		System.arraycopy(interval.samples, slot * capacity, sorted, 0, retained);
+		Arrays.sort(sorted, 0, retained);
+		// nearest rank: the smallest sample with at least the percentile of
+		// the samples at or below it
+		int rank = (int) Math.ceil(percentile / 100.0 * retained);
+		statistics.count = count;
+		statistics.minimum = interval.minimums[slot];
+		statistics.maximum = interval.maximums[slot];
+		statistics.average = interval.sums[slot] / count;
+		statistics.percentile = sorted[Math.max(rank, 1) - 1];
+		return true;
+	}
+}
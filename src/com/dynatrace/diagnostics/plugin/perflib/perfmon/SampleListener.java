@@ -0,0 +1,22 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon;
+
+/**
+ * Receives every sample a performance monitor takes, also the samples of a
+ * background sampler which are never returned by a query because a newer
+ * one was published before.
+ *
+ * @see PerformanceMonitor#setSampleListener(SampleListener)
+ */
+public interface SampleListener {
+
+	/**
+	 * Called with each new sample. The snapshot is only valid during the
+	 * call and must not be modified, the slots are the handles of the
+	 * instances. The call may come from a sampler thread while the connection
+	 * is locked, so it must return quickly.
+	 *
+	 * @param snapshot
+	 *            the sample
+	 */
+	void sampled(QuerySnapshot snapshot);
+}
@@ -0,0 +1,90 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The format of the capture files written by {@link CaptureRecorder} and
+ * replayed by {@link ReplayPerformanceBackend}.
+ * <p>
+ * A capture starts with the magic number, the version, the name of the
+ * recorded host and the time the capture was started. It continues with
+ * records, each starting with its type:
+ * <ul>
+ * <li>a path record introduces a series: its number, the object, counter and
+ * instance name of the counter</li>
+ * <li>a layout record lists the series of the following samples, as
+ * differences of the series numbers</li>
+ * <li>a sample record holds the time as delta of the delta of the previous
+ * sample times, the columns whose value is not valid together with their
+ * status code, and the valid values XORed with the previous valid value of
+ * the series</li>
+ * </ul>
+ * All numbers of the records are varints, signed numbers are zigzag encoded,
+ * so a counter whose value did not change takes a single byte.
+ */
+final class CaptureFormat {
+
+	// 'PCAP'
+	static final int MAGIC = 0x50434150;
+	static final int VERSION = 1;
+
+	static final int RECORD_PATH = 1;
+	static final int RECORD_LAYOUT = 2;
+	static final int RECORD_SAMPLE = 3;
+
+	// the status codes of a column, valid columns are not listed
+	static final int CODE_OK = 0;
+	static final int CODE_INVALID_DATA = 1;
+	static final int CODE_FAILED = 2;
+	static final int CODE_SKIPPED = 3;
+	// the series is not part of the layout of the sample
+	static final int CODE_ABSENT = 4;
+
+	private CaptureFormat() {
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte, least significant first.
+	 */
+	static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	static int readVarInt(InputStream in) throws IOException {
+		long value = readVarLong(in);
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("malformed varint");
+		}
+		return (int) value;
+	}
+}
@@ -0,0 +1,272 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads a capture file written by {@link CaptureRecorder} record by record.
+ * The reader keeps the state of all series: after a sample record, the value
+ * and status code of each series are those of the sample, series which are
+ * not part of the sample have the code {@link CaptureFormat#CODE_ABSENT}.
+ * <p>
+ * A truncated last record, e.g. of a collector that died while writing, ends
+ * the capture like the end of the file.
+ */
+final class CaptureReader {
+
+	private final DataInputStream in;
+	private final String hostName;
+	private final long startTime;
+
+	// the path of the last path record
+	private int pathSeries;
+	private String objectName;
+	private String counterName;
+	private String instanceName;
+
+	// the series of the columns of the current layout
+	private int[] layout = new int[0];
+	private int columnCount = 0;
+	// the state of each series after the last sample
+	private int seriesCount = 0;
+	private long[] values = new long[0];
+	private byte[] codes = new byte[0];
+	private long time = 0;
+	private long previousDelta = 0;
+	private int sampleCount = 0;
+
+	/**
+	 * Opens a capture file and reads its header.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a capture
+	 */
+	CaptureReader(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != CaptureFormat.MAGIC) {
+				throw new IOException("not a capture file: " + file);
+			}
+			int version = in.readInt();
+			if (version != CaptureFormat.VERSION) {
+				throw new IOException("unsupported capture version " + version + ": " + file);
+			}
+			hostName = in.readUTF();
+			startTime = in.readLong();
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return the name of the recorded host
+	 */
+	String getHostName() {
+		return hostName;
+	}
+
+	/**
+	 * @return the time the capture was started
+	 */
+	long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the type of the record, one of the <tt>RECORD</tt> constants of
+	 *         {@link CaptureFormat}, -1 at the end of the capture
+	 * @throws IOException
+	 *             if the capture cannot be read or is corrupt
+	 */
+	int next() throws IOException {
+		int type = in.read();
+		try {
+			switch (type) {
+			case -1:
+				return -1;
+			case CaptureFormat.RECORD_PATH:
+				readPath();
+				break;
+			case CaptureFormat.RECORD_LAYOUT:
+				readLayout();
+				break;
+			case CaptureFormat.RECORD_SAMPLE:
+				readSample();
+				break;
+			default:
+				throw new IOException("corrupt capture, unknown record type " + type);
+			}
+		} catch (EOFException ex) {
+			return -1;
+		}
+		return type;
+	}
+
+	/**
+	 * Reads up to and including the next sample record.
+	 *
+	 * @return <tt>false</tt> at the end of the capture
+	 * @throws IOException
+	 *             if the capture cannot be read or is corrupt
+	 */
+	boolean nextSample() throws IOException {
+		int type;
+		while ((type = next()) >= 0) {
+			if (type == CaptureFormat.RECORD_SAMPLE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void readPath() throws IOException {
+		int series = CaptureFormat.readVarInt(in);
+		String object = in.readUTF();
+		String counter = in.readUTF();
+		String instance = in.readBoolean() ? in.readUTF() : null;
+		if (series != seriesCount) {
+			throw new IOException("corrupt capture, unexpected series " + series);
+		}
+		if (values.length <= series) {
+			int size = Math.max(16, values.length * 2);
+			values = Arrays.copyOf(values, size);
+			codes = Arrays.copyOf(codes, size);
+		}
+		codes[series] = CaptureFormat.CODE_ABSENT;
+		seriesCount++;
+		pathSeries = series;
+		objectName = object;
+		counterName = counter;
+		instanceName = instance;
+	}
+
+	private void readLayout() throws IOException {
+		int count = CaptureFormat.readVarInt(in);
+		if (layout.length < count) {
+			layout = new int[count];
+		}
+		int previous = 0;
+		for (int column = 0; column < count; column++) {
+			int series = (int) (previous + CaptureFormat.unzigzag(CaptureFormat.readVarLong(in)));
+			if (series < 0 || series >= seriesCount) {
+				throw new IOException("corrupt capture, unknown series " + series);
+			}
+			layout[column] = series;
+			previous = series;
+		}
+		columnCount = count;
+	}
+
+	private void readSample() throws IOException {
+		long delta = previousDelta + CaptureFormat.unzigzag(CaptureFormat.readVarLong(in));
+		Arrays.fill(codes, 0, seriesCount, (byte) CaptureFormat.CODE_ABSENT);
+		for (int column = 0; column < columnCount; column++) {
+			codes[layout[column]] = CaptureFormat.CODE_OK;
+		}
+		int invalid = CaptureFormat.readVarInt(in);
+		int column = 0;
+		for (int i = 0; i < invalid; i++) {
+			column += CaptureFormat.readVarInt(in);
+			int code = in.readUnsignedByte();
+			if (column >= columnCount) {
+				throw new IOException("corrupt capture, unknown column " + column);
+			}
+			codes[layout[column]] = (byte) code;
+		}
+		for (column = 0; column < columnCount; column++) {
+			int series = layout[column];
+			if (codes[series] == CaptureFormat.CODE_OK) {
+				values[series] ^= CaptureFormat.readVarLong(in);
+			}
+		}
+		time += delta;
+		previousDelta = delta;
+		sampleCount++;
+	}
+
+	/**
+	 * @return the series of the last path record
+	 */
+	int getPathSeries() {
+		return pathSeries;
+	}
+
+	String getObjectName() {
+		return objectName;
+	}
+
+	String getCounterName() {
+		return counterName;
+	}
+
+	/**
+	 * @return the instance name of the last path record, <tt>null</tt> if the
+	 *         object has no instances
+	 */
+	String getInstanceName() {
+		return instanceName;
+	}
+
+	/**
+	 * @return the time of the last sample in milliseconds since the epoch
+	 */
+	long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the number of samples read so far
+	 */
+	int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * @return the number of series introduced so far
+	 */
+	int getSeriesCount() {
+		return seriesCount;
+	}
+
+	/**
+	 * @return the value of a series in the last sample, only meaningful if its
+	 *         code is {@link CaptureFormat#CODE_OK}
+	 */
+	long getValue(int series) {
+		return values[series];
+	}
+
+	/**
+	 * @return the status code of a series in the last sample
+	 */
+	int getCode(int series) {
+		return series < seriesCount ? codes[series] : CaptureFormat.CODE_ABSENT;
+	}
+
+	/**
+	 * Copies the values and status codes of all series in the last sample.
+	 *
+	 * @return the number of series copied, the arrays must be large enough
+	 */
+	int copyState(long[] targetValues, byte[] targetCodes) {
+		System.arraycopy(values, 0, targetValues, 0, seriesCount);
+		System.arraycopy(codes, 0, targetCodes, 0, seriesCount);
+		return seriesCount;
+	}
+
+	void close() {
+		try {
+			in.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPath;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPathDictionary;
+
+/**
+ * Writes the samples of a performance monitor to a capture file, which can
+ * be replayed by a {@link ReplayPerformanceBackend} on any operating system.
+ * See {@link CaptureFormat} for the encoding.
+ * <p>
+ * A {@link PerformanceMonitorImpl} records each query if the system property
+ * {@value #DIRECTORY_PROPERTY} names a directory, the file of a connection is
+ * named after the host and the time it was connected. Each sample is flushed
+ * to the file, so a capture is complete up to the last sample if the
+ * collector dies.
+ */
+public final class CaptureRecorder {
+
+	private static final Logger log = Logger.getLogger(CaptureRecorder.class.getName());
+
+	/**
+	 * System property with the directory of the capture files, recording is
+	 * disabled if it is not set.
+	 */
+	public static final String DIRECTORY_PROPERTY = "com.dynatrace.diagnostics.plugin.perflib.captureDirectory";
+
+	/**
+	 * The extension of capture files.
+	 */
+	public static final String FILE_EXTENSION = ".pcap";
+
+	private final File file;
+	private final DataOutputStream out;
+	// series + 1 by counter id, 0 if the counter has no series yet
+	private int[] seriesByCounterId = new int[0];
+	private final Map<String, Integer> seriesByKey = new HashMap<String, Integer>();
+	private int seriesCount = 0;
+	// the series of the columns of the current layout
+	private int[] layout = new int[0];
+	private int columnCount = -1;
+	private int[] columns = new int[0];
+	// the previous valid value of each series
+	private long[] previousValues = new long[0];
+	private long previousTime = 0;
+	private long previousDelta = 0;
+
+	/**
+	 * Creates the capture file and writes its header.
+	 *
+	 * @param file
+	 *            the capture file, an existing file is overwritten
+	 * @param hostName
+	 *            the name of the recorded host
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	public CaptureRecorder(File file, String hostName) throws IOException {
+		this.file = file;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(CaptureFormat.MAGIC);
+		out.writeInt(CaptureFormat.VERSION);
+		out.writeUTF(hostName);
+		out.writeLong(System.currentTimeMillis());
+		out.flush();
+	}
+
+	/**
+	 * Creates the recorder of a connection, if recording is enabled.
+	 *
+	 * @param hostName
+	 *            the name of the host
+	 * @return the recorder, <tt>null</tt> if recording is disabled or the
+	 *         file cannot be created
+	 */
+	static CaptureRecorder forHost(String hostName) {
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+		if (directory == null || directory.length() == 0) {
+			return null;
+		}
+		StringBuilder fileName = new StringBuilder(hostName.length() + 32);
+		for (int i = 0; i < hostName.length(); i++) {
+			char c = hostName.charAt(i);
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.'
+					|| c == '-';
+			fileName.append(valid ? Character.toLowerCase(c) : '_');
+		}
+		fileName.append('-').append(System.currentTimeMillis()).append(FILE_EXTENSION);
+		File file = new File(directory, fileName.toString());
+		try {
+			File parent = file.getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("cannot create directory " + parent);
+			}
+			CaptureRecorder recorder = new CaptureRecorder(file, hostName);
+			if (log.isLoggable(Level.INFO)) {
+				log.info("recording the samples of host " + hostName + " to " + file);
+			}
+			return recorder;
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "failed to create capture file " + file, ex);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return the capture file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes a sample.
+	 *
+	 * @param time
+	 *            the time of the sample in milliseconds since the epoch
+	 * @param counterIds
+	 *            the counter id of each slot, -1 for unused slots
+	 * @param values
+	 *            the value of each slot
+	 * @param statuses
+	 *            the status of each slot, one of the <tt>STATUS</tt>
+	 *            constants of {@link PerformanceBackend}, any other value
+	 *            marks a skipped slot
+	 * @param count
+	 *            the number of slots
+	 * @param dictionary
+	 *            the dictionary of the counter ids
+	 * @throws IOException
+	 *             if the sample cannot be written
+	 */
+	synchronized void record(long time, int[] counterIds, long[] values, int[] statuses, int count,
+			CounterPathDictionary dictionary) throws IOException {
+		if (columns.length < count) {
+			columns = Arrays.copyOf(columns, count);
+			layout = Arrays.copyOf(layout, count);
+		}
+		boolean layoutChanged = false;
+		int columnIndex = 0;
+		for (int slot = 0; slot < count; slot++) {
+			if (counterIds[slot] < 0) {
+				continue;
+			}
+			int series = getSeries(counterIds[slot], dictionary);
+			if (columnIndex >= columnCount || layout[columnIndex] != series) {
+				layoutChanged = true;
+				layout[columnIndex] = series;
+			}
+			columns[columnIndex++] = slot;
+		}
+		if (layoutChanged || columnIndex != columnCount) {
+			columnCount = columnIndex;
+			out.write(CaptureFormat.RECORD_LAYOUT);
+			CaptureFormat.writeVarLong(out, columnCount);
+			int previous = 0;
+			for (int column = 0; column < columnCount; column++) {
+				CaptureFormat.writeVarLong(out, CaptureFormat.zigzag(layout[column] - previous));
+				previous = layout[column];
+			}
+		}
+
+		out.write(CaptureFormat.RECORD_SAMPLE);
+		long delta = time - previousTime;
+		CaptureFormat.writeVarLong(out, CaptureFormat.zigzag(delta - previousDelta));
+		previousTime = time;
+		previousDelta = delta;
+		int invalid = 0;
+		for (int column = 0; column < columnCount; column++) {
+			if (statuses[columns[column]] != PerformanceBackend.STATUS_OK) {
+				invalid++;
+			}
+		}
+		CaptureFormat.writeVarLong(out, invalid);
+		int previousColumn = 0;
+		for (int column = 0; column < columnCount && invalid > 0; column++) {
+			int status = statuses[columns[column]];
+			if (status != PerformanceBackend.STATUS_OK) {
+				CaptureFormat.writeVarLong(out, column - previousColumn);
+				out.write(toCode(status));
+				previousColumn = column;
+			}
+		}
+		for (int column = 0; column < columnCount; column++) {
+			int slot = columns[column];
+			if (statuses[slot] == PerformanceBackend.STATUS_OK) {
+				int series = layout[column];
+				CaptureFormat.writeVarLong(out, values[slot] ^ previousValues[series]);
+				previousValues[series] = values[slot];
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Closes the capture file.
+	 */
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "failed to close capture file " + file, ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the series of a counter, a path record is written if the
+	 *         counter has none yet
+	 */
+	private int getSeries(int counterId, CounterPathDictionary dictionary) throws IOException {
+		if (counterId < seriesByCounterId.length && seriesByCounterId[counterId] > 0) {
+			return seriesByCounterId[counterId] - 1;
+		}
+		CounterPath path = dictionary.getPath(counterId);
+		String key = path.getObjectName() + '\u0000' + path.getCounterName() + '\u0000'
+				+ (path.getInstanceName() == null ? "\u0001" : path.getInstanceName());
+		Integer number = seriesByKey.get(key);
+		int series;
+		if (number == null) {
+			series = seriesCount++;
+			seriesByKey.put(key, Integer.valueOf(series));
+			if (previousValues.length <= series) {
+				previousValues = Arrays.copyOf(previousValues, Math.max(16, previousValues.length * 2));
+			}
+			out.write(CaptureFormat.RECORD_PATH);
+			CaptureFormat.writeVarLong(out, series);
+			out.writeUTF(path.getObjectName());
+			out.writeUTF(path.getCounterName());
+			out.writeBoolean(path.getInstanceName() != null);
+			if (path.getInstanceName() != null) {
+				out.writeUTF(path.getInstanceName());
+			}
+		} else {
+			series = number.intValue();
+		}
+		if (counterId >= seriesByCounterId.length) {
+			seriesByCounterId = Arrays.copyOf(seriesByCounterId, Math.max(counterId + 1,
+					seriesByCounterId.length * 2));
+		}
+		seriesByCounterId[counterId] = series + 1;
+		return series;
+	}
+
+	private static int toCode(int status) {
+		switch (status) {
+		case PerformanceBackend.STATUS_INVALID_DATA:
+			return CaptureFormat.CODE_INVALID_DATA;
+		case PerformanceBackend.STATUS_ERROR:
+			return CaptureFormat.CODE_FAILED;
+		default:
+			return CaptureFormat.CODE_SKIPPED;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+/**
+ * Guards the queries of a host which fail, e.g. because the host is down and
+ * each query waits for the connection timeout.
+ * <p>
+ * The breaker is closed as long as the queries succeed. After
+ * {@link #FAILURE_THRESHOLD} consecutive failures it opens, and queries are
+ * rejected without contacting the host until the retry delay elapsed. Then
+ * it is half open and lets one query through: if it succeeds the breaker
+ * closes, otherwise it opens again for twice the delay, up to
+ * {@link #MAX_DELAY}.
+ * <p>
+ * The delays of the breaker are also used to back off the registration of
+ * single counters, see {@link #getDelay(int, long, long)}.
+ */
+final class CircuitBreaker {
+
+	static final int STATE_CLOSED = 0;
+	static final int STATE_OPEN = 1;
+	static final int STATE_HALF_OPEN = 2;
+
+	/**
+	 * The number of consecutive failures which open the breaker.
+	 */
+	static final int FAILURE_THRESHOLD = 2;
+
+	/**
+	 * The time in milliseconds the breaker stays open after it opened first.
+	 */
+	static final long INITIAL_DELAY = 30000;
+
+	/**
+	 * The maximum time in milliseconds the breaker stays open.
+	 */
+	static final long MAX_DELAY = 600000;
+
+	private int state = STATE_CLOSED;
+	private int failures = 0;
+	private int openings = 0;
+	private long retryTime = 0;
+
+	/**
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return <tt>true</tt> if a query may be executed, which has to be
+	 *         reported with {@link #succeeded()} or {@link #failed(long)}
+	 */
+	boolean allowQuery(long now) {
+		if (state == STATE_OPEN && now >= retryTime) {
+			state = STATE_HALF_OPEN;
+		}
+		return state != STATE_OPEN;
+	}
+
+	/**
+	 * @return <tt>true</tt> if the breaker rejects queries, calls which are
+	 *         not guarded by the breaker should not contact the host either
+	 */
+	boolean isOpen() {
+		return state == STATE_OPEN;
+	}
+
+	void succeeded() {
+		state = STATE_CLOSED;
+		failures = 0;
+		openings = 0;
+	}
+
+	/**
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	void failed(long now) {
+		failures++;
+		if (state == STATE_HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+			state = STATE_OPEN;
+			retryTime = now + getDelay(++openings, INITIAL_DELAY, MAX_DELAY);
+		}
+	}
+
+	int getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of consecutive failed queries
+	 */
+	int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the time in milliseconds the open breaker lets a query through
+	 *         again
+	 */
+	long getRetryTime() {
+		return retryTime;
+	}
+
+	/**
+	 * Describes the state of the breaker for error messages.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the description, <tt>null</tt> if the breaker is closed
+	 */
+	String describe(long now) {
+		switch (state) {
+		case STATE_OPEN:
+			return "circuit open after " + failures + " failed queries, next attempt in "
+					+ Math.max(0, (retryTime - now + 999) / 1000) + " s";
+		case STATE_HALF_OPEN:
+			return "circuit half open after " + failures + " failed queries, the next query is a trial";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Computes an exponential backoff delay.
+	 *
+	 * @param failures
+	 *            the number of consecutive failures, at least 1
+	 * @param initialDelay
+	 *            the delay after the first failure
+	 * @param maxDelay
+	 *            the maximum delay
+	 * @return the delay in milliseconds, doubled with each failure
+	 */
+	static long getDelay(int failures, long initialDelay, long maxDelay) {
+		int doublings = Math.min(Math.max(failures - 1, 0), 30);
+		return Math.min(initialDelay << doublings, maxDelay);
+	}
+}
@@ -0,0 +1,112 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with counter ids as keys, which does not box the keys. Uses
+ * open addressing with linear probing and backward shift deletion.
+ *
+ * @param <V>
+ *            the type of the values
+ */
+final class CounterIdMap<V> {
+
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private Object[] values;
+	private int size;
+
+	CounterIdMap() {
+		keys = new int[16];
+		values = new Object[16];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		int mask = keys.length - 1;
+		for (int bucket = spread(key) & mask; keys[bucket] != EMPTY; bucket = (bucket + 1) & mask) {
+			if (keys[bucket] == key) {
+				return (V) values[bucket];
+			}
+		}
+		return null;
+	}
+
+	void put(int key, V value) {
+		if (key < 0) {
+			throw new IllegalArgumentException(String.valueOf(key));
+		}
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		int mask = keys.length - 1;
+		int bucket = spread(key) & mask;
+		while (keys[bucket] != EMPTY && keys[bucket] != key) {
+			bucket = (bucket + 1) & mask;
+		}
+		if (keys[bucket] == EMPTY) {
+			keys[bucket] = key;
+			size++;
+		}
+		values[bucket] = value;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(int key) {
+		int mask = keys.length - 1;
+		int bucket = spread(key) & mask;
+		while (keys[bucket] != key) {
+			if (keys[bucket] == EMPTY) {
+				return null;
+			}
+			bucket = (bucket + 1) & mask;
+		}
+		V value = (V) values[bucket];
+		// shift the following entries of the cluster back
+		int gap = bucket;
+		for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+			int home = spread(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+		}
+		keys[gap] = EMPTY;
+		values[gap] = null;
+		size--;
+		return value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], (V) oldValues[i]);
+			}
+		}
+	}
+
+	private static int spread(int key) {
+		int hash = key * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,210 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+
+/**
+ * Translates the English names of objects and counters to the names in the
+ * language of a host, like the perfmon library does for each registration
+ * of a session with name translation.
+ * <p>
+ * The table is built from the English and the localized name table of the
+ * host, which list the names by their index: the English name yields the
+ * index, the index the localized name. If a name occurs with several
+ * indexes, the first one is used, like the lookup of the perfmon library.
+ * Names which are not in the table are passed unchanged, e.g. names which
+ * are already localized.
+ * <p>
+ * The tables are loaded once per backend and host and shared by all sessions
+ * of the JVM. A table is dropped when the catalog of its host changes, see
+ * {@link #invalidate(PerformanceBackend, String)}, and it expires after
+ * {@link #TIME_TO_LIVE}, because the counters of a host can also change
+ * without a refresh of its catalog, e.g. by a new provider or a rebuild of
+ * the counter tables. An expired table is loaded again by the next session
+ * which asks for it.
+ */
+final class CounterNameTable {
+
+	private static final Logger log = Logger.getLogger(CounterNameTable.class.getName());
+
+	private static final String ERR_LOAD = "failed to load the counter name tables of host ";
+
+	/**
+	 * The time in milliseconds after which a table is loaded again.
+	 */
+	static final long TIME_TO_LIVE = PerformanceCatalog.DEFAULT_TIME_TO_LIVE;
+
+	private static final class TableKey {
+		private final PerformanceBackend backend;
+		private final String hostName;
+
+		TableKey(PerformanceBackend backend, String hostName) {
+			this.backend = backend;
+			this.hostName = hostName.toLowerCase();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(backend) + hostName.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TableKey)) {
+				return false;
+			}
+			TableKey other = (TableKey) obj;
+			return backend == other.backend && hostName.equals(other.hostName);
+		}
+	}
+
+	private static final Map<TableKey, CounterNameTable> tables = new HashMap<TableKey, CounterNameTable>();
+	// the backends which don't provide name tables, by identity
+	private static final Map<PerformanceBackend, Boolean> unsupportedBackends = new HashMap<PerformanceBackend, Boolean>();
+
+	// the index of each English name
+	private final Map<String, Integer> indexes;
+	private final String[] localizedNames;
+	private volatile long loadTime;
+	// set when the catalog of the host changed
+	private volatile boolean invalidated = false;
+
+	private CounterNameTable(String[] englishNames, String[] localizedNames, long loadTime) {
+		this.loadTime = loadTime;
+		this.indexes = new HashMap<String, Integer>(englishNames.length);
+		this.localizedNames = localizedNames;
+		for (int index = 0; index < englishNames.length; index++) {
+			String name = englishNames[index];
+			if (name != null && !indexes.containsKey(name)) {
+				indexes.put(name, Integer.valueOf(index));
+			}
+		}
+	}
+
+	/**
+	 * Returns the table of a host, it is loaded with the given session on
+	 * first use and when it expired. If an expired table cannot be loaded
+	 * again, it is used for another {@link #TIME_TO_LIVE}.
+	 *
+	 * @param backend
+	 *            the counter library
+	 * @param reference
+	 *            reference to a session of the backend
+	 * @param hostName
+	 *            name of the host
+	 * @return the table, <tt>null</tt> if the backend does not provide name
+	 *         tables or the tables could not be loaded, then the names are
+	 *         translated by the session
+	 */
+	static CounterNameTable forHost(PerformanceBackend backend, long reference, String hostName) {
+		TableKey key = new TableKey(backend, hostName);
+		long now = System.currentTimeMillis();
+		synchronized (tables) {
+			CounterNameTable table = tables.get(key);
+			if ((table != null && !table.isExpired(now)) || unsupportedBackends.containsKey(backend)) {
+				return table;
+			}
+			CounterNameTable expiredTable = table;
+			try {
+				String[] englishNames = backend.getNameTable(reference, hostName, false);
+				String[] localizedNames = backend.getNameTable(reference, hostName, true);
+				if (englishNames == null || localizedNames == null) {
+					throw new PerformanceCounterException(ERR_LOAD + hostName);
+				}
+				table = new CounterNameTable(englishNames, localizedNames, now);
+			} catch (UnsupportedOperationException ex) {
+				unsupportedBackends.put(backend, Boolean.TRUE);
+				if (log.isLoggable(Level.INFO)) {
+					log.info(ex.getMessage() + ", the names are translated by the perfmon library");
+				}
+				return null;
+			} catch (PerformanceCounterException ex) {
+				if (expiredTable != null) {
+					// the old indexes are more likely right than none
+					expiredTable.loadTime = now;
+					expiredTable.invalidated = false;
+					tables.put(key, expiredTable);
+					if (log.isLoggable(Level.WARNING)) {
+						log.log(Level.WARNING, ERR_LOAD + hostName + ", the previous tables are used", ex);
+					}
+					return expiredTable;
+				}
+				// retried by the next session
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, ERR_LOAD + hostName + ", the names are translated by the perfmon library",
+							ex);
+				}
+				return null;
+			}
+			tables.put(key, table);
+			return table;
+		}
+	}
+
+	/**
+	 * @return <tt>false</tt> if the backend is known not to provide name
+	 *         tables
+	 */
+	static boolean isSupported(PerformanceBackend backend) {
+		synchronized (tables) {
+			return !unsupportedBackends.containsKey(backend);
+		}
+	}
+
+	/**
+	 * Drops the table of a host, because counters were installed or removed
+	 * and the indexes may have changed. The sessions which use the table
+	 * load it again for their next registration, they keep the names they
+	 * translated already.
+	 */
+	static void invalidate(PerformanceBackend backend, String hostName) {
+		synchronized (tables) {
+			CounterNameTable table = tables.remove(new TableKey(backend, hostName));
+			if (table != null) {
+				table.invalidated = true;
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("the catalog of host " + hostName + " changed, its counter name tables are loaded again");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return <tt>true</tt> if the table should be loaded again
+	 */
+	boolean isExpired(long now) {
+		return invalidated || now - loadTime >= TIME_TO_LIVE;
+	}
+
+	/**
+	 * @param name
+	 *            the English name of an object or counter
+	 * @return the index of the name, -1 if it is not in the table
+	 */
+	int getIndex(String name) {
+		Integer index = indexes.get(name);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * @param name
+	 *            the English name of an object or counter
+	 * @return the localized name, or the given name if it is not in the table
+	 */
+	String translate(String name) {
+		if (name == null) {
+			return null;
+		}
+		int index = getIndex(name);
+		if (index < 0 || index >= localizedNames.length || localizedNames[index] == null) {
+			return name;
+		}
+		return localizedNames[index];
+	}
+}
@@ -0,0 +1,202 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Emits Java Flight Recorder events around the calls of the perfmon library,
+ * so a recording of the collector tells which hosts and counters the time
+ * in the native frames was spent on.
+ * <p>
+ * The events are only emitted if the system property
+ * {@value #ENABLED_PROPERTY} is <tt>true</tt> and the JVM has a flight
+ * recorder. The plugin is compiled without the <tt>jdk.jfr</tt> module, the
+ * event types are created with <tt>jdk.jfr.EventFactory</tt> by reflection.
+ * Call sites check {@link #ENABLED} before {@link #begin(int)}, so disabled
+ * events cost a constant branch, and {@link #begin(int)} returns
+ * <tt>null</tt> without allocating while no recording includes the event.
+ * <p>
+ * Each event has the fields host, object, counter, instance, status (one of
+ * the status codes of {@link PerformanceBackend}) and count, the number of
+ * counters of a batched call. Fields which don't apply to an event are
+ * empty.
+ */
+final class FlightRecorderEvents {
+
+	private static final Logger log = Logger.getLogger(FlightRecorderEvents.class.getName());
+
+	/**
+	 * System property which enables the events.
+	 */
+	static final String ENABLED_PROPERTY = "com.dynatrace.diagnostics.plugin.perflib.flightRecorder";
+
+	static final int INITIALIZE = 0;
+	static final int REGISTRATION = 1;
+	static final int REQUERY = 2;
+	static final int RETRIEVAL = 3;
+	static final int VALUE = 4;
+	static final int CLEAR_QUERY = 5;
+
+	private static final String EVENT_PREFIX = "com.dynatrace.perflib.";
+	private static final String[] NAMES = { "Initialize", "Registration", "Requery", "Retrieval", "Value",
+			"ClearQuery" };
+	private static final String[] LABELS = { "Perfmon Initialize", "Perfmon Counter Registration",
+			"Perfmon Requery", "Perfmon Batch Retrieval", "Perfmon Value Retrieval", "Perfmon Clear Query" };
+	private static final String[] DESCRIPTIONS = { "Initialization of the perfmon library for a host",
+			"Registration of a counter instance by addQuery", "Collection of a sample of all counters of a host",
+			"Retrieval of the values of all counters of a sample",
+			"Retrieval of the value of a single counter, if the values are not retrieved batched",
+			"Removal of all counters of a host" };
+	private static final String[] CATEGORY = { "Dynatrace", "SQL Server Monitor" };
+
+	private static final int FIELD_HOST = 0;
+	private static final int FIELD_OBJECT = 1;
+	private static final int FIELD_COUNTER = 2;
+	private static final int FIELD_INSTANCE = 3;
+	private static final int FIELD_STATUS = 4;
+	private static final int FIELD_COUNT = 5;
+
+	/**
+	 * <tt>true</tt> if the events are enabled and the event types could be
+	 * created.
+	 */
+	static final boolean ENABLED;
+
+	// the event factories by event type, referenced to keep them registered
+	private static Object[] factories;
+	private static Object[] eventTypes;
+	private static Method newEvent;
+	private static Method isEnabled;
+	private static Method begin;
+	private static Method shouldCommit;
+	private static Method set;
+	private static Method commit;
+
+	static {
+		boolean enabled = false;
+		if (Boolean.getBoolean(ENABLED_PROPERTY)) {
+			try {
+				createEventTypes();
+				enabled = true;
+			} catch (Exception ex) {
+				// e.g. a JVM before Java 11
+				if (log.isLoggable(Level.WARNING)) {
+					log.warning("The flight recorder events are disabled, creating them caused exception: " + ex);
+				}
+			}
+		}
+		ENABLED = enabled;
+	}
+
+	private FlightRecorderEvents() {
+	}
+
+	/**
+	 * Starts the timing of an event.
+	 *
+	 * @param type
+	 *            the event type, e.g. {@link #REQUERY}
+	 * @return the event, <tt>null</tt> if the event is not recorded
+	 */
+	static Object begin(int type) {
+		if (!ENABLED) {
+			return null;
+		}
+		try {
+			if (!((Boolean) isEnabled.invoke(eventTypes[type])).booleanValue()) {
+				return null;
+			}
+			Object event = newEvent.invoke(factories[type]);
+			begin.invoke(event);
+			return event;
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ends and commits an event, if its duration passes the threshold of the
+	 * recording.
+	 *
+	 * @param event
+	 *            the event returned by {@link #begin(int)}, may be
+	 *            <tt>null</tt>
+	 */
+	static void commit(Object event, String host, String object, String counter, String instance, int status,
+			int count) {
+		if (event == null) {
+			return;
+		}
+		try {
+			if (!((Boolean) shouldCommit.invoke(event)).booleanValue()) {
+				return;
+			}
+			set.invoke(event, Integer.valueOf(FIELD_HOST), host);
+			set.invoke(event, Integer.valueOf(FIELD_OBJECT), object);
+			set.invoke(event, Integer.valueOf(FIELD_COUNTER), counter);
+			set.invoke(event, Integer.valueOf(FIELD_INSTANCE), instance);
+			set.invoke(event, Integer.valueOf(FIELD_STATUS), Integer.valueOf(status));
+			set.invoke(event, Integer.valueOf(FIELD_COUNT), Integer.valueOf(count));
+			commit.invoke(event);
+		} catch (Exception ex) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "committing a flight recorder event caused an exception", ex);
+			}
+		}
+	}
+
+	private static void createEventTypes() throws Exception {
+		// jdk.jfr is not visible to the class loader of the plugin bundle
+		ClassLoader loader = ClassLoader.getSystemClassLoader();
+		Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement", true, loader);
+		Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor", true, loader);
+		Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, loader);
+		Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType", true, loader);
+		Class<?> eventClass = Class.forName("jdk.jfr.Event", true, loader);
+		Class<?> nameClass = Class.forName("jdk.jfr.Name", true, loader);
+		Class<?> labelClass = Class.forName("jdk.jfr.Label", true, loader);
+		Class<?> descriptionClass = Class.forName("jdk.jfr.Description", true, loader);
+		Class<?> categoryClass = Class.forName("jdk.jfr.Category", true, loader);
+		Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+		Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+		Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+		Method getEventType = eventFactoryClass.getMethod("getEventType");
+
+		List<Object> fields = new ArrayList<Object>();
+		fields.add(createField(valueDescriptor, annotationElement, labelClass, String.class, "host", "Host"));
+		fields.add(createField(valueDescriptor, annotationElement, labelClass, String.class, "object", "Object"));
+		fields.add(createField(valueDescriptor, annotationElement, labelClass, String.class, "counter", "Counter"));
+		fields.add(createField(valueDescriptor, annotationElement, labelClass, String.class, "instance", "Instance"));
+		fields.add(createField(valueDescriptor, annotationElement, labelClass, int.class, "status", "Status"));
+		fields.add(createField(valueDescriptor, annotationElement, labelClass, int.class, "count", "Counters"));
+
+		factories = new Object[NAMES.length];
+		eventTypes = new Object[NAMES.length];
+		for (int type = 0; type < NAMES.length; type++) {
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotationElement.newInstance(nameClass, EVENT_PREFIX + NAMES[type]));
+			annotations.add(annotationElement.newInstance(labelClass, LABELS[type]));
+			annotations.add(annotationElement.newInstance(descriptionClass, DESCRIPTIONS[type]));
+			annotations.add(annotationElement.newInstance(categoryClass, CATEGORY));
+			factories[type] = create.invoke(null, annotations, fields);
+			eventTypes[type] = getEventType.invoke(factories[type]);
+		}
+		newEvent = eventFactoryClass.getMethod("newEvent");
+		isEnabled = eventTypeClass.getMethod("isEnabled");
+		begin = eventClass.getMethod("begin");
+		shouldCommit = eventClass.getMethod("shouldCommit");
+		set = eventClass.getMethod("set", int.class, Object.class);
+		commit = eventClass.getMethod("commit");
+	}
+
+	private static Object createField(Constructor<?> valueDescriptor, Constructor<?> annotationElement,
+			Class<?> labelClass, Class<?> type, String name, String label) throws Exception {
+		return valueDescriptor.newInstance(type, name,
+				Collections.singletonList(annotationElement.newInstance(labelClass, label)));
+	}
+}
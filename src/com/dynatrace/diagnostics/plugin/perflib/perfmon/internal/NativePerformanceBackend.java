@@ -0,0 +1,144 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+
+/**
+ * The default backend which delegates to the native methods of
+ * {@link PerformanceCounters}. The dll is loaded on the first call.
+ * <p>
+ * Older versions of the dll do not export the functions for batched
+ * retrieval. In this case the first call to {@link #registerCounter} fails to
+ * link and all batch methods throw an {@link UnsupportedOperationException}
+ * from then on. The same applies to the retrieval of raw values, which was
+ * added later.
+ */
+public final class NativePerformanceBackend implements PerformanceBackend {
+
+	public static final NativePerformanceBackend INSTANCE = new NativePerformanceBackend();
+
+	private static final String ERR_NO_BATCH = "batched retrieval is not supported by the perfmon library";
+
+	private static final String ERR_NO_RAW = "raw values are not supported by the perfmon library";
+
+	private static final String ERR_NO_NAME_TABLE = "name tables are not supported by the perfmon library";
+
+	private volatile boolean batchSupported = true;
+	private volatile boolean rawSupported = true;
+	private volatile boolean nameTableSupported = true;
+
+	private NativePerformanceBackend() {
+	}
+
+	@Override
+	public long initialize(boolean translate) throws PerformanceCounterException {
+		return PerformanceCounters.initialize(translate);
+	}
+
+	@Override
+	public void uninitialize(long reference) throws PerformanceCounterException {
+		PerformanceCounters.uninitialize(reference);
+	}
+
+	@Override
+	public boolean clearPerformanceCounterMap(long reference) throws PerformanceCounterException {
+		return PerformanceCounters.clearPerformanceCounterMap(reference);
+	}
+
+	@Override
+	public boolean requery(long reference) throws PerformanceCounterException {
+		return PerformanceCounters.requery(reference);
+	}
+
+	@Override
+	public long getValue(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException {
+		return PerformanceCounters.getValue(reference, hostName, objectName, counterName, instanceName, format);
+	}
+
+	@Override
+	public int registerCounter(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException {
+		checkBatchSupported();
+		try {
+			return PerformanceCounters.registerCounter(reference, hostName, objectName, counterName, instanceName,
+					format);
+		} catch (UnsatisfiedLinkError e) {
+			batchSupported = false;
+			throw new UnsupportedOperationException(ERR_NO_BATCH);
+		}
+	}
+
+	@Override
+	public boolean getValues(long reference, long[] values, int[] status) throws PerformanceCounterException {
+		checkBatchSupported();
+		try {
+			return PerformanceCounters.getValues(reference, values, status);
+		} catch (UnsatisfiedLinkError e) {
+			batchSupported = false;
+			throw new UnsupportedOperationException(ERR_NO_BATCH);
+		}
+	}
+
+	@Override
+	public boolean getRawValues(long reference, long[] firstValues, long[] secondValues, long[] timeBases,
+			int[] types, int[] status) throws PerformanceCounterException {
+		checkBatchSupported();
+		if (!rawSupported) {
+			throw new UnsupportedOperationException(ERR_NO_RAW);
+		}
+		try {
+			return PerformanceCounters.getRawValues(reference, firstValues, secondValues, timeBases, types, status);
+		} catch (UnsatisfiedLinkError e) {
+			rawSupported = false;
+			throw new UnsupportedOperationException(ERR_NO_RAW);
+		}
+	}
+
+	@Override
+	public String getErrorMessage(long reference, int handle) {
+		checkBatchSupported();
+		try {
+			return PerformanceCounters.getErrorMessage(reference, handle);
+		} catch (UnsatisfiedLinkError e) {
+			batchSupported = false;
+			throw new UnsupportedOperationException(ERR_NO_BATCH);
+		}
+	}
+
+	@Override
+	public String[] getObjects(long reference, String hostName) throws PerformanceCounterException {
+		return PerformanceCounters.getObjects(reference, hostName);
+	}
+
+	@Override
+	public String[] getCounters(long reference, String objectName, String hostName)
+			throws PerformanceCounterException {
+		return PerformanceCounters.getCounters(reference, objectName, hostName);
+	}
+
+	@Override
+	public String[] getInstances(long reference, String objectName, String hostName)
+			throws PerformanceCounterException {
+		return PerformanceCounters.getInstances(reference, objectName, hostName);
+	}
+
+	@Override
+	public String[] getNameTable(long reference, String hostName, boolean localized)
+			throws PerformanceCounterException {
+		if (!nameTableSupported) {
+			throw new UnsupportedOperationException(ERR_NO_NAME_TABLE);
+		}
+		try {
+			return PerformanceCounters.getNameTable(reference, hostName, localized);
+		} catch (UnsatisfiedLinkError e) {
+			nameTableSupported = false;
+			throw new UnsupportedOperationException(ERR_NO_NAME_TABLE);
+		}
+	}
+
+	private void checkBatchSupported() {
+		if (!batchSupported) {
+			throw new UnsupportedOperationException(ERR_NO_BATCH);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+
+/**
+ * The counter library used by {@link PerformanceMonitorImpl}. The methods
+ * mirror the native functions of the PerformanceCounters.dll: a session is
+ * created by {@link #initialize(boolean)} and all other calls are made with
+ * the returned reference.
+ *
+ * @see NativePerformanceBackend
+ * @see SimulatedPerformanceBackend
+ */
+public interface PerformanceBackend {
+
+	/** the value of the counter was retrieved */
+	int STATUS_OK = 0;
+	/** the counter exists but has no valid value yet, e.g. a rate counter after the first sample */
+	int STATUS_INVALID_DATA = 1;
+	/** the value of the counter could not be retrieved */
+	int STATUS_ERROR = 2;
+
+	/**
+	 * Creates a new session. Must be called before the other methods are used.
+	 *
+	 * @param translate
+	 *            set true to enable perf counter name translation
+	 * @return a reference to the session, never 0
+	 * @throws PerformanceCounterException
+	 */
+	long initialize(boolean translate) throws PerformanceCounterException;
+
+	/**
+	 * Closes the session created by {@link #initialize(boolean)}.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @throws PerformanceCounterException
+	 */
+	void uninitialize(long reference) throws PerformanceCounterException;
+
+	/**
+	 * Removes all counters from the session.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @return true if the counters were removed
+	 * @throws PerformanceCounterException
+	 */
+	boolean clearPerformanceCounterMap(long reference) throws PerformanceCounterException;
+
+	/**
+	 * Collects a new sample for all counters of the session. Must be called
+	 * before the values of a cycle are retrieved.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @return true if the sample was collected
+	 * @throws PerformanceCounterException
+	 */
+	boolean requery(long reference) throws PerformanceCounterException;
+
+	/**
+	 * Returns the value of a counter from the last sample. If the counter is
+	 * not part of the session yet, it is added. Throws an
+	 * {@link InvalidPerformanceCounterException} if the counter exists but
+	 * has no valid value yet.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @param hostName
+	 *            name of the host where counters be requested
+	 * @param objectName
+	 *            object name of the counter e.g. "Processor"
+	 * @param counterName
+	 *            counter name of the performanceCounter e.g. "% Processor Time"
+	 * @param instanceName
+	 *            instance name of the counter e.g. "_Total"
+	 * @param format
+	 *            one of {@link PerformanceCounters#FORMAT_NOSCALE} or
+	 *            {@link PerformanceCounters#FORMAT_SCALE1000}
+	 * @return the value of the counter
+	 * @throws PerformanceCounterException
+	 */
+	long getValue(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException;
+
+	/**
+	 * Adds a counter to the values retrieved by
+	 * {@link #getValues(long, long[], int[])}. The counter is checked like
+	 * in {@link #getValue(long, String, String, String, String, int)}, but a
+	 * counter without a valid value yet is registered nevertheless. Handles
+	 * are assigned consecutively starting with 0 and are valid until
+	 * {@link #clearPerformanceCounterMap(long)} is called.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @param hostName
+	 *            name of the host where counters be requested
+	 * @param objectName
+	 *            object name of the counter
+	 * @param counterName
+	 *            counter name of the performanceCounter
+	 * @param instanceName
+	 *            instance name of the counter
+	 * @param format
+	 *            one of {@link PerformanceCounters#FORMAT_NOSCALE} or
+	 *            {@link PerformanceCounters#FORMAT_SCALE1000}
+	 * @return the handle of the counter
+	 * @throws PerformanceCounterException
+	 *             if the counter does not exist
+	 * @throws UnsupportedOperationException
+	 *             if the backend does not support batched retrieval, use
+	 *             {@link #getValue(long, String, String, String, String, int)}
+	 *             instead
+	 */
+	int registerCounter(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException;
+
+	/**
+	 * Retrieves the values of all registered counters from the last sample in
+	 * a single call. The value and status of a counter are stored at the index
+	 * of its handle, the status is one of the <tt>STATUS</tt> constants.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @param values
+	 *            receives the values, at least as long as the number of
+	 *            registered counters
+	 * @param status
+	 *            receives the status of each value, at least as long as the
+	 *            number of registered counters
+	 * @return true if the values were retrieved
+	 * @throws PerformanceCounterException
+	 * @throws UnsupportedOperationException
+	 *             if the backend does not support batched retrieval
+	 */
+	boolean getValues(long reference, long[] values, int[] status) throws PerformanceCounterException;
+
+	/**
+	 * Retrieves the raw values of all registered counters from the last
+	 * sample in a single call, the values are computed by the caller. The
+	 * first value N, the second value D, the time base F and the counter type
+	 * of a counter are stored at the index of its handle, see
+	 * {@link RawCounterCalculator} for their meaning. The status is
+	 * {@link #STATUS_OK} or {@link #STATUS_ERROR}, raw values are valid after
+	 * the first sample.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @param firstValues
+	 *            receives the first raw values
+	 * @param secondValues
+	 *            receives the second raw values
+	 * @param timeBases
+	 *            receives the time bases in ticks per second
+	 * @param types
+	 *            receives the counter types
+	 * @param status
+	 *            receives the status of each value
+	 * @return true if the values were retrieved
+	 * @throws PerformanceCounterException
+	 * @throws UnsupportedOperationException
+	 *             if the backend does not support raw values
+	 */
+	boolean getRawValues(long reference, long[] firstValues, long[] secondValues, long[] timeBases, int[] types,
+			int[] status) throws PerformanceCounterException;
+
+	/**
+	 * Returns the reason why the value of a registered counter could not be
+	 * retrieved by the last {@link #getValues(long, long[], int[])} call.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @param handle
+	 *            the handle of the counter
+	 * @return the error message, or <tt>null</tt> if the value was retrieved
+	 */
+	String getErrorMessage(long reference, int handle);
+
+	/**
+	 * @param reference
+	 *            reference to the session
+	 * @param hostName
+	 *            name of the host
+	 * @return the names of all objects of the host
+	 * @throws PerformanceCounterException
+	 */
+	String[] getObjects(long reference, String hostName) throws PerformanceCounterException;
+
+	/**
+	 * @param reference
+	 *            reference to the session
+	 * @param objectName
+	 *            name of the object
+	 * @param hostName
+	 *            name of the host
+	 * @return the names of all counters of the object
+	 * @throws PerformanceCounterException
+	 */
+	String[] getCounters(long reference, String objectName, String hostName) throws PerformanceCounterException;
+
+	/**
+	 * @param reference
+	 *            reference to the session
+	 * @param objectName
+	 *            name of the object
+	 * @param hostName
+	 *            name of the host
+	 * @return the names of all instances of the object
+	 * @throws PerformanceCounterException
+	 *             if the object has no instances
+	 */
+	String[] getInstances(long reference, String objectName, String hostName) throws PerformanceCounterException;
+
+	/**
+	 * Returns a name table of the host, the names of the objects and
+	 * counters by their index. The English and the localized table of a host
+	 * have the same indexes, which translates the names.
+	 *
+	 * @param reference
+	 *            reference to the session
+	 * @param hostName
+	 *            name of the host
+	 * @param localized
+	 *            <tt>true</tt> for the names in the language of the host,
+	 *            <tt>false</tt> for the English names
+	 * @return the names by index, <tt>null</tt> for unused indexes
+	 * @throws UnsupportedOperationException
+	 *             if the backend does not provide name tables
+	 * @throws PerformanceCounterException
+	 */
+	String[] getNameTable(long reference, String hostName, boolean localized) throws PerformanceCounterException;
+}
@@ -0,0 +1,200 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter.PerformanceInstance;
+
+/**
+ * The performance objects, counters and instances available on a host. The
+ * catalog is built on first use and every object is refreshed on its own
+ * when its time to live has expired, so browsing the catalog or looking up a
+ * single object does not enumerate the whole registry of the host again.
+ * The list of object names is refreshed with the same time to live.
+ */
+final class PerformanceCatalog {
+
+	private static final Logger log = Logger.getLogger(PerformanceCatalog.class.getName());
+
+	private static final String ERR_ENUMERATE_OBJECT = "failed to enumerate the counters of: ";
+
+	/**
+	 * The default time to live of the catalog in milliseconds.
+	 */
+	static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000L;
+
+	private static final class Entry {
+		// null if the object could not be enumerated
+		private PerformanceObject object;
+		private long refreshTime;
+		private boolean enumerated = false;
+	}
+
+	private final PerformanceBackend backend;
+	private final long reference;
+	private final String hostName;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private long objectsRefreshTime;
+	private boolean enumerated = false;
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	/**
+	 * @param backend
+	 *            the counter library
+	 * @param reference
+	 *            reference to the session used for the enumeration
+	 * @param hostName
+	 *            name of the host
+	 */
+	PerformanceCatalog(PerformanceBackend backend, long reference, String hostName) {
+		this.backend = backend;
+		this.reference = reference;
+		this.hostName = hostName;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            the time in milliseconds after which an object is
+	 *            enumerated again
+	 */
+	synchronized void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Returns all objects of the host, objects whose time to live has expired
+	 * are enumerated again. Objects which cannot be enumerated are left out.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the objects, owned by the catalog
+	 * @throws PerformanceCounterException
+	 *             if the names of the objects cannot be retrieved
+	 */
+	synchronized Collection<PerformanceObject> getObjects(long now) throws PerformanceCounterException {
+		refreshObjectNames(now);
+		List<PerformanceObject> objects = new ArrayList<PerformanceObject>(entries.size());
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			PerformanceObject object = refresh(entry.getKey(), entry.getValue(), now);
+			if (object != null) {
+				objects.add(object);
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * Returns the names of the objects of the host without enumerating their
+	 * counters.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the names of the objects
+	 * @throws PerformanceCounterException
+	 *             if the names of the objects cannot be retrieved
+	 */
+	synchronized String[] getObjectNames(long now) throws PerformanceCounterException {
+		refreshObjectNames(now);
+		return entries.keySet().toArray(new String[entries.size()]);
+	}
+
+	/**
+	 * Returns a single object of the host, it is enumerated again if its time
+	 * to live has expired.
+	 *
+	 * @param objectName
+	 *            the name of the object
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the object, owned by the catalog, or <tt>null</tt> if the host
+	 *         has no object with this name
+	 * @throws PerformanceCounterException
+	 *             if the names of the objects cannot be retrieved
+	 */
+	synchronized PerformanceObject getObject(String objectName, long now) throws PerformanceCounterException {
+		refreshObjectNames(now);
+		Entry entry = entries.get(objectName);
+		return entry == null ? null : refresh(objectName, entry, now);
+	}
+
+	/**
+	 * Drops all enumerated objects, the next access enumerates the host
+	 * again.
+	 */
+	synchronized void invalidate() {
+		entries.clear();
+		enumerated = false;
+	}
+
+	private void refreshObjectNames(long now) throws PerformanceCounterException {
+		if (enumerated && now - objectsRefreshTime < timeToLive) {
+			return;
+		}
+		String[] objectNames = backend.getObjects(reference, hostName);
+		Set<String> names = new HashSet<String>();
+		boolean changed = false;
+		for (String objectName : objectNames) {
+			names.add(objectName);
+			if (!entries.containsKey(objectName)) {
+				entries.put(objectName, new Entry());
+				changed = true;
+			}
+		}
+		// drop the objects which are gone, keep the trees of the others
+		changed |= entries.keySet().retainAll(names);
+		if (changed && enumerated) {
+			// counters were installed or removed, their indexes may have changed
+			CounterNameTable.invalidate(backend, hostName);
+		}
+		objectsRefreshTime = now;
+		enumerated = true;
+	}
+
+	private PerformanceObject refresh(String objectName, Entry entry, long now) {
+		if (entry.enumerated && now - entry.refreshTime < timeToLive) {
+			return entry.object;
+		}
+		// a failed enumeration is not retried before the time to live has
+		// expired, the previous tree is kept
+		entry.refreshTime = now;
+		entry.enumerated = true;
+		try {
+			entry.object = enumerate(objectName);
+		} catch (PerformanceCounterException ex) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, ERR_ENUMERATE_OBJECT + objectName, ex);
+			}
+		}
+		return entry.object;
+	}
+
+	private PerformanceObject enumerate(String objectName) throws PerformanceCounterException {
+		String[] counterNames = backend.getCounters(reference, objectName, hostName);
+		String[] instanceNames;
+		try {
+			instanceNames = backend.getInstances(reference, objectName, hostName);
+		} catch (PerformanceCounterException ex) {
+			// thrown if the object has no instances
+			instanceNames = new String[] { null };
+		}
+		PerformanceObject object = new PerformanceObject(objectName);
+		for (String counterName : counterNames) {
+			PerformanceCounter counter = new PerformanceCounter(counterName);
+			for (String instanceName : instanceNames) {
+				counter.addInstance(new PerformanceInstance(instanceName, true));
+			}
+			object.addCounter(counter);
+		}
+		return object;
+	}
+}
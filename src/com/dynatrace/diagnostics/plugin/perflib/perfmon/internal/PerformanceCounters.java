@@ -166,6 +166,75 @@ class PerformanceCounters {
 	public static native long getValue(long reference, String hostName, String objectName, String counterName,
 			String instanceName, int format) throws PerformanceCounterException;
 
+	/**
+	 * Adds a counter to the values retrieved by {@link #getValues(long, long[], int[])}
+	 * and returns its handle. The counter is checked like in getValue, an
+	 * InvalidPerformanceCounterException is not thrown, since counters without
+	 * valid data are registered too. Handles start with 0 and are reset by
+	 * clearPerformanceCounterMap.
+	 * 
+	 * @param reference
+	 *            "pointer" to our native object from the initialize method.
+	 * @param hostName
+	 *            name of the host where counters be requested
+	 * @param objectName
+	 *            object name of the counter e.g. "Processor"
+	 * @param counterName
+	 *            counter name of the performanceCounter e.g. "% Processor Time"
+	 * @param instanceName
+	 *            instance name of the counter e.g. "_Total"
+	 * @param format
+	 *            scale of the value, see getValue
+	 * @return the handle of the counter
+	 * @throws PerformanceCounterException
+	 *             if the counter does not exist
+	 */
+	public static native int registerCounter(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException;
+
+	/**
+	 * Fills the values and the status (0 ok, 1 invalid data, 2 error) of all
+	 * registered counters from the last requery into the given arrays, indexed
+	 * by handle.
+	 * 
+	 * @param reference
+	 *            reference to the native object
+	 * @param values
+	 *            receives the values
+	 * @param status
+	 *            receives the status of each value
+	 * @return return true if the values were retrieved
+	 * @throws PerformanceCounterException
+	 */
+	public static native boolean getValues(long reference, long[] values, int[] status)
+			throws PerformanceCounterException;
+
+	/**
+	 * Fills the raw values (first value, second value, time base and counter
+	 * type, see PDH_RAW_COUNTER and PdhGetCounterTimeBase) and the status (0
+	 * ok, 2 error) of all registered counters from the last requery into the
+	 * given arrays, indexed by handle.
+	 * 
+	 * @param reference
+	 *            reference to the native object
+	 * @return return true if the values were retrieved
+	 * @throws PerformanceCounterException
+	 */
+	public static native boolean getRawValues(long reference, long[] firstValues, long[] secondValues,
+			long[] timeBases, int[] types, int[] status) throws PerformanceCounterException;
+
+	/**
+	 * Get the error message of a counter whose value could not be retrieved by
+	 * the last getValues call.
+	 * 
+	 * @param reference
+	 *            reference to the native object
+	 * @param handle
+	 *            handle of the counter
+	 * @return the error message or null
+	 */
+	public static native String getErrorMessage(long reference, int handle);
+
 	/**
 	 * Get the instance name of the actual instance
 	 * 
@@ -175,4 +244,20 @@ class PerformanceCounters {
 	 * @throws PerformanceCounterException
 	 */
 	public static native String getInstanceName(long reference) throws PerformanceCounterException;
+
+	/**
+	 * Get the English or the localized counter name table of a host, as
+	 * stored in the registry of the host.
+	 * 
+	 * @param reference
+	 *            reference to the native object
+	 * @param hostName
+	 *            name of the host
+	 * @param localized
+	 *            true for the names in the language of the host
+	 * @return the names of the objects and counters by their index
+	 * @throws PerformanceCounterException
+	 */
+	public static native String[] getNameTable(long reference, String hostName, boolean localized)
+			throws PerformanceCounterException;
 }
@@ -1,18 +1,29 @@
 package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPath;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPathDictionary;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.InvalidOperationException;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMeasureKey;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryBudget;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryStatistics;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.SampleListener;
 import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter.PerformanceInstance;
 
 public class PerformanceMonitorImpl implements PerformanceMonitor {
@@ -31,15 +42,201 @@ public class PerformanceMonitorImpl implements PerformanceMonitor {
 	private static final String ERR_CLEAR_QUERY = "failed to clear query";
 	private static final String ERR_REQUERY = "querying the performance counters failed";
 	private static final String ERR_GET_VALUE = "failed to retrieve value from: ";
+	private static final String ERR_GET_VALUES = "retrieving the values of the performance counters failed";
+	private static final String ERR_GET_RAW_VALUES = "retrieving the raw values of the performance counters failed";
+	private static final String ERR_NO_PREVIOUS_SAMPLE = "the counter has no previous sample to compute its value from";
+	private static final String ERR_RAW_TYPE_CHANGED = "the type of the counter changed since the previous sample";
+	private static final String ERR_RAW_CALCULATION = "the value of the counter cannot be computed from its raw values, type: 0x";
+	private static final String ERR_GET_INSTANCES = "failed to retrieve the instances of: ";
+	private static final String ERR_NO_VALUE = "no valid value";
+	private static final String ERR_HOST_UNAVAILABLE = "the queries of the host are suspended, ";
+	private static final String ERR_CAPTURE = "stopped recording, failed to write the capture file ";
 	private static final String ERR_UNINIT_PDHLIB = "failed to uninitialize perfmon library";
+
+	// the status of a counter which was skipped because the budget of the query was exhausted
+	private static final int STATUS_SKIPPED = -1;
+
+	// the backoff of counters which cannot be registered or retrieved
+	private static final long RETRY_INITIAL_DELAY = 15000;
+	private static final long RETRY_MAX_DELAY = 1800000;
+	// the time after which the message of a persisting error is retrieved
+	// again, e.g. because the reason of the error changed
+	private static final long ERROR_MESSAGE_MAX_AGE = 60000;
 	
 	
+	private final PerformanceBackend backend;
+	private final CounterPathDictionary dictionary;
 	private long nativeObjectReference = 0;
 
 	private Map<String, PerformanceObject> queries = new HashMap<String,PerformanceObject>();
 	private String hostname = null;
 
+	/**
+	 * A registered instance together with its counter and object, the
+	 * handle is stored in the instance.
+	 */
+	private static final class Registration {
+		private final PerformanceObject object;
+		private final PerformanceCounter counter;
+		private final PerformanceInstance instance;
+		// the names passed to the backend, localized if the monitor
+		// translates the names
+		private final String objectName;
+		private final String counterName;
+		// if the counter is part of the persistent catalog
+		private boolean known;
+		// consecutive failed registrations or retrievals, which are retried
+		// with exponential backoff
+		private int failures;
+		private long retryTime;
+		// the position in the error index, -1 if the instance has no error
+		private int errorIndex = -1;
+		// the status of the last retrieval and the time its error message was
+		// retrieved, the message is only retrieved again if the status
+		// changes or the message is too old
+		private int status = PerformanceBackend.STATUS_OK;
+		private long errorMessageTime;
+		// if the counter is removed by removeCounters()
+		private boolean removed;
+
+		Registration(PerformanceObject object, PerformanceCounter counter, PerformanceInstance instance,
+				CounterNameTable nameTable) {
+			this.object = object;
+			this.counter = counter;
+			this.instance = instance;
+			this.objectName = nameTable == null ? object.getName() : nameTable.translate(object.getName());
+			this.counterName = nameTable == null ? counter.getName() : nameTable.translate(counter.getName());
+		}
+	}
+
+	// counters whose values are retrieved by query()
+	private final List<Registration> registrations = new ArrayList<Registration>();
+
+	/**
+	 * The raw values of all counters of a sample, by handle.
+	 */
+	private static final class RawSample {
+		private long[] firstValues = new long[0];
+		private long[] secondValues = new long[0];
+		private long[] timeBases = new long[0];
+		private int[] types = new int[0];
+		private int[] statuses = new int[0];
+		// the number of handles the sample holds
+		private int count;
+
+		void ensureCapacity(int capacity) {
+			if (firstValues.length < capacity) {
+				firstValues = new long[capacity];
+				secondValues = new long[capacity];
+				timeBases = new long[capacity];
+				types = new int[capacity];
+				statuses = new int[capacity];
+			}
+		}
+	}
+
+	// counters which could not be registered yet, retried by query()
+	private final List<Registration> pendingRegistrations = new ArrayList<Registration>();
+	// all counters of the query by counter id
+	private final CounterIdMap<Registration> registrationsById = new CounterIdMap<Registration>();
+	// false if the backend only supports the retrieval of single values
+	private boolean batchRetrieval = true;
+	// guards the requery of the host
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	// the registrations whose instance has an error, in no particular order
+	private final List<Registration> failedRegistrations = new ArrayList<Registration>();
+	// changes whenever the reported errors change
+	private int errorVersion = 0;
+	// the error index sorted for the report, of the error version
+	private Registration[] sortedErrors = new Registration[0];
+	private int sortedErrorsVersion = -1;
+	// the last report of getDetailedErrors(), of the error version and second
+	private String detailedErrors;
+	private int detailedErrorsVersion = -1;
+	private long detailedErrorsSecond = -1;
+
+	private static final Comparator<Registration> ERROR_ORDER = new Comparator<Registration>() {
+		@Override
+		public int compare(Registration r1, Registration r2) {
+			int result = r1.object.getName().compareTo(r2.object.getName());
+			if (result == 0) {
+				result = r1.counter.getName().compareTo(r2.counter.getName());
+			}
+			if (result == 0) {
+				String i1 = r1.instance.getInstanceName();
+				String i2 = r2.instance.getInstanceName();
+				result = i1 == null ? (i2 == null ? 0 : -1) : i2 == null ? 1 : i1.compareTo(i2);
+			}
+			return result;
+		}
+	};
+	// if the values are computed from raw values, only with batch retrieval
+	private boolean rawMode = false;
+	private RawSample rawSample = new RawSample();
+	private RawSample previousRawSample = new RawSample();
+	private int handleCount = 0;
+	// handles of removed counters which are reused by the next
+	// registrations, only if the values are retrieved one by one
+	private final List<Integer> freeHandles = new ArrayList<Integer>();
+	// the number of handles of removed counters which are still collected by
+	// the backend, the query is rebuilt once they outnumber the live ones
+	private int deadHandles = 0;
+	private long[] values = new long[0];
+	private int[] statuses = new int[0];
+	private String[] errorMessages = new String[0];
+	private long sampleTime;
+	// the index of the registration which is retrieved first, the first
+	// one skipped by the last query
+	private int retrievalStart = 0;
+	// the objects available on the host, enumerated on demand
+	private PerformanceCatalog catalog;
+	private long catalogTimeToLive = PerformanceCatalog.DEFAULT_TIME_TO_LIVE;
+	// translates the names of the registrations, null if the names are not
+	// translated or the session translates them
+	private CounterNameTable nameTable;
+	// the counters of the host known to work, null if not persisted
+	private PersistentCounterCatalog knownCounters;
+	private SampleListener sampleListener;
+	// the cost of the queries, the calls of the backend are counted
+	private final QueryStatistics queryStatistics = new QueryStatistics();
+	private long nativeCalls = 0;
+	private long nativeCallsAtLastQuery = 0;
+	// records the samples to a capture file, null if not recording
+	private CaptureRecorder capture;
+	private int[] captureCounterIds;
+
+	/**
+	 * Creates a performance monitor which uses the native perfmon library.
+	 */
 	public PerformanceMonitorImpl() {
+		this(NativePerformanceBackend.INSTANCE);
+	}
+
+	/**
+	 * Creates a performance monitor which uses the given backend.
+	 *
+	 * @param backend
+	 *            the counter library used by this monitor
+	 */
+	public PerformanceMonitorImpl(PerformanceBackend backend) {
+		this(backend, CounterPathDictionary.getDefault());
+	}
+
+	/**
+	 * Creates a performance monitor which uses the given backend and assigns
+	 * counter ids from the given dictionary.
+	 *
+	 * @param backend
+	 *            the counter library used by this monitor
+	 * @param dictionary
+	 *            the dictionary of counter paths
+	 */
+	public PerformanceMonitorImpl(PerformanceBackend backend, CounterPathDictionary dictionary) {
+		if (backend == null || dictionary == null) {
+			throw new NullPointerException();
+		}
+		this.backend = backend;
+		this.dictionary = dictionary;
 	}
 
 	@Override
@@ -53,32 +250,81 @@ public class PerformanceMonitorImpl implements PerformanceMonitor {
 
 		this.hostname = fixHostname(hostname);
 		initPerfMonLibrary(translation);
+		catalog = new PerformanceCatalog(backend, nativeObjectReference, this.hostname);
+		catalog.setTimeToLive(catalogTimeToLive);
+		knownCounters = PersistentCounterCatalog.forHost(this.hostname, translation);
+		capture = CaptureRecorder.forHost(this.hostname);
 	}
 
 	private void initPerfMonLibrary(boolean translation) throws PerformanceCounterException {
+		Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.INITIALIZE) : null;
+		// the shared name table of the host translates the names once for
+		// all sessions, unless the backend has none
+		boolean tableTranslation = translation && CounterNameTable.isSupported(backend);
 		try {
-			nativeObjectReference = PerformanceCounters.initialize(translation);
+			nativeCalls++;
+			nativeObjectReference = backend.initialize(translation && !tableTranslation);
+			if (tableTranslation) {
+				nameTable = CounterNameTable.forHost(backend, nativeObjectReference, hostname);
+				if (nameTable == null) {
+					nativeCalls += 2;
+					backend.uninitialize(nativeObjectReference);
+					nativeObjectReference = backend.initialize(true);
+				}
+			}
 		} catch (Exception ex) {
 			nativeObjectReference = 0;
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_ERROR, 0);
 			throw new PerformanceCounterException(ERR_INIT_PDHLIB + ex.getMessage());
 		}
+		FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_OK, 0);
+	}
+
+	/**
+	 * @return the name table of the host, loaded again if it expired, or
+	 *         <tt>null</tt> if the names are not translated by the monitor
+	 */
+	private CounterNameTable getNameTable() {
+		if (nameTable != null && nameTable.isExpired(System.currentTimeMillis())) {
+			CounterNameTable table = CounterNameTable.forHost(backend, nativeObjectReference, hostname);
+			if (table != null) {
+				nameTable = table;
+			}
+		}
+		return nameTable;
 	}
 
 	@Override
 	public void disconnect() {
+		if (knownCounters != null) {
+			knownCounters.save(System.currentTimeMillis(), true);
+			knownCounters = null;
+		}
+		if (capture != null) {
+			capture.close();
+			capture = null;
+		}
 		if (nativeObjectReference != 0) {
 			try {
-				PerformanceCounters.uninitialize(nativeObjectReference);
+				nativeCalls++;
+				backend.uninitialize(nativeObjectReference);
 			} catch (Exception ex) {
 				// ignore
 				if (log.isLoggable(Level.WARNING))
 					log.log(Level.WARNING, ERR_UNINIT_PDHLIB, ex);
 			} finally {
 				nativeObjectReference = 0;
+				catalog = null;
+				nameTable = null;
 			}
 		}
 	}
 
+	@Override
+	public String getHostname() {
+		return nativeObjectReference == 0 ? null : hostname;
+	}
+
 	private String fixHostname(String hostname) {
 		// under xp localhost make troubles --> switch to 127.0.0.1
 		if (hostname.equalsIgnoreCase(LOCALHOST)) {
@@ -157,20 +403,111 @@ public class PerformanceMonitorImpl implements PerformanceMonitor {
 	}
 
 	private void addNativeQuery(PerformanceObject object, PerformanceCounter counter,
-			PerformanceInstance instance) throws PerformanceCounterException {
+			PerformanceInstance instance) {
+		Registration registration = new Registration(object, counter, instance, getNameTable());
+		instance.setCounterId(dictionary.getId(hostname, object.getName(), counter.getName(), instance.getInstanceName()));
+		registrationsById.put(instance.getCounterId(), registration);
+		if (!register(registration)) {
+			backOff(registration, System.currentTimeMillis());
+			pendingRegistrations.add(registration);
+		}
+	}
+
+	/**
+	 * Schedules the next attempt to register or retrieve a failed counter,
+	 * the delay doubles with each consecutive failure.
+	 */
+	private void backOff(Registration registration, long now) {
+		errorVersion++;
+		registration.failures++;
+		registration.retryTime = now + CircuitBreaker.getDelay(registration.failures, RETRY_INITIAL_DELAY,
+				RETRY_MAX_DELAY);
+	}
+
+	/**
+	 * Registers the instance for batched retrieval. If the backend doesn't
+	 * support batched retrieval, the value is retrieved once to check the
+	 * counter and the handle is assigned here. Counters of the persistent
+	 * catalog are not checked, they are verified by the next query.
+	 * 
+	 * @return true if the counter was registered
+	 */
+	private boolean register(Registration registration) {
+		PerformanceInstance instance = registration.instance;
+		Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.REGISTRATION) : null;
 		try {
-			if (!instance.isInitialized()) {
-				PerformanceCounters.getValue(nativeObjectReference, hostname, object.getName(), counter
-					.getName(), instance.getInstanceName(), counter.getScaleFactor());
-				instance.setInitialized(true);
-				instance.setLastErrorMessage(null);
-			}
-		} catch (InvalidPerformanceCounterException ex) {			
-			// indicates temporarily invalid counter, e.g. delta counter without reference value to calculate delta. Can be ignored. 
+			int handle = -1;
+			if (batchRetrieval) {
+				try {
+					nativeCalls++;
+					handle = backend.registerCounter(nativeObjectReference, hostname, registration.objectName,
+							registration.counterName, instance.getInstanceName(),
+							registration.counter.getScaleFactor());
+				} catch (UnsupportedOperationException ex) {
+					// only possible for the first registration, all further values are retrieved one by one
+					batchRetrieval = false;
+				}
+			}
+			registration.known = knownCounters != null
+					&& knownCounters.contains(registration.object.getName(), registration.counter.getName(),
+							instance.getInstanceName());
+			if (!batchRetrieval) {
+				if (!registration.known) {
+					try {
+						nativeCalls++;
+						backend.getValue(nativeObjectReference, hostname, registration.objectName,
+								registration.counterName, instance.getInstanceName(),
+								registration.counter.getScaleFactor());
+					} catch (InvalidPerformanceCounterException ex) {
+						// indicates temporarily invalid counter, e.g. delta counter without reference value to calculate delta. Can be ignored.
+					}
+				}
+				handle = freeHandles.isEmpty() ? handleCount : freeHandles.remove(freeHandles.size() - 1).intValue();
+			}
+			instance.setHandle(handle);
+			handleCount = Math.max(handleCount, handle + 1);
+			registrations.add(registration);
+			setError(registration, null);
+			FlightRecorderEvents.commit(event, hostname, registration.object.getName(),
+					registration.counter.getName(), instance.getInstanceName(), PerformanceBackend.STATUS_OK, 1);
+			return true;
 		} catch (PerformanceCounterException ex) {
-			instance.setInitialized(false);
-			instance.setLastErrorMessage(ex.getMessage());			
+			setError(registration, ex.getMessage());
+			FlightRecorderEvents.commit(event, hostname, registration.object.getName(),
+					registration.counter.getName(), instance.getInstanceName(), PerformanceBackend.STATUS_ERROR, 1);
+			return false;
+		}
+	}
+
+	/**
+	 * Sets or clears the error of a registered instance and maintains the
+	 * error index, in constant time.
+	 * 
+	 * @param errorMessage
+	 *            the error, <tt>null</tt> if the instance works
+	 */
+	private void setError(Registration registration, String errorMessage) {
+		PerformanceInstance instance = registration.instance;
+		if (errorMessage == null) {
+			if (registration.errorIndex >= 0) {
+				// fill the gap with the last entry
+				Registration last = failedRegistrations.remove(failedRegistrations.size() - 1);
+				if (last != registration) {
+					failedRegistrations.set(registration.errorIndex, last);
+					last.errorIndex = registration.errorIndex;
+				}
+				registration.errorIndex = -1;
+				errorVersion++;
+			}
+		} else if (registration.errorIndex < 0) {
+			registration.errorIndex = failedRegistrations.size();
+			failedRegistrations.add(registration);
+			errorVersion++;
+		} else if (!errorMessage.equals(instance.getLastErrorMessage())) {
+			errorVersion++;
 		}
+		instance.setInitialized(errorMessage == null);
+		instance.setLastErrorMessage(errorMessage);
 	}
 
 	@Override
@@ -178,142 +515,706 @@ public class PerformanceMonitorImpl implements PerformanceMonitor {
 		if (nativeObjectReference == 0) {
 			throw new InvalidOperationException(ERR_NOT_CONNECTED);
 		}
+		Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.CLEAR_QUERY) : null;
+		int count = registrations.size();
 		try {
-			if (!PerformanceCounters.clearPerformanceCounterMap(nativeObjectReference)) {
+			nativeCalls++;
+			if (!backend.clearPerformanceCounterMap(nativeObjectReference)) {
 				throw new Exception();
 			}
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_OK, count);
 			queries.clear();
+			registrations.clear();
+			pendingRegistrations.clear();
+			failedRegistrations.clear();
+			errorVersion++;
+			registrationsById.clear();
+			handleCount = 0;
+			freeHandles.clear();
+			deadHandles = 0;
+			retrievalStart = 0;
+			rawSample.count = 0;
+			previousRawSample.count = 0;
 		} catch (Exception ex) {
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_ERROR, count);
 			throw new PerformanceCounterException(ERR_CLEAR_QUERY);
 		}
 	}
 
+	/**
+	 * Removes counters from the query, e.g. the counters which are no longer
+	 * used by any subscriber of a shared session. The removed counters are
+	 * neither retrieved nor reported as failed, and are registered again if
+	 * they are added again. The backend cannot remove single counters: if the
+	 * values are retrieved one by one, the handles are reused by the next
+	 * registrations, otherwise the backend keeps collecting the counters
+	 * until the query is rebuilt by {@link #compact(long)}.
+	 * 
+	 * @param counterIds
+	 *            the ids of the counters, unknown ids are ignored
+	 * @return the number of removed counters
+	 */
+	int removeCounters(Collection<Integer> counterIds) {
+		int count = 0;
+		for (Integer counterId : counterIds) {
+			Registration registration = registrationsById.remove(counterId.intValue());
+			if (registration == null) {
+				continue;
+			}
+			count++;
+			registration.removed = true;
+			setError(registration, null);
+			PerformanceInstance instance = registration.instance;
+			if (!pendingRegistrations.remove(registration)) {
+				int handle = instance.getHandle();
+				if (handle < statuses.length) {
+					statuses[handle] = STATUS_SKIPPED;
+				}
+				if (batchRetrieval) {
+					deadHandles++;
+				} else {
+					freeHandles.add(Integer.valueOf(handle));
+				}
+			}
+			instance.setHandle(-1);
+			// a counter which is added again is registered again
+			PerformanceCounter counter = registration.counter;
+			counter.removeInstance(instance.getInstanceName());
+			if (counter.getInstances().isEmpty()) {
+				registration.object.removeCounter(counter);
+				if (registration.object.getCounters().length == 0) {
+					queries.remove(registration.object.getName());
+				}
+			}
+		}
+		if (count > 0) {
+			for (Iterator<Registration> it = registrations.iterator(); it.hasNext();) {
+				if (it.next().removed) {
+					it.remove();
+				}
+			}
+			errorVersion++;
+		}
+		return count;
+	}
+
+	/**
+	 * Rebuilds the query of the backend without the removed counters. The
+	 * live counters get new handles, the raw values of the previous sample
+	 * are moved to them so that rates stay valid.
+	 */
+	private void compact(long now) throws PerformanceCounterException {
+		Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.CLEAR_QUERY) : null;
+		nativeCalls++;
+		if (!backend.clearPerformanceCounterMap(nativeObjectReference)) {
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_ERROR, deadHandles);
+			throw new PerformanceCounterException(ERR_CLEAR_QUERY);
+		}
+		FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_OK, deadHandles);
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("rebuilding the query of " + hostname + " without " + deadHandles + " removed counters");
+		}
+		deadHandles = 0;
+		Registration[] live = registrations.toArray(new Registration[registrations.size()]);
+		registrations.clear();
+		handleCount = 0;
+		retrievalStart = 0;
+		RawSample previous = previousRawSample;
+		RawSample moved = rawSample;
+		moved.ensureCapacity(live.length);
+		Arrays.fill(moved.statuses, 0, live.length, PerformanceBackend.STATUS_ERROR);
+		moved.count = 0;
+		for (Registration registration : live) {
+			int oldHandle = registration.instance.getHandle();
+			if (!register(registration)) {
+				backOff(registration, now);
+				pendingRegistrations.add(registration);
+				continue;
+			}
+			int handle = registration.instance.getHandle();
+			if (oldHandle < previous.count && handle < live.length) {
+				moved.firstValues[handle] = previous.firstValues[oldHandle];
+				moved.secondValues[handle] = previous.secondValues[oldHandle];
+				moved.timeBases[handle] = previous.timeBases[oldHandle];
+				moved.types[handle] = previous.types[oldHandle];
+				moved.statuses[handle] = previous.statuses[oldHandle];
+				moved.count = Math.max(moved.count, handle + 1);
+			}
+		}
+		rawSample = previous;
+		previousRawSample = moved;
+	}
+
 	@Override
 	public Collection<PerformanceObject> getPerformanceIdentifiers()
 			throws PerformanceCounterException {
 		if (nativeObjectReference == 0) {
 			throw new InvalidOperationException(ERR_NOT_CONNECTED);
 		}
-		// TODO: implement: build a Collection of PerformanceObject trees
-		// PerformanceCounters.getObjects(nativeObjectReference, hostname);
-		// TODO PerformanceCounters.getCounters???
-		// PerformanceCounters.getInstances(nativeObjectReference, objectName, hostname);
-		throw new UnsupportedOperationException();
+		Collection<PerformanceObject> objects = catalog.getObjects(System.currentTimeMillis());
+		List<PerformanceObject> identifiers = new ArrayList<PerformanceObject>(objects.size());
+		for (PerformanceObject object : objects) {
+			identifiers.add(cloneIdentifier(object));
+		}
+		return identifiers;
+	}
+
+	@Override
+	public PerformanceObject getPerformanceIdentifiers(String objectName) throws PerformanceCounterException,
+			InvalidOperationException {
+		if (nativeObjectReference == 0) {
+			throw new InvalidOperationException(ERR_NOT_CONNECTED);
+		}
+		if (objectName == null) {
+			throw new NullPointerException();
+		}
+		PerformanceObject object = catalog.getObject(objectName, System.currentTimeMillis());
+		return object == null ? null : cloneIdentifier(object);
+	}
+
+	@Override
+	public void setCatalogTimeToLive(long timeToLive) {
+		catalogTimeToLive = timeToLive;
+		if (catalog != null) {
+			catalog.setTimeToLive(timeToLive);
+		}
+	}
+
+	/**
+	 * The objects of the catalog are shared, callers get a copy they may
+	 * modify, e.g. to add it to the query.
+	 */
+	private PerformanceObject cloneIdentifier(PerformanceObject object) throws PerformanceCounterException {
+		try {
+			return (PerformanceObject) object.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new PerformanceCounterException(ERR_CLONE_PERFOBJ);
+		}
+	}
+
+	@Override
+	public String[] getObjectNames() throws PerformanceCounterException, InvalidOperationException {
+		if (nativeObjectReference == 0) {
+			throw new InvalidOperationException(ERR_NOT_CONNECTED);
+		}
+		return catalog.getObjectNames(System.currentTimeMillis());
+	}
+
+	@Override
+	public String[] getInstanceNames(String objectName) throws PerformanceCounterException,
+			InvalidOperationException {
+		if (nativeObjectReference == 0) {
+			throw new InvalidOperationException(ERR_NOT_CONNECTED);
+		}
+		if (objectName == null) {
+			throw new NullPointerException();
+		}
+		if (breaker.isOpen()) {
+			throw new PerformanceCounterException(ERR_HOST_UNAVAILABLE + breaker.describe(System.currentTimeMillis()));
+		}
+		CounterNameTable table = getNameTable();
+		nativeCalls++;
+		String[] instanceNames = backend.getInstances(nativeObjectReference,
+				table == null ? objectName : table.translate(objectName), hostname);
+		if (instanceNames == null) {
+			throw new PerformanceCounterException(ERR_GET_INSTANCES + objectName);
+		}
+		return instanceNames;
 	}
 
 	@Override
 	public Map<PerformanceMeasureKey, Long> query() throws PerformanceCounterException, InvalidOperationException {
+		sample(null);
+		Map<PerformanceMeasureKey, Long> results = new HashMap<PerformanceMeasureKey, Long>();
+		for (Registration registration : registrations) {
+			int handle = registration.instance.getHandle();
+			if (statuses[handle] == PerformanceBackend.STATUS_OK) {
+				PerformanceMeasureKey key = new PerformanceMeasureKey(registration.object.getName(),
+						registration.counter.getName(), registration.instance.getInstanceName(),
+						registration.instance.getCounterId());
+				// put the value into the results map
+				results.put(key, Long.valueOf(values[handle]));
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public void query(QuerySnapshot snapshot) throws PerformanceCounterException, InvalidOperationException {
+		query(snapshot, null);
+	}
+
+	@Override
+	public int query(QuerySnapshot snapshot, QueryBudget budget) throws PerformanceCounterException,
+			InvalidOperationException {
+		int skipped = sample(budget);
+		snapshot.reset(handleCount);
+		for (int handle = 0; handle < handleCount; handle++) {
+			switch (statuses[handle]) {
+			case PerformanceBackend.STATUS_OK:
+				snapshot.setValue(handle, values[handle]);
+				break;
+			case PerformanceBackend.STATUS_INVALID_DATA:
+				snapshot.setError(handle, QuerySnapshot.ERROR_INVALID_DATA);
+				break;
+			case STATUS_SKIPPED:
+				snapshot.setError(handle, QuerySnapshot.ERROR_SKIPPED);
+				break;
+			default:
+				snapshot.setError(handle, QuerySnapshot.ERROR_FAILED);
+			}
+		}
+		snapshot.setTimestamp(sampleTime);
+		if (sampleListener != null) {
+			sampleListener.sampled(snapshot);
+		}
+		return skipped;
+	}
+
+	/**
+	 * Executes the query: registers pending counters, collects a new sample,
+	 * retrieves the values of all registered counters into the value and
+	 * status arrays and updates the state of the instances. Once the budget
+	 * is exhausted, the remaining steps are skipped.
+	 * 
+	 * @param budget
+	 *            the budget of the query, <tt>null</tt> for no limit
+	 * @return the number of skipped counters
+	 */
+	private int sample(QueryBudget budget) throws PerformanceCounterException, InvalidOperationException {
 		if (nativeObjectReference == 0) {
 			throw new InvalidOperationException(ERR_NOT_CONNECTED);
 		}
+		long now = System.currentTimeMillis();
+		int breakerState = breaker.getState();
+		boolean allowed = breaker.allowQuery(now);
+		if (breaker.getState() != breakerState) {
+			errorVersion++;
+		}
+		if (!allowed) {
+			// don't wait for the timeout of a host which is down
+			throw new PerformanceCounterException(ERR_HOST_UNAVAILABLE + breaker.describe(now));
+		}
+		// retry the counters which could not be registered so far, before the
+		// requery so that they are part of the sample
+		if (!pendingRegistrations.isEmpty()) {
+			for (Iterator<Registration> it = pendingRegistrations.iterator(); it.hasNext();) {
+				if (budget != null && budget.isExhausted()) {
+					// retried by the next query
+					break;
+				}
+				Registration registration = it.next();
+				if (now < registration.retryTime) {
+					continue;
+				}
+				if (register(registration)) {
+					registration.failures = 0;
+					it.remove();
+				} else {
+					backOff(registration, now);
+				}
+			}
+		}
+		if (deadHandles > 0 && deadHandles >= registrations.size() && (budget == null || !budget.isExhausted())) {
+			compact(now);
+		}
+		ensureCapacity();
+		if (budget != null && budget.isExhausted()) {
+			// nothing was sampled, the time stays the one of the last sample
+			Arrays.fill(statuses, 0, handleCount, STATUS_SKIPPED);
+			recordStatistics(-1, -1, pendingRegistrations.size(), registrations.size(), 0);
+			return registrations.size();
+		}
+		long requeryStart = System.nanoTime();
+		Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.REQUERY) : null;
 		try {
-			if (!PerformanceCounters.requery(nativeObjectReference)) {
+			nativeCalls++;
+			if (!backend.requery(nativeObjectReference)) {
 				throw new Exception();
 			}
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_OK, handleCount);
 		} catch (Exception ex) {
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_ERROR, handleCount);
+			breaker.failed(System.currentTimeMillis());
+			errorVersion++;
 			throw new PerformanceCounterException(ERR_REQUERY);
 		}
+		if (breaker.getFailures() > 0) {
+			breaker.succeeded();
+			errorVersion++;
+		}
+		sampleTime = System.currentTimeMillis();
+		long retrievalStart = System.nanoTime();
+		int skipped = retrieveValues(budget);
+		long retrievalEnd = System.nanoTime();
+		int failed = 0;
+		long messageBytes = 0;
+		for (Registration registration : registrations) {
+			PerformanceInstance instance = registration.instance;
+			int handle = instance.getHandle();
+			if (statuses[handle] == STATUS_SKIPPED) {
+				// neither a success nor an error
+				continue;
+			}
+			int status = statuses[handle];
+			if (status == PerformanceBackend.STATUS_OK) {
+				// successfully queried one measurement, arm logging flag again.
+				instance.setDoLog(true);
+				registration.status = status;
+				if (registration.errorIndex >= 0) {
+					setError(registration, null);
+				}
+				if (!registration.known && knownCounters != null) {
+					knownCounters.add(registration.object.getName(), registration.counter.getName(),
+							instance.getInstanceName());
+					registration.known = true;
+				}
+			} else {
+				failed++;
+				if (registration.known && statuses[handle] == PerformanceBackend.STATUS_ERROR) {
+					knownCounters.remove(registration.object.getName(), registration.counter.getName(),
+							instance.getInstanceName());
+					registration.known = false;
+				}
+				if (registration.status == status && registration.errorIndex >= 0
+						&& sampleTime - registration.errorMessageTime < ERROR_MESSAGE_MAX_AGE) {
+					// the error persists, its message was retrieved recently
+					continue;
+				}
+				registration.status = status;
+				registration.errorMessageTime = sampleTime;
+				String errorMessage = getErrorMessage(handle);
+				if (errorMessage == null) {
+					errorMessage = ERR_NO_VALUE;
+				}
+				messageBytes += errorMessage.length() * 2;
+				setError(registration, errorMessage);
+				if (instance.isDoLog()) {
+					instance.setDoLog(false);
+					if (log.isLoggable(Level.WARNING)) {
+						log.log(Level.WARNING, ERR_GET_VALUE + registration.object.getName() + ", " + registration.counter.getName() + ", " + instance.getInstanceName()+ ", " + errorMessage);
+					}
+				}
+			}
+		}
+		// the values and statuses, and the error messages retrieved
+		recordStatistics(retrievalStart - requeryStart, retrievalEnd - retrievalStart,
+				failed + pendingRegistrations.size(), skipped, handleCount * (8L + 4L) + messageBytes);
+		if (capture != null) {
+			recordSample();
+		}
+		if (knownCounters != null) {
+			knownCounters.save(sampleTime, false);
+		}
+		return skipped;
+	}
 
-		Map<PerformanceMeasureKey, Long> results = new HashMap<PerformanceMeasureKey, Long>();
+	private void recordStatistics(long requeryNanos, long retrievalNanos, int failed, int skipped, long resultBytes) {
+		queryStatistics.recordQuery(requeryNanos, retrievalNanos, nativeCalls - nativeCallsAtLastQuery, failed,
+				skipped, resultBytes);
+		nativeCallsAtLastQuery = nativeCalls;
+	}
 
-	    /** todo mk just for development
-		String[] objects = PerformanceCounters.getObjects(nativeObjectReference, hostname);
-		log.log(Level.INFO, "Perfmon dump start --------");
-		log.log(Level.INFO, "objects: " + objects.length);
-		int objectSize = 0;
-		int counterCount = 0;
-		int counterSize = 0;
-		int instanceSize = 0;
-        int instanceCount = 0;
-        long start = System.currentTimeMillis();
-        for (String obj : objects) {
-		    objectSize += obj.length();
-		    String[] counters = PerformanceCounters.getCounters(nativeObjectReference, obj, hostname);
-		    counterCount += counters.length;
-		    for (String counter : counters) {
-		        counterSize += counter.length();
-		    }		    
-
-		    try {
-		        String[] instances = PerformanceCounters.getInstances(nativeObjectReference, obj, hostname);
-		        instanceCount += instances.length;
-		        for (String instance : instances) {
-		            instanceSize += instance.length();
-		        }		    
-		    } catch (Exception e) {
-		        //e is thrown if no instances are available
-		    }
-		   
-		}
-        long end = System.currentTimeMillis();
-
-        log.log(Level.INFO, "counters: " + counterCount);
-		log.log(Level.INFO, "instances: " + instanceCount);
-		log.log(Level.INFO, "instance string size: " + instanceSize);
-		log.log(Level.INFO, "object string size: " + objectSize);
-		log.log(Level.INFO, "counter string size: " + counterSize);
-		log.log(Level.INFO, "total time : " + (end - start));
-	     */
-		for (PerformanceObject object : queries.values()) {
-			for (PerformanceCounter counter : object.getCounters()) {
-				for (PerformanceInstance instance : counter.getInstances()) {
-					try {
-						// retrieve the value
-						long value = PerformanceCounters.getValue(nativeObjectReference, hostname,
-								object.getName(), counter.getName(), instance.getInstanceName(), counter.getScaleFactor());
-
-						PerformanceMeasureKey key = new PerformanceMeasureKey(object.getName(), counter.getName(), instance.getInstanceName());
-						// put the value into the results map						
-						results.put(key, Long.valueOf(value));
-						// successfully queried one measurement, arm logging flag again.
-						instance.setDoLog(true);
-						instance.setLastErrorMessage(null);
-					} catch (InvalidPerformanceCounterException ex) {
-						instance.setInitialized(false);
-						instance.setLastErrorMessage(ex.getMessage());
-						if (instance.isDoLog()) {
-							instance.setDoLog(false);
-							if (log.isLoggable(Level.WARNING)) {
-								log.log(Level.WARNING, ERR_GET_VALUE + object.getName() + ", " + counter.getName() + ", " + instance.getInstanceName()+ ", " + ex.getMessage());
-							}
-						}
-					} catch (PerformanceCounterException pce) {
-						instance.setInitialized(false);
-						instance.setLastErrorMessage(pce.getMessage());
-						if (instance.isDoLog()) {
-							instance.setDoLog(false);
-							if (log.isLoggable(Level.WARNING)) {
-								log.log(Level.WARNING, ERR_GET_VALUE + object.getName() + ", " + counter.getName() + ", " + instance.getInstanceName(), pce);
-							}
-						}
-					}
+	private void recordSample() {
+		captureCounterIds = getSlotCounterIds(captureCounterIds);
+		try {
+			capture.record(sampleTime, captureCounterIds, values, statuses, handleCount, dictionary);
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, ERR_CAPTURE + capture.getFile(), ex);
+			}
+			capture.close();
+			capture = null;
+		}
+	}
+
+	private void ensureCapacity() {
+		if (values.length < handleCount) {
+			values = new long[handleCount];
+			statuses = new int[handleCount];
+			errorMessages = new String[handleCount];
+		}
+	}
+
+	/**
+	 * Retrieves the values of all registered counters into the value and
+	 * status arrays, with a single call if the backend supports it. Values
+	 * which are retrieved one by one start with the first counter skipped by
+	 * the last query, the budget is checked before each of them.
+	 * 
+	 * @return the number of skipped counters
+	 */
+	private int retrieveValues(QueryBudget budget) throws PerformanceCounterException {
+		if (batchRetrieval && rawMode) {
+			try {
+				retrieveRawValues();
+				return 0;
+			} catch (UnsupportedOperationException ex) {
+				rawMode = false;
+				if (log.isLoggable(Level.INFO)) {
+					log.info(ex.getMessage() + ", the values are retrieved formatted");
 				}
 			}
 		}
-		return results;
+		if (batchRetrieval) {
+			// the values were collected by the requery, they are only formatted
+			Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.RETRIEVAL) : null;
+			nativeCalls++;
+			if (handleCount > 0 && !backend.getValues(nativeObjectReference, values, statuses)) {
+				FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_ERROR, handleCount);
+				throw new PerformanceCounterException(ERR_GET_VALUES);
+			}
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_OK, handleCount);
+			return 0;
+		}
+		int count = registrations.size();
+		if (retrievalStart >= count) {
+			retrievalStart = 0;
+		}
+		int skipped = 0;
+		int firstSkipped = 0;
+		for (int i = 0; i < count; i++) {
+			int index = (retrievalStart + i) % count;
+			Registration registration = registrations.get(index);
+			int handle = registration.instance.getHandle();
+			if (skipped > 0 || (budget != null && budget.isExhausted())) {
+				if (skipped++ == 0) {
+					firstSkipped = index;
+				}
+				statuses[handle] = STATUS_SKIPPED;
+				continue;
+			}
+			if (registration.failures > 1 && sampleTime < registration.retryTime) {
+				// keeps the error of the last retrieval
+				statuses[handle] = PerformanceBackend.STATUS_ERROR;
+				continue;
+			}
+			Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.VALUE) : null;
+			try {
+				nativeCalls++;
+				values[handle] = backend.getValue(nativeObjectReference, hostname, registration.objectName,
+						registration.counterName, registration.instance.getInstanceName(),
+						registration.counter.getScaleFactor());
+				statuses[handle] = PerformanceBackend.STATUS_OK;
+				registration.failures = 0;
+			} catch (InvalidPerformanceCounterException ex) {
+				statuses[handle] = PerformanceBackend.STATUS_INVALID_DATA;
+				errorMessages[handle] = ex.getMessage();
+				registration.failures = 0;
+			} catch (PerformanceCounterException ex) {
+				statuses[handle] = PerformanceBackend.STATUS_ERROR;
+				errorMessages[handle] = ex.getMessage();
+				// a single failure is retried by the next query
+				if (++registration.failures > 1) {
+					errorVersion++;
+					registration.retryTime = sampleTime + CircuitBreaker.getDelay(registration.failures - 1,
+							RETRY_INITIAL_DELAY, RETRY_MAX_DELAY);
+				}
+			}
+			FlightRecorderEvents.commit(event, hostname, registration.object.getName(),
+					registration.counter.getName(), registration.instance.getInstanceName(), statuses[handle], 1);
+		}
+		if (skipped > 0) {
+			retrievalStart = firstSkipped;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Retrieves the raw values of all registered counters and computes their
+	 * values from the raw values of this and the previous sample. Rates use
+	 * the time stamps of the samples, so they are correct for any interval
+	 * between two queries. A counter which needs two samples is invalid until
+	 * it was retrieved twice.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if the backend does not provide raw values
+	 */
+	private void retrieveRawValues() throws PerformanceCounterException {
+		RawSample current = rawSample;
+		RawSample previous = previousRawSample;
+		current.ensureCapacity(handleCount);
+		Object event = FlightRecorderEvents.ENABLED ? FlightRecorderEvents.begin(FlightRecorderEvents.RETRIEVAL) : null;
+		nativeCalls++;
+		if (handleCount > 0 && !backend.getRawValues(nativeObjectReference, current.firstValues,
+				current.secondValues, current.timeBases, current.types, current.statuses)) {
+			FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_ERROR, handleCount);
+			throw new PerformanceCounterException(ERR_GET_RAW_VALUES);
+		}
+		FlightRecorderEvents.commit(event, hostname, null, null, null, PerformanceBackend.STATUS_OK, handleCount);
+		current.count = handleCount;
+		for (Registration registration : registrations) {
+			int handle = registration.instance.getHandle();
+			// the message of a failed retrieval is only fetched if the status
+			// of the counter changed or its message is too old, see
+			// getErrorMessage(int)
+			errorMessages[handle] = null;
+			if (current.statuses[handle] != PerformanceBackend.STATUS_OK) {
+				statuses[handle] = current.statuses[handle];
+				continue;
+			}
+			int type = current.types[handle];
+			boolean hasPrevious = handle < previous.count
+					&& previous.statuses[handle] == PerformanceBackend.STATUS_OK;
+			if (RawCounterCalculator.needsPreviousSample(type)) {
+				if (!hasPrevious) {
+					statuses[handle] = PerformanceBackend.STATUS_INVALID_DATA;
+					errorMessages[handle] = ERR_NO_PREVIOUS_SAMPLE;
+					continue;
+				}
+				if (previous.types[handle] != type) {
+					statuses[handle] = PerformanceBackend.STATUS_INVALID_DATA;
+					errorMessages[handle] = ERR_RAW_TYPE_CHANGED;
+					continue;
+				}
+			}
+			double value = RawCounterCalculator.calculate(type, hasPrevious ? previous.firstValues[handle] : 0,
+					hasPrevious ? previous.secondValues[handle] : 0, current.firstValues[handle],
+					current.secondValues[handle], current.timeBases[handle]);
+			if (Double.isNaN(value)) {
+				statuses[handle] = PerformanceBackend.STATUS_INVALID_DATA;
+				errorMessages[handle] = ERR_RAW_CALCULATION + Integer.toHexString(type);
+				continue;
+			}
+			if (registration.counter.getScaleFactor() == PerformanceCounter.SCALE_1000) {
+				value *= 1000;
+			}
+			values[handle] = (long) value;
+			statuses[handle] = PerformanceBackend.STATUS_OK;
+		}
+		rawSample = previous;
+		previousRawSample = current;
+	}
+
+	private String getErrorMessage(int handle) {
+		if (batchRetrieval && (!rawMode || errorMessages[handle] == null)) {
+			nativeCalls++;
+			return backend.getErrorMessage(nativeObjectReference, handle);
+		}
+		return errorMessages[handle];
+	}
+
+	@Override
+	public void setRawMode(boolean rawMode) {
+		if (this.rawMode != rawMode) {
+			this.rawMode = rawMode;
+			// the first raw sample has no predecessor
+			previousRawSample.count = 0;
+		}
+	}
+
+	@Override
+	public void setSampleListener(SampleListener listener) {
+		this.sampleListener = listener;
+	}
+
+	@Override
+	public void getStatistics(QueryStatistics statistics) {
+		statistics.set(queryStatistics);
 	}
 
+	/**
+	 * The report is built from the error index, so its cost depends on the
+	 * number of failing counters only. It is rebuilt if the errors changed,
+	 * or a second passed since it was built for the countdown of the retries.
+	 */
 	@Override
 	public String getDetailedErrors() {
-		StringBuffer errorMessage = new StringBuffer();	
-		for (PerformanceObject object : queries.values()) {
-			if (!object.errorOccurred()) continue;
-			errorMessage.append(object.getName()).append("\n");
-			for (PerformanceCounter counter : object.getCounters()) {
-				if (!counter.errorOccurred()) continue;				
-				errorMessage.append("  ").append(counter.getName()).append("\n");
-				for (PerformanceInstance instance : counter.getInstances()) {
-					if (instance.getLastErrorMessage() != null) {
-						errorMessage.append("    ").append(instance.getInstanceName() == null ? "all instances": instance.getInstanceName()).append(":").append(instance.getLastErrorMessage()).append("\n");
-					}
-				}
+		long now = System.currentTimeMillis();
+		if (detailedErrors == null || detailedErrorsVersion != errorVersion || detailedErrorsSecond != now / 1000) {
+			StringBuffer errorMessage = new StringBuffer();
+			appendErrors(errorMessage, null, now);
+			detailedErrors = errorMessage.toString();
+			detailedErrorsVersion = errorVersion;
+			detailedErrorsSecond = now / 1000;
+		}
+		return detailedErrors;
+	}
+
+	/**
+	 * @return a number which changes whenever the errors reported by
+	 *         {@link #appendErrors(StringBuffer, CounterIdMap, long)} change,
+	 *         apart from the countdown of the retries
+	 */
+	int getErrorVersion() {
+		return errorVersion;
+	}
+
+	/**
+	 * Appends the state of the circuit breaker of the host and the errors of
+	 * the failing counters, grouped by object and counter.
+	 * 
+	 * @param filter
+	 *            the counters to report by counter id, <tt>null</tt> for all
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	void appendErrors(StringBuffer errorMessage, CounterIdMap<?> filter, long now) {
+		String state = breaker.describe(now);
+		if (state != null) {
+			errorMessage.append(hostname).append(": ").append(state).append("\n");
+		}
+		if (sortedErrorsVersion != errorVersion) {
+			sortedErrors = failedRegistrations.toArray(new Registration[failedRegistrations.size()]);
+			Arrays.sort(sortedErrors, ERROR_ORDER);
+			sortedErrorsVersion = errorVersion;
+		}
+		String objectName = null;
+		String counterName = null;
+		for (Registration registration : sortedErrors) {
+			PerformanceInstance instance = registration.instance;
+			if (filter != null && filter.get(instance.getCounterId()) == null) {
+				continue;
+			}
+			if (!registration.object.getName().equals(objectName)) {
+				objectName = registration.object.getName();
+				counterName = null;
+				errorMessage.append(objectName).append("\n");
 			}
-		}		
-		return errorMessage.toString();
+			if (!registration.counter.getName().equals(counterName)) {
+				counterName = registration.counter.getName();
+				errorMessage.append("  ").append(counterName).append("\n");
+			}
+			errorMessage.append("    ").append(instance.getInstanceName() == null ? "all instances": instance.getInstanceName()).append(":").append(instance.getLastErrorMessage());
+			if (registration.failures > 0 && registration.retryTime > now) {
+				errorMessage.append(" (").append(registration.failures).append(" failed attempts, next attempt in ")
+						.append((registration.retryTime - now + 999) / 1000).append(" s)");
+			}
+			errorMessage.append("\n");
+		}
 	}
 
 	@Override
 	public PerformanceObject getPerformanceObject(String objectName) {
 		return queries.get(objectName);
 	}
+
+	@Override
+	public int getCounterId(String objectName, String counterName, String instanceName) {
+		int counterId = dictionary.findId(hostname, objectName, counterName, instanceName);
+		return counterId >= 0 && registrationsById.get(counterId) != null ? counterId : -1;
+	}
+
+	@Override
+	public PerformanceInstance getInstance(int counterId) {
+		Registration registration = registrationsById.get(counterId);
+		return registration == null ? null : registration.instance;
+	}
+
+	@Override
+	public CounterPath getCounterPath(int counterId) {
+		return dictionary.getPath(counterId);
+	}
+
+	@Override
+	public int[] getSlotCounterIds(int[] counterIds) {
+		if (counterIds == null || counterIds.length < handleCount) {
+			counterIds = new int[handleCount];
+		}
+		Arrays.fill(counterIds, -1);
+		for (Registration registration : registrations) {
+			counterIds[registration.instance.getHandle()] = registration.instance.getCounterId();
+		}
+		return counterIds;
+	}
 }
@@ -0,0 +1,340 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The counters of a host which were retrieved successfully, stored in a
+ * compact file per host and translation mode. A restarted collector loads
+ * the file and registers these counters without probing them, they are
+ * verified by the first query instead. Counters which fail with an error are
+ * removed again.
+ * <p>
+ * The catalogs are shared by all performance monitors of a host and are
+ * written at most once per {@link #SAVE_INTERVAL} when they changed, and
+ * when a monitor disconnects. The directory is configured with the system
+ * property {@value #DIRECTORY_PROPERTY}, the default is the temporary
+ * directory of the JVM. An empty value disables the persistence.
+ */
+final class PersistentCounterCatalog {
+
+	private static final Logger log = Logger.getLogger(PersistentCounterCatalog.class.getName());
+
+	/**
+	 * System property with the directory of the catalog files.
+	 */
+	static final String DIRECTORY_PROPERTY = "com.dynatrace.diagnostics.plugin.perflib.catalogDirectory";
+
+	private static final String DEFAULT_DIRECTORY = "dynatrace-perflib";
+	private static final String FILE_EXTENSION = ".catalog";
+	private static final String TRANSLATED_SUFFIX = ".translated";
+
+	/**
+	 * The minimum time in milliseconds between two writes of a changed
+	 * catalog.
+	 */
+	static final long SAVE_INTERVAL = 60 * 1000L;
+
+	// 'PCAT'
+	private static final int MAGIC = 0x50434154;
+	private static final int VERSION = 1;
+	private static final int NO_INSTANCE = 0;
+
+	private static final String ERR_LOAD = "failed to load counter catalog ";
+	private static final String ERR_SAVE = "failed to save counter catalog ";
+
+	private static final Map<String, PersistentCounterCatalog> catalogs = new HashMap<String, PersistentCounterCatalog>();
+
+	private final File file;
+	private final String hostName;
+	private final boolean translation;
+	// object name -> counter name -> instance names, null for no instance
+	private final Map<String, Map<String, Set<String>>> counters = new HashMap<String, Map<String, Set<String>>>();
+	private int size = 0;
+	private boolean dirty = false;
+	private long saveTime = 0;
+
+	private PersistentCounterCatalog(File file, String hostName, boolean translation) {
+		this.file = file;
+		this.hostName = hostName;
+		this.translation = translation;
+	}
+
+	/**
+	 * Returns the catalog of a host, it is loaded from its file on first use.
+	 *
+	 * @param hostName
+	 *            the name of the host
+	 * @param translation
+	 *            if the counter names are translated
+	 * @return the catalog or <tt>null</tt> if the persistence is disabled
+	 */
+	static PersistentCounterCatalog forHost(String hostName, boolean translation) {
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+		if (directory == null) {
+			directory = new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY).getPath();
+		} else if (directory.length() == 0) {
+			return null;
+		}
+		String fileName = toFileName(hostName) + (translation ? TRANSLATED_SUFFIX : "") + FILE_EXTENSION;
+		File file = new File(directory, fileName);
+		synchronized (catalogs) {
+			String key = file.getAbsolutePath();
+			PersistentCounterCatalog catalog = catalogs.get(key);
+			if (catalog == null) {
+				catalog = new PersistentCounterCatalog(file, hostName, translation);
+				catalog.load();
+				catalogs.put(key, catalog);
+			}
+			return catalog;
+		}
+	}
+
+	private static String toFileName(String hostName) {
+		StringBuilder fileName = new StringBuilder(hostName.length());
+		for (int i = 0; i < hostName.length(); i++) {
+			char c = hostName.charAt(i);
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.'
+					|| c == '-';
+			fileName.append(valid ? Character.toLowerCase(c) : '_');
+		}
+		return fileName.toString();
+	}
+
+	/**
+	 * @return if the counter was retrieved successfully before
+	 */
+	synchronized boolean contains(String objectName, String counterName, String instanceName) {
+		Map<String, Set<String>> objectCounters = counters.get(objectName);
+		if (objectCounters == null) {
+			return false;
+		}
+		Set<String> instances = objectCounters.get(counterName);
+		return instances != null && instances.contains(instanceName);
+	}
+
+	/**
+	 * Records a counter which was retrieved successfully.
+	 */
+	synchronized void add(String objectName, String counterName, String instanceName) {
+		Map<String, Set<String>> objectCounters = counters.get(objectName);
+		if (objectCounters == null) {
+			objectCounters = new HashMap<String, Set<String>>();
+			counters.put(objectName, objectCounters);
+		}
+		Set<String> instances = objectCounters.get(counterName);
+		if (instances == null) {
+			instances = new HashSet<String>();
+			objectCounters.put(counterName, instances);
+		}
+		if (instances.add(instanceName)) {
+			size++;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Removes a counter which does not exist anymore.
+	 */
+	synchronized void remove(String objectName, String counterName, String instanceName) {
+		Map<String, Set<String>> objectCounters = counters.get(objectName);
+		if (objectCounters == null) {
+			return;
+		}
+		Set<String> instances = objectCounters.get(counterName);
+		if (instances != null && instances.remove(instanceName)) {
+			size--;
+			dirty = true;
+			if (instances.isEmpty()) {
+				objectCounters.remove(counterName);
+				if (objectCounters.isEmpty()) {
+					counters.remove(objectName);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of counters in the catalog
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the catalog if it changed since the last write.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param force
+	 *            <tt>true</tt> to ignore the {@link #SAVE_INTERVAL}
+	 */
+	synchronized void save(long now, boolean force) {
+		if (!dirty || (!force && now - saveTime < SAVE_INTERVAL)) {
+			return;
+		}
+		saveTime = now;
+		try {
+			write();
+			dirty = false;
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, ERR_SAVE + file, ex);
+			}
+		}
+	}
+
+	private void load() {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (FileNotFoundException ex) {
+			// no catalog yet
+			return;
+		}
+		try {
+			read(in);
+		} catch (IOException ex) {
+			counters.clear();
+			size = 0;
+			if (log.isLoggable(Level.INFO)) {
+				log.log(Level.INFO, ERR_LOAD + file, ex);
+			}
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Reads the format written by {@link #write()}.
+	 */
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+			throw new IOException("unknown format");
+		}
+		if (in.readBoolean() != translation || !hostName.equals(in.readUTF())) {
+			throw new IOException("catalog of another host");
+		}
+		String[] names = new String[readVarInt(in)];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+		}
+		int objectCount = readVarInt(in);
+		for (int o = 0; o < objectCount; o++) {
+			String objectName = names[readVarInt(in)];
+			int counterCount = readVarInt(in);
+			for (int c = 0; c < counterCount; c++) {
+				String counterName = names[readVarInt(in)];
+				int instanceCount = readVarInt(in);
+				for (int i = 0; i < instanceCount; i++) {
+					int index = readVarInt(in);
+					add(objectName, counterName, index == NO_INSTANCE ? null : names[index - 1]);
+				}
+			}
+		}
+		dirty = false;
+	}
+
+	/**
+	 * Writes the catalog to a temporary file, which replaces the catalog
+	 * file afterwards. All names are stored once in a table, objects,
+	 * counters and instances refer to them by their index.
+	 */
+	private void write() throws IOException {
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, Map<String, Set<String>>> object : counters.entrySet()) {
+			index(object.getKey(), indexes, names);
+			for (Map.Entry<String, Set<String>> counter : object.getValue().entrySet()) {
+				index(counter.getKey(), indexes, names);
+				for (String instanceName : counter.getValue()) {
+					if (instanceName != null) {
+						index(instanceName, indexes, names);
+					}
+				}
+			}
+		}
+
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeBoolean(translation);
+			out.writeUTF(hostName);
+			writeVarInt(out, names.size());
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+			writeVarInt(out, counters.size());
+			for (Map.Entry<String, Map<String, Set<String>>> object : counters.entrySet()) {
+				writeVarInt(out, indexes.get(object.getKey()).intValue());
+				writeVarInt(out, object.getValue().size());
+				for (Map.Entry<String, Set<String>> counter : object.getValue().entrySet()) {
+					writeVarInt(out, indexes.get(counter.getKey()).intValue());
+					writeVarInt(out, counter.getValue().size());
+					for (String instanceName : counter.getValue()) {
+						writeVarInt(out, instanceName == null ? NO_INSTANCE : indexes.get(instanceName).intValue() + 1);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		// renameTo does not replace existing files on windows
+		if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file))) {
+			temporaryFile.delete();
+			throw new IOException("cannot replace " + file);
+		}
+	}
+
+	private static void index(String name, Map<String, Integer> indexes, List<String> names) {
+		if (!indexes.containsKey(name)) {
+			indexes.put(name, Integer.valueOf(names.size()));
+			names.add(name);
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed number");
+	}
+}
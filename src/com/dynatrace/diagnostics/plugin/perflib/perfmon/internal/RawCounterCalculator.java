@@ -0,0 +1,140 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+/**
+ * Computes the displayed value of a counter from its raw values, like
+ * <tt>PdhCalculateCounterFromRawValue</tt> does. A raw value consists of the
+ * first value N, the second value D and the time base F of the counter. D is
+ * the time of the sample in ticks of F for rate and timer counters and the
+ * base value for fraction and average counters.
+ * <p>
+ * The constants are the counter types of winperf.h, SQL Server uses
+ * {@link #PERF_COUNTER_LARGE_RAWCOUNT}, {@link #PERF_COUNTER_BULK_COUNT},
+ * {@link #PERF_LARGE_RAW_FRACTION}, {@link #PERF_AVERAGE_BULK} and the base
+ * counters of the latter two.
+ */
+final class RawCounterCalculator {
+
+	static final int PERF_COUNTER_RAWCOUNT_HEX = 0x00000000;
+	static final int PERF_COUNTER_LARGE_RAWCOUNT_HEX = 0x00000100;
+	static final int PERF_COUNTER_RAWCOUNT = 0x00010000;
+	static final int PERF_COUNTER_LARGE_RAWCOUNT = 0x00010100;
+	static final int PERF_COUNTER_DELTA = 0x00400400;
+	static final int PERF_COUNTER_LARGE_DELTA = 0x00400500;
+	static final int PERF_COUNTER_COUNTER = 0x10410400;
+	static final int PERF_COUNTER_BULK_COUNT = 0x10410500;
+	static final int PERF_RAW_FRACTION = 0x20020400;
+	static final int PERF_LARGE_RAW_FRACTION = 0x20020500;
+	static final int PERF_COUNTER_TIMER = 0x20410500;
+	static final int PERF_100NSEC_TIMER = 0x20510500;
+	static final int PERF_SAMPLE_FRACTION = 0x20C20400;
+	static final int PERF_COUNTER_TIMER_INV = 0x21410500;
+	static final int PERF_100NSEC_TIMER_INV = 0x21510500;
+	static final int PERF_AVERAGE_TIMER = 0x30020400;
+	static final int PERF_ELAPSED_TIME = 0x30240500;
+	static final int PERF_AVERAGE_BULK = 0x40020500;
+
+	private RawCounterCalculator() {
+	}
+
+	/**
+	 * @return if the value of the counter type is computed from two samples
+	 */
+	static boolean needsPreviousSample(int type) {
+		switch (type) {
+		case PERF_COUNTER_RAWCOUNT_HEX:
+		case PERF_COUNTER_LARGE_RAWCOUNT_HEX:
+		case PERF_COUNTER_RAWCOUNT:
+		case PERF_COUNTER_LARGE_RAWCOUNT:
+		case PERF_RAW_FRACTION:
+		case PERF_LARGE_RAW_FRACTION:
+		case PERF_ELAPSED_TIME:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Computes the value of a counter.
+	 *
+	 * @param type
+	 *            the counter type
+	 * @param previousFirst
+	 *            N of the previous sample, ignored if the type does not
+	 *            need a previous sample
+	 * @param previousSecond
+	 *            D of the previous sample
+	 * @param first
+	 *            N of the current sample
+	 * @param second
+	 *            D of the current sample
+	 * @param timeBase
+	 *            F, the frequency of the time of the counter in ticks per
+	 *            second
+	 * @return the value, <tt>NaN</tt> if it cannot be computed from the
+	 *         samples, e.g. because no time elapsed between them, or if the
+	 *         type is unknown or a base type
+	 */
+	static double calculate(int type, long previousFirst, long previousSecond, long first, long second,
+			long timeBase) {
+		switch (type) {
+		case PERF_COUNTER_RAWCOUNT_HEX:
+		case PERF_COUNTER_RAWCOUNT:
+			return first & 0xFFFFFFFFL;
+		case PERF_COUNTER_LARGE_RAWCOUNT_HEX:
+		case PERF_COUNTER_LARGE_RAWCOUNT:
+			return first;
+		case PERF_COUNTER_DELTA:
+			return delta32(previousFirst, first);
+		case PERF_COUNTER_LARGE_DELTA:
+			return first - previousFirst;
+		case PERF_COUNTER_COUNTER:
+			return rate(delta32(previousFirst, first), second - previousSecond, timeBase);
+		case PERF_COUNTER_BULK_COUNT:
+			return rate(first - previousFirst, second - previousSecond, timeBase);
+		case PERF_RAW_FRACTION:
+		case PERF_LARGE_RAW_FRACTION:
+			return second <= 0 ? Double.NaN : 100.0 * first / second;
+		case PERF_SAMPLE_FRACTION:
+		case PERF_COUNTER_TIMER:
+		case PERF_100NSEC_TIMER:
+			return fraction(first - previousFirst, second - previousSecond);
+		case PERF_COUNTER_TIMER_INV:
+		case PERF_100NSEC_TIMER_INV: {
+			double busy = fraction(first - previousFirst, second - previousSecond);
+			return Double.isNaN(busy) ? busy : Math.max(100.0 - busy, 0);
+		}
+		case PERF_AVERAGE_TIMER:
+			return timeBase <= 0 || second == previousSecond ? Double.NaN : (double) (first - previousFirst)
+					/ timeBase / (second - previousSecond);
+		case PERF_AVERAGE_BULK:
+			return second == previousSecond ? Double.NaN : (double) (first - previousFirst)
+					/ (second - previousSecond);
+		case PERF_ELAPSED_TIME:
+			return timeBase <= 0 ? Double.NaN : (double) (second - first) / timeBase;
+		default:
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * The difference of two 32 bit values, which may have wrapped around.
+	 */
+	private static long delta32(long previous, long current) {
+		return (current - previous) & 0xFFFFFFFFL;
+	}
+
+	private static double rate(long count, long ticks, long timeBase) {
+		if (ticks <= 0 || timeBase <= 0 || count < 0) {
+			return Double.NaN;
+		}
+		return count / ((double) ticks / timeBase);
+	}
+
+	private static double fraction(long count, long base) {
+		if (base <= 0 || count < 0) {
+			return Double.NaN;
+		}
+		return 100.0 * count / base;
+	}
+}
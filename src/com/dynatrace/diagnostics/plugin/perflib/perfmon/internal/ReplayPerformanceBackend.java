@@ -0,0 +1,415 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+
+/**
+ * A backend which replays a capture written by {@link CaptureRecorder}, so
+ * the samples of a production server can be fed through the monitors on any
+ * operating system.
+ * <p>
+ * The catalog of the backend consists of the counters of the capture, for
+ * whatever host is asked for. Each session replays the capture from its
+ * start: with a speed of 0 each requery takes the next sample, otherwise the
+ * sample that is due at the recorded pace multiplied by the speed, so a speed
+ * of 1 replays in real time and a speed of 60 replays an hour per minute. At
+ * the end of the capture the replay starts over.
+ * <p>
+ * The values are replayed as recorded, in the format and mode of the
+ * recording monitor; the format requested at registration is ignored.
+ */
+public class ReplayPerformanceBackend implements PerformanceBackend {
+
+	private static final String ERR_INVALID_REFERENCE = "invalid session reference: ";
+	private static final String ERR_INVALID_HANDLE = "invalid counter handle: ";
+	private static final String ERR_NO_SAMPLES = "the capture has no samples: ";
+	private static final String ERR_READ_CAPTURE = "failed to read the capture: ";
+	private static final String ERR_NO_OBJECT = "performance object not found: ";
+	private static final String ERR_NO_COUNTER = "performance counter not found: ";
+	private static final String ERR_NO_INSTANCES = "performance object has no instances: ";
+	private static final String ERR_INVALID_DATA = "no valid data in the recorded sample of counter: ";
+	private static final String ERR_FAILED = "the counter failed in the recorded sample: ";
+	private static final String ERR_ABSENT = "the counter is not part of the recorded sample: ";
+
+	/**
+	 * The counters and instances of a recorded performance object.
+	 */
+	private static final class RecordedObject {
+		private final Set<String> counters = new LinkedHashSet<String>();
+		private final Set<String> instances = new LinkedHashSet<String>();
+	}
+
+	/**
+	 * The replay of a session.
+	 */
+	private static final class Session {
+		private CaptureReader reader;
+		// the reader has read a sample which is not due yet
+		private boolean pending;
+		private long startNanos;
+		private long startTime;
+		// the state of the series in the current sample
+		private long[] values = new long[0];
+		private byte[] codes = new byte[0];
+		private int seriesCount = 0;
+		// the series of each handle
+		private int[] handles = new int[0];
+		private int handleCount = 0;
+	}
+
+	private final File capture;
+	private final double speed;
+	private final Map<String, RecordedObject> objects = new LinkedHashMap<String, RecordedObject>();
+	private final Map<String, Integer> seriesByPath = new HashMap<String, Integer>();
+	private final List<String> paths = new ArrayList<String>();
+	private final String hostName;
+	private final int sampleCount;
+	private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	private final AtomicLong nextReference = new AtomicLong(1);
+
+	/**
+	 * Reads the catalog of a capture.
+	 *
+	 * @param capture
+	 *            the capture file
+	 * @param speed
+	 *            the factor by which the replay is faster than the recording,
+	 *            0 to replay a sample per requery
+	 * @throws IOException
+	 *             if the capture cannot be read
+	 */
+	public ReplayPerformanceBackend(File capture, double speed) throws IOException {
+		if (speed < 0 || Double.isNaN(speed)) {
+			throw new IllegalArgumentException();
+		}
+		this.capture = capture;
+		this.speed = speed;
+		CaptureReader reader = new CaptureReader(capture);
+		try {
+			hostName = reader.getHostName();
+			int type;
+			while ((type = reader.next()) >= 0) {
+				if (type == CaptureFormat.RECORD_PATH) {
+					addPath(reader.getObjectName(), reader.getCounterName(), reader.getInstanceName());
+				}
+			}
+			sampleCount = reader.getSampleCount();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void addPath(String objectName, String counterName, String instanceName) {
+		RecordedObject object = objects.get(objectName);
+		if (object == null) {
+			object = new RecordedObject();
+			objects.put(objectName, object);
+		}
+		object.counters.add(counterName);
+		if (instanceName != null) {
+			object.instances.add(instanceName);
+		}
+		String path = toPath(objectName, counterName, instanceName);
+		seriesByPath.put(path, Integer.valueOf(paths.size()));
+		paths.add(path);
+	}
+
+	/**
+	 * @return the capture file
+	 */
+	public File getCapture() {
+		return capture;
+	}
+
+	/**
+	 * @return the name of the recorded host
+	 */
+	public String getHostName() {
+		return hostName;
+	}
+
+	/**
+	 * @return the number of samples of the capture
+	 */
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	@Override
+	public long initialize(boolean translate) throws PerformanceCounterException {
+		long reference = nextReference.getAndIncrement();
+		sessions.put(Long.valueOf(reference), new Session());
+		return reference;
+	}
+
+	@Override
+	public void uninitialize(long reference) throws PerformanceCounterException {
+		Session session = sessions.remove(Long.valueOf(reference));
+		if (session == null) {
+			throw new PerformanceCounterException(ERR_INVALID_REFERENCE + reference);
+		}
+		synchronized (session) {
+			if (session.reader != null) {
+				session.reader.close();
+				session.reader = null;
+			}
+		}
+	}
+
+	@Override
+	public boolean clearPerformanceCounterMap(long reference) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			session.handleCount = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean requery(long reference) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			if (sampleCount == 0) {
+				return false;
+			}
+			try {
+				if (session.reader == null) {
+					rewind(session);
+					apply(session);
+				} else if (speed == 0) {
+					if (!session.pending && !session.reader.nextSample()) {
+						rewind(session);
+					}
+					apply(session);
+				} else {
+					long due = session.startTime + (long) ((System.nanoTime() - session.startNanos) / 1000000L * speed);
+					while (true) {
+						if (!session.pending) {
+							if (!session.reader.nextSample()) {
+								rewind(session);
+								apply(session);
+								break;
+							}
+							session.pending = true;
+						}
+						if (session.reader.getTime() > due) {
+							break;
+						}
+						apply(session);
+					}
+				}
+			} catch (IOException ex) {
+				throw new PerformanceCounterException(ERR_READ_CAPTURE + ex.getMessage());
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Starts the replay of a session over, the first sample is pending
+	 * afterwards.
+	 */
+	private void rewind(Session session) throws IOException, PerformanceCounterException {
+		if (session.reader != null) {
+			session.reader.close();
+		}
+		session.reader = new CaptureReader(capture);
+		if (!session.reader.nextSample()) {
+			throw new PerformanceCounterException(ERR_NO_SAMPLES + capture);
+		}
+		session.pending = true;
+		session.startNanos = System.nanoTime();
+		session.startTime = session.reader.getTime();
+	}
+
+	/**
+	 * Makes the pending sample of the reader the current sample of a session.
+	 */
+	private static void apply(Session session) {
+		CaptureReader reader = session.reader;
+		int count = reader.getSeriesCount();
+		if (session.values.length < count) {
+			session.values = new long[count];
+			session.codes = new byte[count];
+		}
+		session.seriesCount = reader.copyState(session.values, session.codes);
+		session.pending = false;
+	}
+
+	@Override
+	public long getValue(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		int series = getSeries(objectName, counterName, instanceName);
+		synchronized (session) {
+			int code = getCode(session, series);
+			if (code != CaptureFormat.CODE_OK) {
+				throw createException(code, series);
+			}
+			return session.values[series];
+		}
+	}
+
+	@Override
+	public int registerCounter(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		int series = getSeries(objectName, counterName, instanceName);
+		synchronized (session) {
+			if (session.handles.length <= session.handleCount) {
+				int[] handles = new int[Math.max(16, session.handles.length * 2)];
+				System.arraycopy(session.handles, 0, handles, 0, session.handleCount);
+				session.handles = handles;
+			}
+			session.handles[session.handleCount] = series;
+			return session.handleCount++;
+		}
+	}
+
+	@Override
+	public boolean getValues(long reference, long[] values, int[] status) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			int count = session.handleCount;
+			if (values.length < count || status.length < count) {
+				throw new IllegalArgumentException();
+			}
+			for (int i = 0; i < count; i++) {
+				int series = session.handles[i];
+				switch (getCode(session, series)) {
+				case CaptureFormat.CODE_OK:
+					values[i] = session.values[series];
+					status[i] = STATUS_OK;
+					break;
+				case CaptureFormat.CODE_INVALID_DATA:
+				case CaptureFormat.CODE_SKIPPED:
+					status[i] = STATUS_INVALID_DATA;
+					break;
+				default:
+					status[i] = STATUS_ERROR;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Raw values are not recorded, a replay always uses formatted values.
+	 */
+	@Override
+	public boolean getRawValues(long reference, long[] firstValues, long[] secondValues, long[] timeBases,
+			int[] types, int[] status) throws PerformanceCounterException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getErrorMessage(long reference, int handle) {
+		Session session = sessions.get(Long.valueOf(reference));
+		if (session == null) {
+			return ERR_INVALID_REFERENCE + reference;
+		}
+		synchronized (session) {
+			if (handle < 0 || handle >= session.handleCount) {
+				return ERR_INVALID_HANDLE + handle;
+			}
+			int series = session.handles[handle];
+			int code = getCode(session, series);
+			if (code == CaptureFormat.CODE_OK) {
+				return null;
+			}
+			return createException(code, series).getMessage();
+		}
+	}
+
+	@Override
+	public String[] getObjects(long reference, String hostName) throws PerformanceCounterException {
+		getSession(reference);
+		return objects.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getCounters(long reference, String objectName, String hostName)
+			throws PerformanceCounterException {
+		getSession(reference);
+		return getObject(objectName).counters.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getInstances(long reference, String objectName, String hostName)
+			throws PerformanceCounterException {
+		getSession(reference);
+		RecordedObject object = getObject(objectName);
+		if (object.instances.isEmpty()) {
+			throw new PerformanceCounterException(ERR_NO_INSTANCES + objectName);
+		}
+		return object.instances.toArray(new String[0]);
+	}
+
+	/**
+	 * The capture holds the names the recording session used, they are not
+	 * translated again.
+	 */
+	@Override
+	public String[] getNameTable(long reference, String hostName, boolean localized)
+			throws PerformanceCounterException {
+		throw new UnsupportedOperationException("a replay has no name tables");
+	}
+
+	private Session getSession(long reference) throws PerformanceCounterException {
+		Session session = sessions.get(Long.valueOf(reference));
+		if (session == null) {
+			throw new PerformanceCounterException(ERR_INVALID_REFERENCE + reference);
+		}
+		return session;
+	}
+
+	private RecordedObject getObject(String objectName) throws PerformanceCounterException {
+		RecordedObject object = objectName == null ? null : objects.get(objectName);
+		if (object == null) {
+			throw new PerformanceCounterException(ERR_NO_OBJECT + objectName);
+		}
+		return object;
+	}
+
+	private int getSeries(String objectName, String counterName, String instanceName)
+			throws PerformanceCounterException {
+		Integer series = seriesByPath.get(toPath(objectName, counterName, instanceName));
+		if (series == null) {
+			getObject(objectName);
+			throw new PerformanceCounterException(ERR_NO_COUNTER + toPath(objectName, counterName, instanceName));
+		}
+		return series.intValue();
+	}
+
+	private static int getCode(Session session, int series) {
+		return series < session.seriesCount ? session.codes[series] : CaptureFormat.CODE_ABSENT;
+	}
+
+	private PerformanceCounterException createException(int code, int series) {
+		switch (code) {
+		case CaptureFormat.CODE_INVALID_DATA:
+		case CaptureFormat.CODE_SKIPPED:
+			return new InvalidPerformanceCounterException(ERR_INVALID_DATA + paths.get(series));
+		case CaptureFormat.CODE_FAILED:
+			return new PerformanceCounterException(ERR_FAILED + paths.get(series));
+		default:
+			return new PerformanceCounterException(ERR_ABSENT + paths.get(series));
+		}
+	}
+
+	private static String toPath(String objectName, String counterName, String instanceName) {
+		return instanceName == null ? objectName + "\\" + counterName : objectName + "(" + instanceName + ")\\"
+				+ counterName;
+	}
+}
@@ -0,0 +1,798 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPath;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.InvalidOperationException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMeasureKey;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceMonitor;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceObject;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryBudget;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QueryStatistics;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.SampleListener;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter.PerformanceInstance;
+
+/**
+ * A connection to a host which is shared by all performance monitors of the
+ * same backend, host and translation mode. The sessions are reference
+ * counted: {@link #acquire(PerformanceBackend, String, boolean, long)}
+ * connects on the first reference, the session is disconnected when the last
+ * subscriber disconnects.
+ * <p>
+ * The counters of all subscribers are registered in one query. A query of a
+ * subscriber reuses the sample taken for another subscriber if it is not
+ * older than the maximum sample age and no counters were added to the query
+ * since, so subscribers which are executed at the same time cause a single
+ * requery. A subscriber never gets the same sample twice. Sharing the
+ * requery also keeps rate counters meaningful, which PDH computes between two
+ * requeries. The subscribers of each counter are counted, a counter which no
+ * subscriber uses anymore is removed from the query before the next sample,
+ * unless a subscriber adds it again until then.
+ * <p>
+ * Subscribers can request background sampling. A sampler thread of the
+ * session then requeries the counters at the sampling interval and publishes
+ * each sample, the queries of all subscribers copy the latest published
+ * sample without waiting for the host or for each other. The sampler uses the
+ * shortest interval requested by its subscribers and stops when the last of
+ * them disconnects. The age of a published sample is the age of its
+ * timestamp, a failed requery keeps the previous sample published and is
+ * reported by {@link PerformanceMonitor#getDetailedErrors()}.
+ */
+public final class SharedPerformanceSession {
+
+	private static final Logger log = Logger.getLogger(SharedPerformanceSession.class.getName());
+
+	/**
+	 * The default maximum age in milliseconds of a sample which is reused
+	 * for the query of another subscriber.
+	 */
+	public static final long DEFAULT_MAX_SAMPLE_AGE = 5000;
+
+	private static final String ERR_ALREADY_CONNECTED = "shared session subscribers are connected when they are acquired";
+	private static final String ERR_NOT_CONNECTED = "not connected";
+	private static final String ERR_SAMPLING = "background sampling failed: ";
+
+	/**
+	 * The maximum time in milliseconds a disconnecting subscriber waits for
+	 * the sampler thread to finish its current requery.
+	 */
+	private static final long SAMPLER_STOP_TIMEOUT = 1000;
+
+	private static final Map<SessionKey, SharedPerformanceSession> sessions = new HashMap<SessionKey, SharedPerformanceSession>();
+
+	private static final class SessionKey {
+		private final PerformanceBackend backend;
+		private final String hostname;
+		private final boolean translation;
+
+		SessionKey(PerformanceBackend backend, String hostname, boolean translation) {
+			this.backend = backend;
+			this.hostname = hostname.toLowerCase();
+			this.translation = translation;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(backend) * 31 + hostname.hashCode()) * 31 + (translation ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SessionKey)) {
+				return false;
+			}
+			SessionKey other = (SessionKey) obj;
+			return backend == other.backend && hostname.equals(other.hostname) && translation == other.translation;
+		}
+	}
+
+	private final SessionKey key;
+	private final PerformanceMonitorImpl monitor;
+	private final QuerySnapshot sample = new QuerySnapshot();
+	private int references = 0;
+	private boolean connected = false;
+	// nano time of the last sample
+	private long sampleTime;
+	// the number of the last sample, 0 if there is none
+	private long sampleSequence = 0;
+	// counters were added to the query since the last sample
+	private boolean stale = false;
+	// the samples of the sampler thread
+	private final SnapshotPublisher publisher = new SnapshotPublisher();
+	// the sampler thread, null if the subscribers query inline
+	private volatile Sampler sampler;
+	// the subscribers which requested background sampling
+	private final List<Subscriber> samplingSubscribers = new ArrayList<Subscriber>();
+	// the error of the last background requery, null if it succeeded
+	private volatile String samplingError;
+	// the number of subscribers of each counter of the query
+	private final CounterIdMap<int[]> subscriberCounts = new CounterIdMap<int[]>();
+	// the counters which lost their last subscriber, removed from the query
+	// before the next sample
+	private final List<Integer> unsubscribedCounters = new ArrayList<Integer>();
+
+	private SharedPerformanceSession(SessionKey key) {
+		this.key = key;
+		this.monitor = new PerformanceMonitorImpl(key.backend);
+	}
+
+	/**
+	 * Returns a subscriber of the session of the host, the session is created
+	 * and connected if this is its first subscriber.
+	 *
+	 * @param backend
+	 *            the counter library, <tt>null</tt> for the native perfmon
+	 *            library
+	 * @param hostname
+	 *            the name or IP address of the host
+	 * @param translation
+	 *            enable or disable the counter name translation
+	 * @param maxSampleAge
+	 *            the maximum age in milliseconds of a sample of another
+	 *            subscriber which is reused by the queries of this
+	 *            subscriber
+	 * @return a connected performance monitor, which releases its reference
+	 *         to the session when it is disconnected
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot be initialized
+	 */
+	public static PerformanceMonitor acquire(PerformanceBackend backend, String hostname, boolean translation,
+			long maxSampleAge) throws PerformanceCounterException, InvalidOperationException, IOException {
+		return acquire(backend, hostname, translation, maxSampleAge, 0);
+	}
+
+	/**
+	 * Returns a subscriber of the session of the host, the session is created
+	 * and connected if this is its first subscriber.
+	 *
+	 * @param backend
+	 *            the counter library, <tt>null</tt> for the native perfmon
+	 *            library
+	 * @param hostname
+	 *            the name or IP address of the host
+	 * @param translation
+	 *            enable or disable the counter name translation
+	 * @param maxSampleAge
+	 *            the maximum age in milliseconds of a sample of another
+	 *            subscriber which is reused by the queries of this
+	 *            subscriber
+	 * @param samplingInterval
+	 *            the interval in milliseconds of the background sampling,
+	 *            0 to query inline
+	 * @return a connected performance monitor, which releases its reference
+	 *         to the session when it is disconnected
+	 * @throws PerformanceCounterException
+	 *             if the perfmon library cannot be initialized
+	 */
+	public static PerformanceMonitor acquire(PerformanceBackend backend, String hostname, boolean translation,
+			long maxSampleAge, long samplingInterval) throws PerformanceCounterException,
+			InvalidOperationException, IOException {
+		if (hostname == null) {
+			throw new NullPointerException();
+		}
+		SessionKey key = new SessionKey(backend == null ? NativePerformanceBackend.INSTANCE : backend, hostname,
+				translation);
+		SharedPerformanceSession session;
+		synchronized (sessions) {
+			session = sessions.get(key);
+			if (session == null) {
+				session = new SharedPerformanceSession(key);
+				sessions.put(key, session);
+			}
+			session.references++;
+		}
+		boolean connected = false;
+		try {
+			session.connect(hostname, translation);
+			connected = true;
+		} finally {
+			if (!connected) {
+				session.release();
+			}
+		}
+		Subscriber subscriber = session.new Subscriber(maxSampleAge * 1000000L, samplingInterval > 0);
+		if (samplingInterval > 0) {
+			session.startSampling(subscriber, hostname, samplingInterval);
+		}
+		return subscriber;
+	}
+
+	/**
+	 * @return the number of sessions, which equals the number of connections
+	 */
+	public static int getSessionCount() {
+		synchronized (sessions) {
+			return sessions.size();
+		}
+	}
+
+	private synchronized void connect(String hostname, boolean translation) throws PerformanceCounterException,
+			InvalidOperationException, IOException {
+		if (!connected) {
+			monitor.init(hostname, translation);
+			connected = true;
+		}
+	}
+
+	private void release() {
+		synchronized (sessions) {
+			if (--references > 0) {
+				return;
+			}
+			sessions.remove(key);
+		}
+		synchronized (this) {
+			if (connected) {
+				connected = false;
+				sampleSequence = 0;
+				subscriberCounts.clear();
+				unsubscribedCounters.clear();
+				monitor.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Starts the sampler thread, or shortens the interval of the running one.
+	 */
+	private synchronized void startSampling(Subscriber subscriber, String hostname, long samplingInterval) {
+		samplingSubscribers.add(subscriber);
+		if (sampler == null) {
+			sampler = new Sampler(samplingInterval);
+			Thread thread = new Thread(sampler, "perflib sampler " + hostname);
+			thread.setDaemon(true);
+			sampler.thread = thread;
+			thread.start();
+		} else if (samplingInterval < sampler.interval) {
+			sampler.interval = samplingInterval;
+			sampler.wake();
+		}
+	}
+
+	/**
+	 * Stops the sampler thread after its last subscriber disconnected and
+	 * waits for the current requery to finish.
+	 */
+	private void stopSampling(Subscriber subscriber) {
+		Sampler stopped;
+		synchronized (this) {
+			samplingSubscribers.remove(subscriber);
+			if (!samplingSubscribers.isEmpty() || sampler == null) {
+				return;
+			}
+			stopped = sampler;
+			sampler = null;
+			stopped.running = false;
+		}
+		stopped.wake();
+		if (stopped.thread != Thread.currentThread()) {
+			try {
+				stopped.thread.join(SAMPLER_STOP_TIMEOUT);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Counts a subscriber of a counter, the caller holds the lock of the
+	 * session.
+	 */
+	private void subscribe(int counterId) {
+		int[] count = subscriberCounts.get(counterId);
+		if (count == null) {
+			subscriberCounts.put(counterId, new int[] { 1 });
+		} else {
+			count[0]++;
+		}
+	}
+
+	/**
+	 * Releases the counters of a subscriber, the caller holds the lock of
+	 * the session. The counters without subscribers are only removed by the
+	 * next sample, so that a subscriber which clears its query and adds the
+	 * counters again does not register them again.
+	 */
+	private void unsubscribe(List<Integer> counterIds) {
+		for (Integer counterId : counterIds) {
+			int[] count = subscriberCounts.get(counterId.intValue());
+			if (count != null && --count[0] == 0) {
+				unsubscribedCounters.add(counterId);
+			}
+		}
+	}
+
+	/**
+	 * Removes the counters which are still without subscribers from the
+	 * query, the caller holds the lock of the session.
+	 */
+	private void removeUnsubscribedCounters() {
+		if (unsubscribedCounters.isEmpty()) {
+			return;
+		}
+		List<Integer> removed = new ArrayList<Integer>(unsubscribedCounters.size());
+		for (Integer counterId : unsubscribedCounters) {
+			int[] count = subscriberCounts.get(counterId.intValue());
+			if (count != null && count[0] == 0) {
+				subscriberCounts.remove(counterId.intValue());
+				removed.add(counterId);
+			}
+		}
+		unsubscribedCounters.clear();
+		int count = monitor.removeCounters(removed);
+		if (count > 0 && log.isLoggable(Level.FINE)) {
+			log.fine("removed " + count + " counters without subscribers from the query of " + key.hostname);
+		}
+	}
+
+	/**
+	 * Copies the latest sample of the sampler thread.
+	 */
+	private void copySample(QuerySnapshot snapshot) {
+		if (!publisher.copyLatest(snapshot)) {
+			// no sample yet, the timestamp marks the snapshot as outdated
+			snapshot.reset(0);
+			snapshot.setTimestamp(0);
+		}
+	}
+
+	/**
+	 * Requeries the counters of all subscribers at the sampling interval and
+	 * publishes the samples. A requery holds the lock of the session, the
+	 * publication does not.
+	 */
+	private final class Sampler implements Runnable {
+
+		private volatile long interval;
+		private volatile boolean running = true;
+		private Thread thread;
+		private final Object signal = new Object();
+		private boolean signaled = false;
+
+		Sampler(long interval) {
+			this.interval = interval;
+		}
+
+		/**
+		 * Requeries before the interval elapsed, e.g. because counters were
+		 * added or the sampler is stopped.
+		 */
+		void wake() {
+			synchronized (signal) {
+				signaled = true;
+				signal.notifyAll();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				long start = System.currentTimeMillis();
+				try {
+					QuerySnapshot buffer = publisher.getWriteBuffer();
+					synchronized (SharedPerformanceSession.this) {
+						if (!running || !connected) {
+							break;
+						}
+						removeUnsubscribedCounters();
+						monitor.query(buffer);
+						// the errors are read without waiting for the next requery
+						for (Subscriber subscriber : samplingSubscribers) {
+							subscriber.errors = subscriber.collectErrors();
+							SampleListener listener = subscriber.sampleListener;
+							if (listener != null) {
+								listener.sampled(buffer);
+							}
+						}
+					}
+					publisher.publish();
+					samplingError = null;
+				} catch (PerformanceCounterException ex) {
+					onError(ex);
+				} catch (InvalidOperationException ex) {
+					onError(ex);
+				}
+				long wait = interval - (System.currentTimeMillis() - start);
+				synchronized (signal) {
+					try {
+						// a wake up during the requery is not lost
+						while (running && !signaled && wait > 0) {
+							long waitStart = System.currentTimeMillis();
+							signal.wait(wait);
+							wait -= System.currentTimeMillis() - waitStart;
+						}
+					} catch (InterruptedException ex) {
+						running = false;
+					}
+					signaled = false;
+				}
+			}
+		}
+
+		private void onError(Exception ex) {
+			samplingError = ex.getMessage();
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, ERR_SAMPLING + key.hostname, ex);
+			}
+		}
+	}
+
+	/**
+	 * Queries the counters of all subscribers, unless the last sample can be
+	 * reused by the subscriber. A sample which skipped counters because the
+	 * budget was exhausted is not reused.
+	 */
+	private void sample(Subscriber subscriber, QueryBudget budget) throws PerformanceCounterException,
+			InvalidOperationException {
+		long now = System.nanoTime();
+		if (sampleSequence == 0 || stale || subscriber.sampleSequence == sampleSequence
+				|| now - sampleTime > subscriber.maxSampleAge) {
+			sampleSequence = 0;
+			removeUnsubscribedCounters();
+			int skipped = monitor.query(sample, budget);
+			sampleTime = now;
+			sampleSequence = sample.getSequence();
+			stale = skipped > 0;
+		}
+		subscriber.sampleSequence = sampleSequence;
+	}
+
+	/**
+	 * The performance monitor of a subscriber. It only knows the counters
+	 * which were added by the subscriber.
+	 */
+	private final class Subscriber implements PerformanceMonitor {
+
+		private final long maxSampleAge;
+		private final CounterIdMap<PerformanceInstance> instances = new CounterIdMap<PerformanceInstance>();
+		// the ids of the counters in the order they were added
+		private final List<Integer> counterIds = new ArrayList<Integer>();
+		private final boolean background;
+		private volatile boolean subscribed = true;
+		// the number of the last sample used by this subscriber
+		private long sampleSequence = 0;
+		// the published sample, only used by the query which returns a map
+		private final QuerySnapshot published = new QuerySnapshot();
+		// the errors of the latest published sample, null if there is none
+		private volatile String errors;
+		// the last list of collectErrors(), of the error version and second
+		private String collectedErrors;
+		private int collectedErrorsVersion;
+		private long collectedErrorsSecond;
+		private volatile SampleListener sampleListener;
+
+		Subscriber(long maxSampleAge, boolean background) {
+			this.maxSampleAge = maxSampleAge;
+			this.background = background;
+		}
+
+		private void checkSubscribed() throws InvalidOperationException {
+			if (!subscribed) {
+				throw new InvalidOperationException(ERR_NOT_CONNECTED);
+			}
+		}
+
+		@Override
+		public void init(String hostname, boolean translation) throws InvalidOperationException {
+			throw new InvalidOperationException(ERR_ALREADY_CONNECTED);
+		}
+
+		@Override
+		public void disconnect() {
+			synchronized (SharedPerformanceSession.this) {
+				if (!subscribed) {
+					return;
+				}
+				subscribed = false;
+				unsubscribe(counterIds);
+				instances.clear();
+				counterIds.clear();
+				collectedErrors = null;
+			}
+			if (background) {
+				stopSampling(this);
+			}
+			release();
+		}
+
+		@Override
+		public String getHostname() {
+			return subscribed ? monitor.getHostname() : null;
+		}
+
+		@Override
+		public void addQuery(PerformanceObject object) throws PerformanceCounterException,
+				InvalidOperationException {
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				boolean added = false;
+				for (PerformanceCounter counter : object.getCounters()) {
+					for (PerformanceInstance instance : counter.getInstances()) {
+						if (monitor.getCounterId(object.getName(), counter.getName(), instance.getInstanceName()) < 0) {
+							// the last sample does not contain the new counter
+							stale = true;
+							added = true;
+						}
+					}
+				}
+				monitor.addQuery(object);
+				Sampler current = sampler;
+				if (added && current != null) {
+					// sample the new counter without waiting for the interval
+					current.wake();
+				}
+				for (PerformanceCounter counter : object.getCounters()) {
+					for (PerformanceInstance instance : counter.getInstances()) {
+						int counterId = monitor.getCounterId(object.getName(), counter.getName(),
+								instance.getInstanceName());
+						if (counterId >= 0 && instances.get(counterId) == null) {
+							instances.put(counterId, monitor.getInstance(counterId));
+							counterIds.add(Integer.valueOf(counterId));
+							subscribe(counterId);
+							collectedErrors = null;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns the object of the shared query, which can contain counters
+		 * of other subscribers.
+		 */
+		@Override
+		public PerformanceObject getPerformanceObject(String objectName) {
+			synchronized (SharedPerformanceSession.this) {
+				return monitor.getPerformanceObject(objectName);
+			}
+		}
+
+		@Override
+		public int getCounterId(String objectName, String counterName, String instanceName) {
+			synchronized (SharedPerformanceSession.this) {
+				int counterId = monitor.getCounterId(objectName, counterName, instanceName);
+				return counterId >= 0 && instances.get(counterId) != null ? counterId : -1;
+			}
+		}
+
+		@Override
+		public PerformanceInstance getInstance(int counterId) {
+			synchronized (SharedPerformanceSession.this) {
+				return instances.get(counterId);
+			}
+		}
+
+		@Override
+		public CounterPath getCounterPath(int counterId) {
+			return monitor.getCounterPath(counterId);
+		}
+
+		/**
+		 * The slots of the shared query which belong to counters of other
+		 * subscribers are -1.
+		 */
+		@Override
+		public int[] getSlotCounterIds(int[] counterIds) {
+			synchronized (SharedPerformanceSession.this) {
+				counterIds = monitor.getSlotCounterIds(counterIds);
+				for (int slot = 0; slot < counterIds.length; slot++) {
+					if (counterIds[slot] >= 0 && instances.get(counterIds[slot]) == null) {
+						counterIds[slot] = -1;
+					}
+				}
+				return counterIds;
+			}
+		}
+
+		/**
+		 * Forgets the counters of this subscriber. The counters which are not
+		 * used by other subscribers are removed from the shared query by the
+		 * next sample, unless they are added again until then.
+		 */
+		@Override
+		public void clearQuery() throws InvalidOperationException {
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				unsubscribe(counterIds);
+				instances.clear();
+				counterIds.clear();
+				collectedErrors = null;
+			}
+		}
+
+		/**
+		 * While the session samples in the background, returns the errors of
+		 * the latest published sample without waiting for the requery.
+		 */
+		@Override
+		public void getStatistics(QueryStatistics statistics) {
+			synchronized (SharedPerformanceSession.this) {
+				monitor.getStatistics(statistics);
+			}
+		}
+
+		@Override
+		public String getDetailedErrors() {
+			String errorMessage = errors;
+			if (errorMessage == null || sampler == null) {
+				synchronized (SharedPerformanceSession.this) {
+					errorMessage = collectErrors();
+				}
+			}
+			String error = samplingError;
+			if (error != null && sampler != null) {
+				errorMessage = ERR_SAMPLING + error + "\n" + errorMessage;
+			}
+			return errorMessage;
+		}
+
+		/**
+		 * Lists the counters of this subscriber which failed, the caller
+		 * holds the lock of the session. The list is built from the error
+		 * index of the shared monitor and reused while the errors and the
+		 * second do not change.
+		 */
+		private String collectErrors() {
+			long now = System.currentTimeMillis();
+			if (collectedErrors == null || collectedErrorsVersion != monitor.getErrorVersion()
+					|| collectedErrorsSecond != now / 1000) {
+				StringBuffer errorMessage = new StringBuffer();
+				monitor.appendErrors(errorMessage, instances, now);
+				collectedErrors = errorMessage.toString();
+				collectedErrorsVersion = monitor.getErrorVersion();
+				collectedErrorsSecond = now / 1000;
+			}
+			return collectedErrors;
+		}
+
+		@Override
+		public Map<PerformanceMeasureKey, Long> query() throws PerformanceCounterException,
+				InvalidOperationException {
+			Map<PerformanceMeasureKey, Long> results = new HashMap<PerformanceMeasureKey, Long>();
+			checkSubscribed();
+			QuerySnapshot source = sample;
+			if (sampler != null) {
+				copySample(published);
+				source = published;
+			}
+			synchronized (SharedPerformanceSession.this) {
+				if (source != published) {
+					checkSubscribed();
+					sample(this, null);
+				}
+				for (Integer counterId : counterIds) {
+					PerformanceInstance instance = instances.get(counterId.intValue());
+					int handle = instance.getHandle();
+					if (source.isValid(handle)) {
+						CounterPath path = monitor.getCounterPath(counterId.intValue());
+						PerformanceMeasureKey key = new PerformanceMeasureKey(path.getObjectName(),
+								path.getCounterName(), path.getInstanceName(), counterId.intValue());
+						results.put(key, Long.valueOf(source.getValue(handle)));
+					}
+				}
+			}
+			return results;
+		}
+
+		@Override
+		public void query(QuerySnapshot snapshot) throws PerformanceCounterException, InvalidOperationException {
+			query(snapshot, null);
+		}
+
+		/**
+		 * Copies the latest published sample without locking while the
+		 * session samples in the background, its timestamp tells how old it
+		 * is. The budget is only used by inline queries, the returned number
+		 * of skipped counters only counts the counters of this subscriber.
+		 */
+		@Override
+		public int query(QuerySnapshot snapshot, QueryBudget budget) throws PerformanceCounterException,
+				InvalidOperationException {
+			checkSubscribed();
+			if (sampler != null) {
+				copySample(snapshot);
+				return 0;
+			}
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				long previousSequence = sampleSequence;
+				sample(this, budget);
+				snapshot.copyFrom(sample);
+				SampleListener listener = sampleListener;
+				if (listener != null && sampleSequence != previousSequence) {
+					listener.sampled(sample);
+				}
+				if (!stale) {
+					return 0;
+				}
+				int skipped = 0;
+				for (Integer counterId : counterIds) {
+					int handle = instances.get(counterId.intValue()).getHandle();
+					if (handle >= 0 && handle < sample.size()
+							&& sample.getErrorCode(handle) == QuerySnapshot.ERROR_SKIPPED) {
+						skipped++;
+					}
+				}
+				return skipped;
+			}
+		}
+
+		@Override
+		public String[] getObjectNames() throws PerformanceCounterException, InvalidOperationException {
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				return monitor.getObjectNames();
+			}
+		}
+
+		@Override
+		public String[] getInstanceNames(String objectName) throws PerformanceCounterException,
+				InvalidOperationException {
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				return monitor.getInstanceNames(objectName);
+			}
+		}
+
+		@Override
+		public Collection<PerformanceObject> getPerformanceIdentifiers() throws PerformanceCounterException,
+				InvalidOperationException {
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				return monitor.getPerformanceIdentifiers();
+			}
+		}
+
+		@Override
+		public PerformanceObject getPerformanceIdentifiers(String objectName) throws PerformanceCounterException,
+				InvalidOperationException {
+			synchronized (SharedPerformanceSession.this) {
+				checkSubscribed();
+				return monitor.getPerformanceIdentifiers(objectName);
+			}
+		}
+
+		/**
+		 * Sets the time to live of the catalog of the shared session, which
+		 * is used by all subscribers.
+		 */
+		@Override
+		public void setCatalogTimeToLive(long timeToLive) {
+			synchronized (SharedPerformanceSession.this) {
+				monitor.setCatalogTimeToLive(timeToLive);
+			}
+		}
+
+		/**
+		 * Switches the retrieval of the shared connection, which affects all
+		 * subscribers.
+		 */
+		@Override
+		public void setRawMode(boolean rawMode) {
+			synchronized (SharedPerformanceSession.this) {
+				monitor.setRawMode(rawMode);
+			}
+		}
+
+		/**
+		 * Sets the listener of this subscriber. While the session samples in
+		 * the background, the listener receives every sample of the sampler
+		 * thread, otherwise the samples of the queries of this subscriber,
+		 * which can be shared with other subscribers.
+		 */
+		@Override
+		public void setSampleListener(SampleListener listener) {
+			sampleListener = listener;
+		}
+	}
+}
@@ -0,0 +1,675 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounter;
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.PerformanceCounterException;
+
+/**
+ * A deterministic in-memory backend which simulates the performance counters
+ * of a host. It does not need the native library and can be used to measure
+ * the Java side of the collection path on any operating system.
+ * <p>
+ * Values and failures are derived from the seed, the counter path and the
+ * number of samples taken by the session, so two runs with the same
+ * configuration return the same results. Rate counters (names ending with
+ * "/sec") are invalid until the session has taken two samples, like their
+ * native counterparts. Latencies are simulated by busy waiting, or by
+ * sleeping for latencies of a millisecond and more.
+ * <p>
+ * Raw values are simulated with the counter types SQL Server uses: rate
+ * counters accumulate their value over the elapsed time, ratios and averages
+ * have a base, all other counters are raw counts. Computed from the raw
+ * values, they yield the same values as the formatted retrieval.
+ * <p>
+ * The catalog should be configured before sessions are created; the latency
+ * and failure settings can be changed at any time.
+ */
+public class SimulatedPerformanceBackend implements PerformanceBackend {
+
+	/** the object name prefix of a default SQL Server instance */
+	public static final String DEFAULT_INSTANCE_PREFIX = "SQLServer:";
+
+	private static final String[] DEFAULT_DATABASES = { "_Total", "master", "model", "msdb", "tempdb" };
+	private static final String[] LOCK_INSTANCES = { "_Total", "Database", "Extent", "Key", "Object", "Page", "RID" };
+	private static final String[] ERROR_INSTANCES = { "_Total", "DB Offline Errors", "Info Errors",
+			"Kill Connection Errors", "User Errors" };
+
+	private static final String RATE_COUNTER_SUFFIX = "/sec";
+	private static final long MIN_SLEEP_NANOS = 1000000L;
+	// the time base of the raw values, in 100 ns ticks like a FILETIME
+	private static final long RAW_TIME_BASE = 10000000L;
+	private static final long RAW_FRACTION_BASE = 100;
+	private static final long RAW_AVERAGE_COUNT = 10;
+
+	private static final String ERR_INVALID_REFERENCE = "invalid session reference: ";
+	private static final String ERR_HOST_UNREACHABLE = "unable to connect to host: ";
+	private static final String ERR_NO_OBJECT = "performance object not found: ";
+	private static final String ERR_NO_COUNTER = "performance counter not found: ";
+	private static final String ERR_NO_INSTANCE = "performance instance not found: ";
+	private static final String ERR_NO_INSTANCES = "performance object has no instances: ";
+	private static final String ERR_SIMULATED_FAILURE = "simulated failure of counter: ";
+	private static final String ERR_INVALID_DATA = "no valid data yet for counter: ";
+
+	// reasons for the status of a value
+	private static final int REASON_OK = 0;
+	private static final int REASON_INVALID_DATA = 1;
+	private static final int REASON_FAILURE = 2;
+	private static final int REASON_NO_OBJECT = 3;
+	private static final int REASON_NO_COUNTER = 4;
+	private static final int REASON_NO_INSTANCE = 5;
+	private static final int REASON_HOST_UNREACHABLE = 6;
+
+	private static final class SimulatedObject {
+		private final String name;
+		private volatile Set<String> counters = Collections.emptySet();
+		private volatile Set<String> instances = Collections.emptySet();
+
+		SimulatedObject(String name) {
+			this.name = name;
+		}
+	}
+
+	private static final class Registration {
+		private final String hostName;
+		private final String objectName;
+		private final String counterName;
+		private final String instanceName;
+		private final int format;
+		private final int rawType;
+		private int reason = REASON_OK;
+		// the accumulated raw values
+		private long first;
+		private long second;
+
+		Registration(String hostName, String objectName, String counterName, String instanceName, int format) {
+			this.hostName = hostName;
+			this.objectName = objectName;
+			this.counterName = counterName;
+			this.instanceName = instanceName;
+			this.format = format;
+			this.rawType = getRawType(counterName);
+		}
+	}
+
+	private static final class Session {
+		private final boolean translate;
+		private final AtomicLong sequence = new AtomicLong();
+		private final Set<String> hosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		private final List<Registration> registrations = new ArrayList<Registration>();
+		private final long[] value = new long[1];
+		// the time of the last requery in ticks of the raw time base
+		private volatile long perfTime;
+
+		Session(boolean translate) {
+			this.translate = translate;
+		}
+	}
+
+	private final long seed;
+	private final AtomicLong nextReference = new AtomicLong(1);
+	private final Map<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	private final Set<String> unreachableHosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile Map<String, SimulatedObject> objects = Collections.emptyMap();
+
+	private volatile long requeryLatency;
+	private volatile long callLatency;
+	private volatile long connectTimeout;
+	private volatile double failureRatio;
+	private volatile double invalidRatio;
+
+	/**
+	 * Creates a backend with the counters of a default SQL Server instance
+	 * that are used by the plugin.xml of this plugin.
+	 */
+	public SimulatedPerformanceBackend() {
+		this(0);
+		addSqlServerInstance(DEFAULT_INSTANCE_PREFIX, DEFAULT_DATABASES);
+	}
+
+	/**
+	 * Creates a backend with an empty catalog.
+	 *
+	 * @param seed
+	 *            the seed used to derive values and failures
+	 */
+	public SimulatedPerformanceBackend(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Adds the SQL Server objects and counters used by the plugin.xml of this
+	 * plugin.
+	 *
+	 * @param objectPrefix
+	 *            the object name prefix of the instance, e.g.
+	 *            <tt>SQLServer:</tt> or <tt>MSSQL$NAME:</tt>
+	 * @param databases
+	 *            the instances of the "Databases" object
+	 */
+	public void addSqlServerInstance(String objectPrefix, String... databases) {
+		addObject(objectPrefix + "Access Methods", new String[] { "Page Splits/sec", "Full Scans/sec" });
+		addObject(objectPrefix + "SQL Statistics", new String[] { "Batch Requests/sec", "SQL Compilations/sec" });
+		addObject(objectPrefix + "Databases", new String[] { "Log Flushes/sec", "Log Cache Hit Ratio",
+				"Transactions/sec" }, databases);
+		addObject(objectPrefix + "General Statistics", new String[] { "User Connections", "Transactions" });
+		addObject(objectPrefix + "Locks", new String[] { "Number of Deadlocks/sec", "Lock Requests/sec",
+				"Average Wait Time (ms)" }, LOCK_INSTANCES);
+		addObject(objectPrefix + "SQL Errors", new String[] { "Errors/sec" }, ERROR_INSTANCES);
+		addObject(objectPrefix + "Buffer Manager", new String[] { "Buffer cache hit ratio", "Checkpoint pages/sec",
+				"Lazy writes/sec", "Page life expectancy", "Page reads/sec", "Page writes/sec" });
+	}
+
+	/**
+	 * Adds an object with the given counters and instances. If the object
+	 * already exists, the counters and instances are added to it.
+	 *
+	 * @param objectName
+	 *            the name of the object
+	 * @param counterNames
+	 *            the names of the counters
+	 * @param instanceNames
+	 *            the names of the instances, none if the object has no
+	 *            instances
+	 */
+	public synchronized void addObject(String objectName, String[] counterNames, String... instanceNames) {
+		if (objectName == null || counterNames == null) {
+			throw new NullPointerException();
+		}
+		SimulatedObject object = objects.get(objectName);
+		if (object == null) {
+			object = new SimulatedObject(objectName);
+			Map<String, SimulatedObject> newObjects = new LinkedHashMap<String, SimulatedObject>(objects);
+			newObjects.put(objectName, object);
+			objects = newObjects;
+		}
+		Set<String> counters = new LinkedHashSet<String>(object.counters);
+		Collections.addAll(counters, counterNames);
+		object.counters = counters;
+		if (instanceNames.length > 0) {
+			Set<String> instances = new LinkedHashSet<String>(object.instances);
+			Collections.addAll(instances, instanceNames);
+			object.instances = instances;
+		}
+	}
+
+	/**
+	 * Removes an object, e.g. to simulate an uninstalled SQL Server instance.
+	 *
+	 * @param objectName
+	 *            the name of the object
+	 * @return if the object was removed
+	 */
+	public synchronized boolean removeObject(String objectName) {
+		if (!objects.containsKey(objectName)) {
+			return false;
+		}
+		Map<String, SimulatedObject> newObjects = new LinkedHashMap<String, SimulatedObject>(objects);
+		newObjects.remove(objectName);
+		objects = newObjects;
+		return true;
+	}
+
+	/**
+	 * Removes an instance from an object, e.g. to simulate a dropped database.
+	 *
+	 * @param objectName
+	 *            the name of the object
+	 * @param instanceName
+	 *            the name of the instance
+	 * @return if the instance was removed
+	 */
+	public synchronized boolean removeInstance(String objectName, String instanceName) {
+		SimulatedObject object = objects.get(objectName);
+		if (object == null || !object.instances.contains(instanceName)) {
+			return false;
+		}
+		Set<String> instances = new LinkedHashSet<String>(object.instances);
+		instances.remove(instanceName);
+		object.instances = instances;
+		return true;
+	}
+
+	/**
+	 * Sets the time each {@link #requery(long)} call takes.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void setRequeryLatency(long nanos) {
+		this.requeryLatency = nanos;
+	}
+
+	/**
+	 * Sets the time each value retrieval and enumeration call takes.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void setCallLatency(long nanos) {
+		this.callLatency = nanos;
+	}
+
+	/**
+	 * Sets the time a call takes before it fails because the host is
+	 * unreachable.
+	 *
+	 * @param nanos
+	 *            the timeout in nanoseconds
+	 * @see #setHostReachable(String, boolean)
+	 */
+	public void setConnectTimeout(long nanos) {
+		this.connectTimeout = nanos;
+	}
+
+	/**
+	 * Sets the ratio of value retrievals that fail with a
+	 * {@link PerformanceCounterException}.
+	 *
+	 * @param ratio
+	 *            a value between 0 and 1
+	 */
+	public void setFailureRatio(double ratio) {
+		if (ratio < 0 || ratio > 1) {
+			throw new IllegalArgumentException();
+		}
+		this.failureRatio = ratio;
+	}
+
+	/**
+	 * Sets the ratio of value retrievals that fail with an
+	 * {@link InvalidPerformanceCounterException}.
+	 *
+	 * @param ratio
+	 *            a value between 0 and 1
+	 */
+	public void setInvalidRatio(double ratio) {
+		if (ratio < 0 || ratio > 1) {
+			throw new IllegalArgumentException();
+		}
+		this.invalidRatio = ratio;
+	}
+
+	/**
+	 * Marks a host as reachable or unreachable. Calls for an unreachable host
+	 * fail after the connect timeout, and so does the requery of sessions
+	 * which have counters of this host.
+	 *
+	 * @param hostName
+	 *            the name of the host
+	 * @param reachable
+	 *            false to let calls for this host fail
+	 */
+	public void setHostReachable(String hostName, boolean reachable) {
+		if (reachable) {
+			unreachableHosts.remove(hostName);
+		} else {
+			unreachableHosts.add(hostName);
+		}
+	}
+
+	/**
+	 * @return the number of open sessions
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	@Override
+	public long initialize(boolean translate) throws PerformanceCounterException {
+		long reference = nextReference.getAndIncrement();
+		sessions.put(Long.valueOf(reference), new Session(translate));
+		return reference;
+	}
+
+	@Override
+	public void uninitialize(long reference) throws PerformanceCounterException {
+		if (sessions.remove(Long.valueOf(reference)) == null) {
+			throw new PerformanceCounterException(ERR_INVALID_REFERENCE + reference);
+		}
+	}
+
+	@Override
+	public boolean clearPerformanceCounterMap(long reference) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			session.hosts.clear();
+			session.registrations.clear();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean requery(long reference) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		for (String host : session.hosts) {
+			if (unreachableHosts.contains(host)) {
+				pause(connectTimeout);
+				return false;
+			}
+		}
+		pause(requeryLatency);
+		session.perfTime = System.nanoTime() / 100;
+		session.sequence.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public long getValue(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			pause(callLatency);
+			int reason = evaluate(session, hostName, objectName, counterName, instanceName, format);
+			if (reason != REASON_OK) {
+				throwException(reason, hostName, objectName, counterName, instanceName);
+			}
+			session.hosts.add(hostName);
+			return session.value[0];
+		}
+	}
+
+	@Override
+	public int registerCounter(long reference, String hostName, String objectName, String counterName,
+			String instanceName, int format) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			pause(callLatency);
+			int reason = evaluate(session, hostName, objectName, counterName, instanceName, format);
+			if (reason != REASON_OK && reason != REASON_INVALID_DATA && reason != REASON_FAILURE) {
+				throwException(reason, hostName, objectName, counterName, instanceName);
+			}
+			session.hosts.add(hostName);
+			session.registrations.add(new Registration(hostName, objectName, counterName, instanceName, format));
+			return session.registrations.size() - 1;
+		}
+	}
+
+	@Override
+	public boolean getValues(long reference, long[] values, int[] status) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			int count = session.registrations.size();
+			if (values.length < count || status.length < count) {
+				throw new IllegalArgumentException();
+			}
+			pause(callLatency);
+			for (int i = 0; i < count; i++) {
+				Registration registration = session.registrations.get(i);
+				registration.reason = evaluate(session, registration.hostName, registration.objectName,
+						registration.counterName, registration.instanceName, registration.format);
+				values[i] = session.value[0];
+				status[i] = registration.reason == REASON_OK ? STATUS_OK
+						: registration.reason == REASON_INVALID_DATA ? STATUS_INVALID_DATA : STATUS_ERROR;
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public boolean getRawValues(long reference, long[] firstValues, long[] secondValues, long[] timeBases,
+			int[] types, int[] status) throws PerformanceCounterException {
+		Session session = getSession(reference);
+		synchronized (session) {
+			int count = session.registrations.size();
+			if (firstValues.length < count || secondValues.length < count || timeBases.length < count
+					|| types.length < count || status.length < count) {
+				throw new IllegalArgumentException();
+			}
+			pause(callLatency);
+			long perfTime = session.perfTime;
+			for (int i = 0; i < count; i++) {
+				Registration registration = session.registrations.get(i);
+				registration.reason = evaluate(session, registration.hostName, registration.objectName,
+						registration.counterName, registration.instanceName, PerformanceCounter.NO_SCALE);
+				if (registration.reason != REASON_OK && registration.reason != REASON_INVALID_DATA) {
+					status[i] = STATUS_ERROR;
+					continue;
+				}
+				// raw values are valid from the first sample on
+				long value = registration.reason == REASON_OK ? session.value[0] : 0;
+				registration.reason = REASON_OK;
+				switch (registration.rawType) {
+				case RawCounterCalculator.PERF_COUNTER_BULK_COUNT:
+					if (registration.second != 0) {
+						registration.first += value * (perfTime - registration.second) / RAW_TIME_BASE;
+					}
+					registration.second = perfTime;
+					break;
+				case RawCounterCalculator.PERF_LARGE_RAW_FRACTION:
+					registration.first = value;
+					registration.second = RAW_FRACTION_BASE;
+					break;
+				case RawCounterCalculator.PERF_AVERAGE_BULK:
+					registration.first += value * RAW_AVERAGE_COUNT;
+					registration.second += RAW_AVERAGE_COUNT;
+					break;
+				default:
+					registration.first = value;
+				}
+				firstValues[i] = registration.first;
+				secondValues[i] = registration.second;
+				timeBases[i] = RAW_TIME_BASE;
+				types[i] = registration.rawType;
+				status[i] = STATUS_OK;
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public String getErrorMessage(long reference, int handle) {
+		Session session = sessions.get(Long.valueOf(reference));
+		if (session == null) {
+			return ERR_INVALID_REFERENCE + reference;
+		}
+		synchronized (session) {
+			Registration registration = session.registrations.get(handle);
+			if (registration.reason == REASON_OK) {
+				return null;
+			}
+			return createException(registration.reason, registration.hostName, registration.objectName,
+					registration.counterName, registration.instanceName).getMessage();
+		}
+	}
+
+	@Override
+	public String[] getObjects(long reference, String hostName) throws PerformanceCounterException {
+		getSession(reference);
+		checkHost(hostName);
+		pause(callLatency);
+		return objects.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getCounters(long reference, String objectName, String hostName)
+			throws PerformanceCounterException {
+		getSession(reference);
+		checkHost(hostName);
+		pause(callLatency);
+		return getObject(objectName).counters.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getInstances(long reference, String objectName, String hostName)
+			throws PerformanceCounterException {
+		getSession(reference);
+		checkHost(hostName);
+		pause(callLatency);
+		SimulatedObject object = getObject(objectName);
+		if (object.instances.isEmpty()) {
+			throw new PerformanceCounterException(ERR_NO_INSTANCES + objectName);
+		}
+		return object.instances.toArray(new String[0]);
+	}
+
+	/**
+	 * The simulated host is English, both tables list the names of the
+	 * objects and counters of the catalog at even indexes, like perflib.
+	 */
+	@Override
+	public String[] getNameTable(long reference, String hostName, boolean localized)
+			throws PerformanceCounterException {
+		getSession(reference);
+		checkHost(hostName);
+		pause(callLatency);
+		Set<String> names = new LinkedHashSet<String>();
+		for (SimulatedObject object : objects.values()) {
+			names.add(object.name);
+			names.addAll(object.counters);
+		}
+		String[] table = new String[2 * names.size() + 2];
+		int index = 2;
+		for (String name : names) {
+			table[index] = name;
+			index += 2;
+		}
+		return table;
+	}
+
+	/**
+	 * @param reference
+	 *            reference to the session
+	 * @return if name translation was requested for the session
+	 * @throws PerformanceCounterException
+	 *             if the session does not exist
+	 */
+	public boolean isTranslationEnabled(long reference) throws PerformanceCounterException {
+		return getSession(reference).translate;
+	}
+
+	private Session getSession(long reference) throws PerformanceCounterException {
+		Session session = sessions.get(Long.valueOf(reference));
+		if (session == null) {
+			throw new PerformanceCounterException(ERR_INVALID_REFERENCE + reference);
+		}
+		return session;
+	}
+
+	private SimulatedObject getObject(String objectName) throws PerformanceCounterException {
+		SimulatedObject object = objectName == null ? null : objects.get(objectName);
+		if (object == null) {
+			throw new PerformanceCounterException(ERR_NO_OBJECT + objectName);
+		}
+		return object;
+	}
+
+	/**
+	 * Computes the value of a counter for the current sample of the session
+	 * and stores it in the value field of the session. Errors are returned as
+	 * reason code instead of exceptions, so batched retrieval of failing
+	 * counters does not allocate.
+	 */
+	private int evaluate(Session session, String hostName, String objectName, String counterName,
+			String instanceName, int format) {
+		if (unreachableHosts.contains(hostName)) {
+			pause(connectTimeout);
+			return REASON_HOST_UNREACHABLE;
+		}
+		SimulatedObject object = objectName == null ? null : objects.get(objectName);
+		if (object == null) {
+			return REASON_NO_OBJECT;
+		}
+		if (!object.counters.contains(counterName)) {
+			return REASON_NO_COUNTER;
+		}
+		if (object.instances.isEmpty() ? instanceName != null : !object.instances.contains(instanceName)) {
+			return REASON_NO_INSTANCE;
+		}
+
+		long sequence = session.sequence.get();
+		long hash = mix(seed ^ (31L * 31L * objectName.hashCode() + 31L * counterName.hashCode()
+				+ (instanceName == null ? 0 : instanceName.hashCode())));
+		if (sequence < 2 && counterName.endsWith(RATE_COUNTER_SUFFIX)) {
+			return REASON_INVALID_DATA;
+		}
+		long sample = mix(hash + sequence);
+		double draw = (sample >>> 11) * 0x1.0p-53;
+		if (draw < invalidRatio) {
+			return REASON_INVALID_DATA;
+		}
+		if (draw < invalidRatio + failureRatio) {
+			return REASON_FAILURE;
+		}
+		long value = (hash & 0xFFFF) + (sample >>> 1) % 1000;
+		session.value[0] = format == PerformanceCounter.SCALE_1000 ? value * 1000 : value;
+		return REASON_OK;
+	}
+
+	private static int getRawType(String counterName) {
+		String name = counterName.toLowerCase();
+		if (name.endsWith(RATE_COUNTER_SUFFIX)) {
+			return RawCounterCalculator.PERF_COUNTER_BULK_COUNT;
+		}
+		if (name.contains("ratio")) {
+			return RawCounterCalculator.PERF_LARGE_RAW_FRACTION;
+		}
+		if (name.startsWith("average")) {
+			return RawCounterCalculator.PERF_AVERAGE_BULK;
+		}
+		return RawCounterCalculator.PERF_COUNTER_LARGE_RAWCOUNT;
+	}
+
+	private static void throwException(int reason, String hostName, String objectName, String counterName,
+			String instanceName) throws PerformanceCounterException {
+		throw createException(reason, hostName, objectName, counterName, instanceName);
+	}
+
+	private static PerformanceCounterException createException(int reason, String hostName, String objectName,
+			String counterName, String instanceName) {
+		switch (reason) {
+		case REASON_INVALID_DATA:
+			return new InvalidPerformanceCounterException(ERR_INVALID_DATA + objectName + "\\" + counterName);
+		case REASON_FAILURE:
+			return new PerformanceCounterException(ERR_SIMULATED_FAILURE + objectName + "\\" + counterName);
+		case REASON_NO_OBJECT:
+			return new PerformanceCounterException(ERR_NO_OBJECT + objectName);
+		case REASON_NO_COUNTER:
+			return new PerformanceCounterException(ERR_NO_COUNTER + objectName + "\\" + counterName);
+		case REASON_NO_INSTANCE:
+			return new PerformanceCounterException(ERR_NO_INSTANCE + objectName + "(" + instanceName + ")");
+		default:
+			return new PerformanceCounterException(ERR_HOST_UNREACHABLE + hostName);
+		}
+	}
+
+	private void checkHost(String hostName) throws PerformanceCounterException {
+		if (unreachableHosts.contains(hostName)) {
+			pause(connectTimeout);
+			throw new PerformanceCounterException(ERR_HOST_UNREACHABLE + hostName);
+		}
+	}
+
+	private static void pause(long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		if (nanos >= MIN_SLEEP_NANOS) {
+			LockSupport.parkNanos(nanos);
+			return;
+		}
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() - end < 0) {
+			// busy wait to simulate the cpu time spent in the native library
+		}
+	}
+
+	/**
+	 * The finalizer of the SplitMix64 generator, used to derive well
+	 * distributed values from the counter path and sample number.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,101 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.QuerySnapshot;
+
+/**
+ * Hands the snapshots of a single writer to any number of readers without
+ * locks. The writer fills a buffer which is neither published nor read and
+ * publishes it with a single reference swap, readers copy the latest
+ * published buffer. A reader announces itself in the reader count of the
+ * buffer and checks that the buffer is still the published one afterwards,
+ * the writer only reuses buffers which are not published and have no
+ * readers. Usually two buffers are enough, another one is added if a slow
+ * reader still holds a buffer.
+ */
+final class SnapshotPublisher {
+
+	private static final class Buffer {
+		private final QuerySnapshot snapshot = new QuerySnapshot();
+		private final AtomicInteger readers = new AtomicInteger();
+	}
+
+	private final AtomicReference<Buffer> latest = new AtomicReference<Buffer>();
+	// only accessed by the writer
+	private final List<Buffer> buffers = new ArrayList<Buffer>();
+	private Buffer writeBuffer;
+
+	/**
+	 * Returns the buffer the writer fills next. Must only be called by the
+	 * writer.
+	 *
+	 * @return a snapshot which is not visible to readers until
+	 *         {@link #publish()} is called
+	 */
+	QuerySnapshot getWriteBuffer() {
+		if (writeBuffer == null) {
+			Buffer published = latest.get();
+			for (Buffer buffer : buffers) {
+				if (buffer != published && buffer.readers.get() == 0) {
+					writeBuffer = buffer;
+					break;
+				}
+			}
+			if (writeBuffer == null) {
+				writeBuffer = new Buffer();
+				buffers.add(writeBuffer);
+			}
+		}
+		return writeBuffer.snapshot;
+	}
+
+	/**
+	 * Publishes the buffer returned by {@link #getWriteBuffer()}. Must only be
+	 * called by the writer.
+	 */
+	void publish() {
+		if (writeBuffer != null) {
+			latest.set(writeBuffer);
+			writeBuffer = null;
+		}
+	}
+
+	/**
+	 * Copies the latest published snapshot.
+	 *
+	 * @param target
+	 *            receives the snapshot
+	 * @return <tt>false</tt> if nothing was published yet
+	 */
+	boolean copyLatest(QuerySnapshot target) {
+		while (true) {
+			Buffer buffer = latest.get();
+			if (buffer == null) {
+				return false;
+			}
+			buffer.readers.incrementAndGet();
+			try {
+				// the writer may have taken the buffer before it was announced
+				if (latest.get() == buffer) {
+					target.copyFrom(buffer.snapshot);
+					return true;
+				}
+			} finally {
+				buffer.readers.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return the time of the latest published snapshot, 0 if nothing was
+	 *         published yet
+	 */
+	long getLatestTimestamp() {
+		Buffer buffer = latest.get();
+		return buffer == null ? 0 : buffer.snapshot.getTimestamp();
+	}
+}
@@ -0,0 +1,68 @@
+package com.dynatrace.diagnostics.plugin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InstanceNameCacheTest {
+
+	@Test
+	public void literalMatchesOnlyItself() {
+		assertTrue(InstanceNameCache.matches("master", "master"));
+		assertFalse(InstanceNameCache.matches("master", "masters"));
+		assertFalse(InstanceNameCache.matches("master", "maste"));
+		assertFalse(InstanceNameCache.matches("master", ""));
+	}
+
+	@Test
+	public void comparisonIgnoresCase() {
+		assertTrue(InstanceNameCache.matches("MASTER", "master"));
+		assertTrue(InstanceNameCache.matches("m*DB", "myDb"));
+	}
+
+	@Test
+	public void starMatchesAnySequence() {
+		assertTrue(InstanceNameCache.matches("*", ""));
+		assertTrue(InstanceNameCache.matches("*", "_Total"));
+		assertTrue(InstanceNameCache.matches("m*", "m"));
+		assertTrue(InstanceNameCache.matches("m*", "master"));
+		assertTrue(InstanceNameCache.matches("*db", "salesdb"));
+		assertTrue(InstanceNameCache.matches("s*s*db", "salesdb"));
+		assertTrue(InstanceNameCache.matches("**", "tempdb"));
+		assertFalse(InstanceNameCache.matches("m*", "tempdb"));
+		assertFalse(InstanceNameCache.matches("*db", "dbo"));
+	}
+
+	@Test
+	public void starBacktracksToLaterOccurrences() {
+		assertTrue(InstanceNameCache.matches("*ab", "aab"));
+		assertTrue(InstanceNameCache.matches("a*b*c", "abbbbc"));
+		assertTrue(InstanceNameCache.matches("*a*b", "xaybzb"));
+		assertFalse(InstanceNameCache.matches("*a*b", "xaybzc"));
+	}
+
+	@Test
+	public void questionMarkMatchesOneCharacter() {
+		assertTrue(InstanceNameCache.matches("db?", "db1"));
+		assertTrue(InstanceNameCache.matches("?", "x"));
+		assertFalse(InstanceNameCache.matches("db?", "db"));
+		assertFalse(InstanceNameCache.matches("db?", "db12"));
+		assertTrue(InstanceNameCache.matches("db?*", "db12"));
+		assertFalse(InstanceNameCache.matches("?", ""));
+	}
+
+	@Test
+	public void emptyPatternMatchesOnlyEmptyName() {
+		assertTrue(InstanceNameCache.matches("", ""));
+		assertFalse(InstanceNameCache.matches("", "master"));
+	}
+
+	@Test
+	public void patternsAreRecognized() {
+		assertTrue(InstanceNameCache.isPattern("*"));
+		assertTrue(InstanceNameCache.isPattern("db?"));
+		assertFalse(InstanceNameCache.isPattern("master"));
+		assertFalse(InstanceNameCache.isPattern(null));
+	}
+}
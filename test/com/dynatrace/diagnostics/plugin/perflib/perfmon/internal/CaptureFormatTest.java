@@ -0,0 +1,202 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynatrace.diagnostics.plugin.perflib.perfmon.CounterPathDictionary;
+
+public class CaptureFormatTest {
+
+	private static final String HOST = "sqlhost";
+
+	private static final int OK = PerformanceBackend.STATUS_OK;
+	private static final int INVALID = PerformanceBackend.STATUS_INVALID_DATA;
+	private static final int ERROR = PerformanceBackend.STATUS_ERROR;
+	// any other status marks a skipped slot
+	private static final int SKIPPED = 3;
+
+	private File file;
+	private CounterPathDictionary dictionary;
+	private int batchRequests;
+	private int connections;
+	private int logFlushes;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("capture", CaptureRecorder.FILE_EXTENSION);
+		dictionary = new CounterPathDictionary();
+		batchRequests = dictionary.getId(HOST, "SQL Statistics", "Batch Requests/sec", null);
+		connections = dictionary.getId(HOST, "General Statistics", "User Connections", null);
+		logFlushes = dictionary.getId(HOST, "Databases", "Log Flushes/sec", "master");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void varintsRoundTrip() throws IOException {
+		long[] values = { 0, 1, -1, 63, -64, 64, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+				Long.MIN_VALUE };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (long value : values) {
+			CaptureFormat.writeVarLong(out, CaptureFormat.zigzag(value));
+		}
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (long value : values) {
+			assertEquals(value, CaptureFormat.unzigzag(CaptureFormat.readVarLong(in)));
+		}
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void smallNumbersTakeOneByte() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CaptureFormat.writeVarLong(out, CaptureFormat.zigzag(0));
+		CaptureFormat.writeVarLong(out, CaptureFormat.zigzag(-64));
+		CaptureFormat.writeVarLong(out, 127);
+		assertEquals(3, out.size());
+	}
+
+	@Test
+	public void readerReturnsRecordedSamples() throws IOException {
+		long[] times = { 1000000L, 1001000L, 1002000L, 1005500L };
+		CaptureRecorder recorder = new CaptureRecorder(file, HOST);
+		try {
+			int[] counterIds = { batchRequests, -1, connections };
+			for (int i = 0; i < times.length; i++) {
+				recorder.record(times[i], counterIds, new long[] { 100L * i, 0, -i }, new int[] { OK, OK, OK }, 3,
+						dictionary);
+			}
+		} finally {
+			recorder.close();
+		}
+
+		CaptureReader reader = new CaptureReader(file);
+		try {
+			assertEquals(HOST, reader.getHostName());
+			assertEquals(CaptureFormat.RECORD_PATH, reader.next());
+			assertEquals("SQL Statistics", reader.getObjectName());
+			assertEquals("Batch Requests/sec", reader.getCounterName());
+			assertNull(reader.getInstanceName());
+			for (int i = 0; i < times.length; i++) {
+				assertTrue(reader.nextSample());
+				assertEquals(times[i], reader.getTime());
+				assertEquals(2, reader.getSeriesCount());
+				assertEquals(100L * i, reader.getValue(0));
+				assertEquals(-i, reader.getValue(1));
+				assertEquals(CaptureFormat.CODE_OK, reader.getCode(1));
+			}
+			assertFalse(reader.nextSample());
+			assertEquals(times.length, reader.getSampleCount());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void replayReturnsRecordedValuesAndStatus() throws Exception {
+		CaptureRecorder recorder = new CaptureRecorder(file, HOST);
+		try {
+			recorder.record(1000, new int[] { batchRequests, connections }, new long[] { 5, Long.MIN_VALUE },
+					new int[] { OK, OK }, 2, dictionary);
+			recorder.record(2000, new int[] { batchRequests, connections }, new long[] { 5, 0 }, new int[] { OK,
+					INVALID }, 2, dictionary);
+			// a new counter in the first slot changes the layout
+			recorder.record(3000, new int[] { logFlushes, batchRequests, connections }, new long[] { 7, 0, 0 },
+					new int[] { OK, ERROR, SKIPPED }, 3, dictionary);
+			// the user connections are no longer recorded
+			recorder.record(4000, new int[] { logFlushes, batchRequests }, new long[] { 8, 9 }, new int[] { OK,
+					OK }, 2, dictionary);
+		} finally {
+			recorder.close();
+		}
+
+		ReplayPerformanceBackend backend = new ReplayPerformanceBackend(file, 0);
+		assertEquals(HOST, backend.getHostName());
+		assertEquals(4, backend.getSampleCount());
+
+		long reference = backend.initialize(false);
+		assertArrayEquals(new String[] { "master" }, backend.getInstances(reference, "Databases", HOST));
+		int logFlushesHandle = backend.registerCounter(reference, HOST, "Databases", "Log Flushes/sec", "master",
+				0);
+		int batchRequestsHandle = backend.registerCounter(reference, HOST, "SQL Statistics", "Batch Requests/sec",
+				null, 0);
+		int connectionsHandle = backend.registerCounter(reference, HOST, "General Statistics", "User Connections",
+				null, 0);
+		long[] values = new long[3];
+		int[] status = new int[3];
+
+		assertTrue(backend.requery(reference));
+		backend.getValues(reference, values, status);
+		assertEquals(ERROR, status[logFlushesHandle]);
+		assertNotNull(backend.getErrorMessage(reference, logFlushesHandle));
+		assertEquals(OK, status[batchRequestsHandle]);
+		assertEquals(5, values[batchRequestsHandle]);
+		assertEquals(OK, status[connectionsHandle]);
+		assertEquals(Long.MIN_VALUE, values[connectionsHandle]);
+		assertNull(backend.getErrorMessage(reference, connectionsHandle));
+
+		assertTrue(backend.requery(reference));
+		backend.getValues(reference, values, status);
+		assertEquals(5, values[batchRequestsHandle]);
+		assertEquals(INVALID, status[connectionsHandle]);
+
+		assertTrue(backend.requery(reference));
+		backend.getValues(reference, values, status);
+		assertEquals(OK, status[logFlushesHandle]);
+		assertEquals(7, values[logFlushesHandle]);
+		assertEquals(ERROR, status[batchRequestsHandle]);
+		assertTrue(backend.getErrorMessage(reference, batchRequestsHandle).indexOf("Batch Requests/sec") >= 0);
+		assertEquals(INVALID, status[connectionsHandle]);
+
+		assertTrue(backend.requery(reference));
+		backend.getValues(reference, values, status);
+		assertEquals(8, values[logFlushesHandle]);
+		assertEquals(OK, status[batchRequestsHandle]);
+		assertEquals(9, values[batchRequestsHandle]);
+		assertEquals(ERROR, status[connectionsHandle]);
+
+		// the replay starts over at the end of the capture
+		assertTrue(backend.requery(reference));
+		backend.getValues(reference, values, status);
+		assertEquals(5, values[batchRequestsHandle]);
+		assertEquals(Long.MIN_VALUE, values[connectionsHandle]);
+
+		backend.uninitialize(reference);
+	}
+
+	@Test
+	public void replayRejectsUnknownHandles() throws Exception {
+		CaptureRecorder recorder = new CaptureRecorder(file, HOST);
+		try {
+			recorder.record(1000, new int[] { connections }, new long[] { 1 }, new int[] { OK }, 1, dictionary);
+		} finally {
+			recorder.close();
+		}
+		ReplayPerformanceBackend backend = new ReplayPerformanceBackend(file, 0);
+		long reference = backend.initialize(false);
+		int handle = backend.registerCounter(reference, HOST, "General Statistics", "User Connections", null, 0);
+		assertTrue(backend.requery(reference));
+		assertNull(backend.getErrorMessage(reference, handle));
+		assertNotNull(backend.getErrorMessage(reference, handle + 1));
+		assertNotNull(backend.getErrorMessage(reference, -1));
+		backend.clearPerformanceCounterMap(reference);
+		assertNotNull(backend.getErrorMessage(reference, handle));
+		backend.uninitialize(reference);
+	}
+}
@@ -0,0 +1,105 @@
+package com.dynatrace.diagnostics.plugin.perflib.perfmon.internal;
+
+import static com.dynatrace.diagnostics.plugin.perflib.perfmon.internal.RawCounterCalculator.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RawCounterCalculatorTest {
+
+	private static final long FREQUENCY = 10000000L;
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void instantaneousCountersNeedNoPreviousSample() {
+		assertFalse(needsPreviousSample(PERF_COUNTER_LARGE_RAWCOUNT));
+		assertFalse(needsPreviousSample(PERF_LARGE_RAW_FRACTION));
+		assertTrue(needsPreviousSample(PERF_COUNTER_BULK_COUNT));
+		assertTrue(needsPreviousSample(PERF_AVERAGE_BULK));
+	}
+
+	@Test
+	public void rawCountIsTruncatedTo32Bits() {
+		assertEquals(0xFFFFFFFFL, calculate(PERF_COUNTER_RAWCOUNT, 0, 0, -1L, 0, FREQUENCY), DELTA);
+		assertEquals(-1L, calculate(PERF_COUNTER_LARGE_RAWCOUNT, 0, 0, -1L, 0, FREQUENCY), DELTA);
+	}
+
+	@Test
+	public void rateIsCountPerSecond() {
+		// 500 requests in 2 seconds
+		assertEquals(250.0, calculate(PERF_COUNTER_BULK_COUNT, 1000, 0, 1500, 2 * FREQUENCY, FREQUENCY), DELTA);
+		assertEquals(250.0, calculate(PERF_COUNTER_COUNTER, 1000, 0, 1500, 2 * FREQUENCY, FREQUENCY), DELTA);
+	}
+
+	@Test
+	public void rate32BitWrapsAround() {
+		// the counter wrapped from 2^32 - 100 to 100, i.e. 200 increments
+		assertEquals(200.0, calculate(PERF_COUNTER_COUNTER, 0xFFFFFF9CL, 0, 100, FREQUENCY, FREQUENCY), DELTA);
+		assertEquals(200.0, calculate(PERF_COUNTER_DELTA, 0xFFFFFF9CL, 0, 100, 0, FREQUENCY), DELTA);
+	}
+
+	@Test
+	public void rate64BitDecreaseIsInvalid() {
+		// a restarted counter, the 64 bit value does not wrap
+		assertTrue(Double.isNaN(calculate(PERF_COUNTER_BULK_COUNT, 1500, 0, 100, FREQUENCY, FREQUENCY)));
+	}
+
+	@Test
+	public void zeroTickIntervalIsInvalid() {
+		long ticks = 5 * FREQUENCY;
+		assertTrue(Double.isNaN(calculate(PERF_COUNTER_BULK_COUNT, 1000, ticks, 1500, ticks, FREQUENCY)));
+		assertTrue(Double.isNaN(calculate(PERF_COUNTER_COUNTER, 1000, ticks, 1500, ticks, FREQUENCY)));
+		assertTrue(Double.isNaN(calculate(PERF_100NSEC_TIMER, 1000, ticks, 1500, ticks, FREQUENCY)));
+		assertTrue(Double.isNaN(calculate(PERF_100NSEC_TIMER_INV, 1000, ticks, 1500, ticks, FREQUENCY)));
+		assertTrue(Double.isNaN(calculate(PERF_AVERAGE_TIMER, 1000, 7, 1500, 7, FREQUENCY)));
+		assertTrue(Double.isNaN(calculate(PERF_AVERAGE_BULK, 1000, 7, 1500, 7, FREQUENCY)));
+	}
+
+	@Test
+	public void backwardTicksAreInvalid() {
+		assertTrue(Double.isNaN(calculate(PERF_COUNTER_BULK_COUNT, 1000, 2 * FREQUENCY, 1500, FREQUENCY,
+				FREQUENCY)));
+	}
+
+	@Test
+	public void missingTimeBaseIsInvalid() {
+		assertTrue(Double.isNaN(calculate(PERF_COUNTER_BULK_COUNT, 1000, 0, 1500, FREQUENCY, 0)));
+		assertTrue(Double.isNaN(calculate(PERF_ELAPSED_TIME, 0, 0, FREQUENCY, 3 * FREQUENCY, 0)));
+	}
+
+	@Test
+	public void fractionIsPercentOfBase() {
+		// e.g. Buffer cache hit ratio
+		assertEquals(98.0, calculate(PERF_LARGE_RAW_FRACTION, 0, 0, 980, 1000, FREQUENCY), DELTA);
+		assertTrue(Double.isNaN(calculate(PERF_LARGE_RAW_FRACTION, 0, 0, 980, 0, FREQUENCY)));
+	}
+
+	@Test
+	public void averageIsDeltaOfCountPerDeltaOfBase() {
+		// e.g. Average Wait Time (ms): 600 ms waited by 4 new waits
+		assertEquals(150.0, calculate(PERF_AVERAGE_BULK, 1000, 10, 1600, 14, FREQUENCY), DELTA);
+		// 0.5 s of ticks for 5 operations
+		assertEquals(0.1, calculate(PERF_AVERAGE_TIMER, 0, 10, FREQUENCY / 2, 15, FREQUENCY), DELTA);
+	}
+
+	@Test
+	public void timersArePercentOfElapsedTime() {
+		assertEquals(25.0, calculate(PERF_100NSEC_TIMER, 0, 0, FREQUENCY / 4, FREQUENCY, FREQUENCY), DELTA);
+		assertEquals(75.0, calculate(PERF_100NSEC_TIMER_INV, 0, 0, FREQUENCY / 4, FREQUENCY, FREQUENCY), DELTA);
+		// the idle time may exceed the elapsed time slightly
+		assertEquals(0.0, calculate(PERF_100NSEC_TIMER_INV, 0, 0, 2 * FREQUENCY, FREQUENCY, FREQUENCY), DELTA);
+	}
+
+	@Test
+	public void elapsedTimeIsInSeconds() {
+		assertEquals(2.0, calculate(PERF_ELAPSED_TIME, 0, 0, FREQUENCY, 3 * FREQUENCY, FREQUENCY), DELTA);
+	}
+
+	@Test
+	public void baseTypesAreInvalid() {
+		assertTrue(Double.isNaN(calculate(0x40030402, 0, 0, 1, 1, FREQUENCY)));
+	}
+}